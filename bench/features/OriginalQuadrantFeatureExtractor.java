@@ -0,0 +1,131 @@
+package features;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import rts.GameState;
+import rts.units.Unit;
+import rts.units.UnitType;
+
+/**
+ * The quadrant model extractor as it was before the single-pass extraction
+ * (user-013) and the feature schema (user-015): a new map of features per
+ * state, one getUnitsInRectangle scan per quadrant and a formatted feature
+ * name per unit. Kept here, unchanged, as the baseline of
+ * {@link QuadrantFeatureBenchmark}.
+ *
+ */
+class OriginalQuadrantFeatureExtractor {
+    int numQuadrants;
+
+    OriginalQuadrantFeatureExtractor(int numQuadrants) {
+        this.numQuadrants = numQuadrants;
+    }
+
+    /**
+     * Initializes the features from the given state. Feature values are zero, but
+     * max and min are set accordingly
+     * 
+     * @param state
+     * @return
+     */
+    private Map<String, Feature> initializeFeatures(GameState state) {
+        Map<String, Feature> features = new HashMap<>();
+
+        // adds the 'global' features
+        features.put(FeatureNames.RESOURCES_OWN, new Feature(FeatureNames.RESOURCES_OWN, 0, 0, 20));
+        features.put(FeatureNames.RESOURCES_OPP, new Feature(FeatureNames.RESOURCES_OPP, 0, 0, 20));
+        features.put(FeatureNames.GAME_TIME, new Feature(FeatureNames.GAME_TIME, 0, 0, 3000));
+        features.put(FeatureNames.BIAS, new Feature(FeatureNames.BIAS, 1, 0, 1));
+
+        // adds the 'per-quadrant' features
+        int horizQuadLength = state.getPhysicalGameState().getWidth() / numQuadrants;
+        int vertQuadLength = state.getPhysicalGameState().getHeight() / numQuadrants;
+
+        int tilesPerQuadrant = horizQuadLength * vertQuadLength;
+
+        for (int horizQuad = 0; horizQuad < numQuadrants; horizQuad++) {
+            for (int vertQuad = 0; vertQuad < numQuadrants; vertQuad++) {
+                for (int player = 0; player < 2; player++) {
+                    String healthFeatName = FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, player);
+
+                    features.put(healthFeatName, new Feature(healthFeatName, 0, 0, 1));
+
+                    for (UnitType type : state.getUnitTypeTable().getUnitTypes()) {
+                        if (type.isResource)
+                            continue; // ignores resources
+                        String countFeatName = FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, player, type);
+                        features.put(countFeatName, new Feature(countFeatName, 0, 0, tilesPerQuadrant));
+                    }
+                }
+            }
+        }
+
+        return features;
+    }
+
+    Map<String, Feature> getRawFeatures(GameState state, int player) {
+        Map<String, Feature> features = initializeFeatures(state);
+
+        int opponent = 1 - player;
+
+        int horizQuadLength = state.getPhysicalGameState().getWidth() / numQuadrants;
+        int vertQuadLength = state.getPhysicalGameState().getHeight() / numQuadrants;
+
+        for (int horizQuad = 0; horizQuad < numQuadrants; horizQuad++) {
+            for (int vertQuad = 0; vertQuad < numQuadrants; vertQuad++) {
+
+                float hpSum[] = new float[2];
+                int unitCount[] = new int[2];
+
+                Collection<Unit> unitsInQuad = state.getPhysicalGameState().getUnitsInRectangle(
+                        horizQuad * horizQuadLength, vertQuad * vertQuadLength, horizQuadLength, vertQuadLength);
+
+                for (Unit u : unitsInQuad) {
+                    if (u.getType().isResource)
+                        continue; // ignores resources
+
+                    unitCount[u.getPlayer()]++;
+                    hpSum[u.getPlayer()] += u.getHitPoints() / (float)u.getType().hp;
+
+                    String name = FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, u.getPlayer(), u.getType());
+
+                    Feature typeCountPerQuadrant = features.get(name);
+                    typeCountPerQuadrant.setValue(1 + typeCountPerQuadrant.getValue());
+                }
+
+                for (int p = 0; p < 2; p++) {
+                    float avgHP = unitCount[p] != 0 ? hpSum[p] / unitCount[p] : 0;
+                    Feature avgHealthInQuad = features.get(FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, p));
+                    avgHealthInQuad.setValue(avgHP);
+                }
+
+            }
+        }
+
+        features.get(FeatureNames.RESOURCES_OWN).setValue((float) state.getPlayer(player).getResources());
+        features.get(FeatureNames.RESOURCES_OPP).setValue((float) state.getPlayer(opponent).getResources());
+
+        features.get(FeatureNames.GAME_TIME).setValue((float) state.getTime());
+
+        return features;
+    }
+
+    /**
+     * Returns the features normalized via min-max scaling, as the original
+     * FeatureExtractor.getFeatures
+     * 
+     * @param state
+     * @param player
+     * @return
+     */
+    Map<String, Feature> getFeatures(GameState state, int player) {
+        Map<String, Feature> features = getRawFeatures(state, player);
+
+        for (Feature f : features.values()) {
+            f.minMaxScaling();
+        }
+        return features;
+    }
+}
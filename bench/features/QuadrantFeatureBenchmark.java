@@ -0,0 +1,95 @@
+package features;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+/**
+ * Compares ways of extracting the quadrant model features of a state:
+ *
+ * - original: the extractor before the single-pass extraction (see
+ * {@link OriginalQuadrantFeatureExtractor}: one getUnitsInRectangle scan per
+ * quadrant and a formatted name per unit) followed by a lookup of each feature
+ * name, as Sarsa read the features then. This is the baseline.
+ *
+ * - featureMap: {@link FeatureExtractor#getFeatures} (a lazy map view of the
+ * feature vector) followed by a lookup of each feature name
+ *
+ * - singlePass: {@link QuadrantModelFeatureExtractor#getFeatureVector}, which
+ * bins all units in one pass into a preallocated array
+ *
+ * Run with: ant bench -Dbench.args=QuadrantFeatureBenchmark (requires the JMH
+ * jars in lib/jmh), from the project directory so that the maps are found
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadrantFeatureBenchmark {
+
+    @Param({ "maps/8x8/basesWorkers8x8.xml", "maps/16x16/basesWorkers16x16.xml",
+            "maps/24x24/basesWorkers24x24.xml", "maps/BWDistantResources32x32.xml" })
+    String map;
+
+    @Param({ "3" })
+    int quadrants;
+
+    private GameState state;
+    private QuadrantModelFeatureExtractor extractor;
+    private OriginalQuadrantFeatureExtractor originalExtractor;
+    private String[] featureNames;
+    private float[] out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+        state = new GameState(PhysicalGameState.load(map, types), types);
+        extractor = new QuadrantModelFeatureExtractor(quadrants);
+        originalExtractor = new OriginalQuadrantFeatureExtractor(quadrants);
+        featureNames = extractor.getFeatureNames(state).toArray(new String[0]);
+        out = new float[featureNames.length];
+    }
+
+    @Benchmark
+    public float[] original() {
+        Map<String, Feature> features = originalExtractor.getFeatures(state, 0);
+        for (int j = 0; j < featureNames.length; j++) {
+            out[j] = features.get(featureNames[j]).getValue();
+        }
+        return out;
+    }
+
+    @Benchmark
+    public float[] featureMap() {
+        Map<String, Feature> features = extractor.getFeatures(state, 0);
+        for (int j = 0; j < featureNames.length; j++) {
+            out[j] = features.get(featureNames[j]).getValue();
+        }
+        return out;
+    }
+
+    @Benchmark
+    public float[] singlePass() {
+        extractor.getFeatureVector(state, 0, featureNames, out);
+        return out;
+    }
+}
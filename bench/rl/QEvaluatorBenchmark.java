@@ -0,0 +1,142 @@
+package rl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import features.Feature;
+
+/**
+ * Compares ways of computing the Q-values of every portfolio member:
+ * 
+ * - nestedMaps: the original path, with weights in Map<String, Map<String,
+ * Float>> and features in Map<String, Feature>
+ * 
+ * - perMemberDot: one {@link WeightMatrix#dot} per member
+ * 
+ * - scalarBatched and autoBatched: {@link WeightMatrix#dotAll} with
+ * {@link ScalarQEvaluator} and with the evaluator chosen by
+ * {@link QEvaluator#create}("auto"), which is the Vector API one when the JVM
+ * runs with --add-modules jdk.incubator.vector and src-vector was compiled
+ * 
+ * Run with: ant bench (requires the JMH jars in lib/jmh)
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QEvaluatorBenchmark {
+
+    @Param({ "6", "20" })
+    int members;
+
+    /**
+     * 130 is the feature count of the quadrant model with 3x3 quadrants
+     */
+    @Param({ "130" })
+    int featureCount;
+
+    /**
+     * Fraction of non-zero features
+     */
+    @Param({ "0.3", "1.0" })
+    double density;
+
+    private WeightMatrix weights;
+    private float[] features;
+    private float[] out;
+
+    private QEvaluator scalar;
+    private QEvaluator auto;
+
+    private Map<String, Map<String, Float>> weightMaps;
+    private Map<String, Feature> featureMap;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+
+        List<String> memberNames = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            memberNames.add("member" + i);
+        }
+        List<String> featureNames = new ArrayList<>();
+        for (int j = 0; j < featureCount; j++) {
+            featureNames.add("feature" + j);
+        }
+
+        weights = new WeightMatrix(memberNames, featureNames);
+        for (int i = 0; i < members; i++) {
+            for (int j = 0; j < featureCount; j++) {
+                weights.set(i, j, random.nextFloat() * 2 - 1);
+            }
+        }
+
+        features = new float[featureCount];
+        featureMap = new HashMap<>();
+        for (int j = 0; j < featureCount; j++) {
+            features[j] = random.nextDouble() < density ? random.nextFloat() : 0;
+            featureMap.put(featureNames.get(j), new Feature(featureNames.get(j), features[j], 0, 1));
+        }
+
+        weightMaps = weights.toMap();
+        out = new float[members];
+
+        scalar = QEvaluator.create("scalar");
+        auto = QEvaluator.create("auto");
+    }
+
+    @Benchmark
+    public void nestedMaps(Blackhole blackhole) {
+        Map<String, Double> qValues = new HashMap<>();
+        for (String member : weightMaps.keySet()) {
+            Map<String, Float> memberWeights = weightMaps.get(member);
+            float product = 0.0f;
+            for (String featureName : featureMap.keySet()) {
+                product += featureMap.get(featureName).getValue() * memberWeights.get(featureName);
+            }
+            qValues.put(member, (double) Math.max(-1, Math.min(1, product)));
+        }
+        blackhole.consume(qValues);
+    }
+
+    @Benchmark
+    public float[] perMemberDot() {
+        for (int i = 0; i < members; i++) {
+            out[i] = weights.dot(i, features);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public float[] scalarBatched() {
+        weights.dotAll(scalar, features, 0, out);
+        return out;
+    }
+
+    @Benchmark
+    public float[] autoBatched() {
+        weights.dotAll(auto, features, 0, out);
+        return out;
+    }
+}
@@ -0,0 +1,14 @@
+#!/bin/bash
+
+# Launches the learner of the actor/learner mode. Actors are Runner processes (see rlexperiment.sh)
+# whose MetaBots have rl.learner.address pointing to this learner (or are launched with -l host:port).
+# Usage: ./learner.sh -c config/metabot.properties [-p port]
+
+classpath=.:bin:lib/microrts.jar:lib/commons-cli-1.4.jar:lib/log4j-api-2.11.1.jar:lib/strategy-tactics.jar
+classpath="$classpath:lib/log4j-core-2.11.1.jar:lib/jdom.jar:lib/ufv.jar:lib/capivara.jar"
+
+echo "Launching learner..."
+
+java -classpath $classpath rl.LearnerServer "$@"
+
+echo "Done."
@@ -5,6 +5,12 @@ classpath="$classpath:lib/log4j-core-2.11.1.jar:lib/jdom.jar:lib/ufv.jar:lib/cap
 
 echo "Launching experiment..."
 
-java -classpath $classpath -Djava.library.path=lib/ rl.Runner "$@"
+# enables the SIMD Q-value evaluator (see build-vector in build.xml) when the JDK ships the Vector API
+jvmopts=""
+if java --list-modules 2>/dev/null | grep -q jdk.incubator.vector; then
+    jvmopts="--add-modules jdk.incubator.vector"
+fi
+
+java $jvmopts -classpath $classpath -Djava.library.path=lib/ rl.Runner "$@"
 
 echo "Done."
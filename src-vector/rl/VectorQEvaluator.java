@@ -0,0 +1,44 @@
+package rl;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Evaluates the Q-values of all members with the JDK Vector API: each row of
+ * the weights is multiplied by the feature vector in SIMD lanes of the
+ * preferred width, and the lanes are summed at the end of the row.
+ *
+ * Requires JDK 16+ and --add-modules jdk.incubator.vector both to compile
+ * (ant build-vector) and to run. {@link QEvaluator#create} falls back to
+ * {@link ScalarQEvaluator} when this class cannot be loaded.
+ *
+ */
+public class VectorQEvaluator extends QEvaluator {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void evaluate(float[] weights, int memberCount, int featureCount, float[] features, int from,
+            float[] out) {
+        int upperBound = SPECIES.loopBound(featureCount);
+
+        for (int i = 0; i < memberCount; i++) {
+            int row = i * featureCount;
+
+            FloatVector sum = FloatVector.zero(SPECIES);
+            int j = 0;
+            for (; j < upperBound; j += SPECIES.length()) {
+                FloatVector x = FloatVector.fromArray(SPECIES, features, from + j);
+                FloatVector w = FloatVector.fromArray(SPECIES, weights, row + j);
+                sum = x.fma(w, sum);
+            }
+
+            float result = sum.reduceLanes(VectorOperators.ADD);
+            for (; j < featureCount; j++) {
+                result += features[from + j] * weights[row + j];
+            }
+            out[i] = result;
+        }
+    }
+}
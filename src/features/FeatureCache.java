@@ -0,0 +1,220 @@
+package features;
+
+import java.util.List;
+
+import rts.GameState;
+
+/**
+ * Keeps the feature vectors of the most recently seen states, so that a state
+ * goes through the {@link FeatureExtractor} only once even if its features are
+ * requested several times (e.g. to choose an action, to learn and to log
+ * Q-values in the same frame, and again as s in the next learning step).
+ *
+ * Entries are keyed on (game time, player). This assumes the states come from
+ * a single game that moves forward in time, which is the case within a match:
+ * a state and its clone at the same frame share the same entry. Earlier frames
+ * may be requested again (e.g. s after the transient vectors of the frames
+ * since it), but a state older than every cached vector means a new match
+ * started, so the cache is invalidated then, as well as via
+ * {@link #invalidate()}.
+ *
+ * Returned vectors are owned by the cache and must not be modified. A vector
+ * returned by {@link #get} remains valid until {@link #capacity} other states
+ * are requested via {@link #get}. States whose features are needed only once
+ * (e.g. for logging) should be requested via {@link #getTransient}, which does
+ * not evict the retained vectors.
+ *
+ * Each vector comes with its non-zero entries (see {@link #getSparse}), so
+ * that updates can skip the zero features. If the extractor is sparse, the
+ * dense vector is filled from the sparse one, at a cost proportional to the
+ * number of non-zero features.
+ */
+public class FeatureCache {
+
+    private final FeatureExtractor featureExtractor;
+
+    private final String[] featureNames;
+
+    private final int capacity;
+
+    /**
+     * The cached vectors and their keys. The last position is the slot of
+     * transient vectors
+     */
+    private final float[][] vectors;
+    private final SparseFeatures[] sparseVectors;
+    private final int[] times;
+    private final int[] players;
+
+    /**
+     * The 'clock' of the last access of each entry, to evict the least recently
+     * used one
+     */
+    private final long[] lastUse;
+    private long clock;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache for the given extractor. Vectors are filled in the order of
+     * the given feature names.
+     *
+     * @param featureExtractor
+     * @param featureNames
+     * @param capacity         number of vectors retained in the cache
+     */
+    public FeatureCache(FeatureExtractor featureExtractor, List<String> featureNames, int capacity) {
+        this.featureExtractor = featureExtractor;
+        this.featureNames = featureNames.toArray(new String[0]);
+        this.capacity = capacity;
+
+        vectors = new float[capacity + 1][this.featureNames.length];
+        sparseVectors = new SparseFeatures[capacity + 1];
+        for (int i = 0; i <= capacity; i++) {
+            sparseVectors[i] = new SparseFeatures(this.featureNames.length);
+        }
+        times = new int[capacity + 1];
+        players = new int[capacity + 1];
+        lastUse = new long[capacity + 1];
+
+        invalidate();
+    }
+
+    /**
+     * Returns the feature vector of a state from the point of view of a player,
+     * computing it only if it is not in the cache. A computed vector is retained,
+     * replacing the least recently used one.
+     *
+     * @param state
+     * @param player
+     * @return
+     */
+    public float[] get(GameState state, int player) {
+        int slot = lookup(state, player);
+        if (slot >= 0) {
+            return vectors[slot];
+        }
+
+        int leastRecent = 0;
+        for (int i = 1; i < capacity; i++) {
+            if (lastUse[i] < lastUse[leastRecent]) {
+                leastRecent = i;
+            }
+        }
+        return compute(state, player, leastRecent);
+    }
+
+    /**
+     * Returns the feature vector of a state from the point of view of a player,
+     * computing it only if it is not in the cache. A computed vector is stored in
+     * the transient slot, so the retained vectors are not evicted.
+     *
+     * @param state
+     * @param player
+     * @return
+     */
+    public float[] getTransient(GameState state, int player) {
+        int slot = lookup(state, player);
+        if (slot >= 0) {
+            return vectors[slot];
+        }
+        return compute(state, player, capacity);
+    }
+
+    /**
+     * Returns the slot holding the vector of the given state and player, or -1
+     * if it is not cached
+     *
+     * @param state
+     * @param player
+     * @return
+     */
+    private int lookup(GameState state, int player) {
+        int time = state.getTime();
+        int oldestTime = Integer.MAX_VALUE;
+        for (int i = 0; i <= capacity; i++) {
+            if (times[i] == time && players[i] == player) {
+                hits++;
+                lastUse[i] = ++clock;
+                return i;
+            }
+            if (times[i] >= 0 && times[i] < oldestTime) {
+                oldestTime = times[i];
+            }
+        }
+        if (time < oldestTime && oldestTime != Integer.MAX_VALUE) {
+            invalidate();
+        }
+        misses++;
+        return -1;
+    }
+
+    /**
+     * Extracts the features of a state into the given slot
+     *
+     * @param state
+     * @param player
+     * @param slot
+     * @return
+     */
+    private float[] compute(GameState state, int player, int slot) {
+        if (featureExtractor.isSparse()) {
+            sparseVectors[slot].unscatter(vectors[slot]);
+            featureExtractor.getSparseFeatures(state, player, featureNames, sparseVectors[slot]);
+            sparseVectors[slot].scatter(vectors[slot]);
+        } else {
+            featureExtractor.getFeatureVector(state, player, featureNames, vectors[slot]);
+            sparseVectors[slot].gather(vectors[slot]);
+        }
+        times[slot] = state.getTime();
+        players[slot] = player;
+        lastUse[slot] = ++clock;
+        return vectors[slot];
+    }
+
+    /**
+     * Returns the non-zero entries of a vector returned by this cache. Like the
+     * vector, they remain valid until the vector is evicted.
+     *
+     * @param vector
+     * @return
+     */
+    public SparseFeatures getSparse(float[] vector) {
+        for (int i = 0; i <= capacity; i++) {
+            if (vectors[i] == vector) {
+                return sparseVectors[i];
+            }
+        }
+        throw new RuntimeException("Feature vector does not belong to this cache");
+    }
+
+    /**
+     * Discards all cached vectors (the hit and miss counters are kept)
+     */
+    public void invalidate() {
+        for (int i = 0; i <= capacity; i++) {
+            times[i] = -1;
+            players[i] = -1;
+            lastUse[i] = 0;
+        }
+    }
+
+    /**
+     * Returns how many requests were answered from the cache
+     *
+     * @return
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns how many requests required a feature extraction
+     *
+     * @return
+     */
+    public long getMisses() {
+        return misses;
+    }
+}
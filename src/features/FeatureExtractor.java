@@ -18,13 +18,25 @@ public abstract class FeatureExtractor {
     public abstract Map<String, Feature> getRawFeatures(GameState state, int player);
 
     /**
-     * Returns the list of feature names for this model. Requires the game state
-     * because some features depend on specific map characteristics.
+     * Returns the names, bounds and ordinals of the features of this model.
+     * Requires the game state because some features depend on specific map
+     * characteristics.
      * 
      * @param state
      * @return
      */
-    public abstract List<String> getFeatureNames(GameState state);
+    public abstract FeatureSchema getSchema(GameState state);
+
+    /**
+     * Returns the (unmodifiable) list of feature names for this model, in the
+     * order of {@link #getSchema}
+     * 
+     * @param state
+     * @return
+     */
+    public List<String> getFeatureNames(GameState state) {
+        return getSchema(state).getNames();
+    }
 
     /**
      * Returns the features associated with a {@link GameState} from the point of
@@ -45,4 +57,67 @@ public abstract class FeatureExtractor {
         return features;
     }
 
+    /**
+     * Fills the given array with the features (normalized as in
+     * {@link #getFeatures}) of a {@link GameState} from the point of view of a
+     * player. The i-th position receives the value of the i-th feature name.
+     * 
+     * @param state
+     * @param player
+     * @param featureNames
+     * @param out
+     */
+    public void getFeatureVector(GameState state, int player, String[] featureNames, float[] out) {
+        Map<String, Feature> features = getFeatures(state, player);
+        for (int i = 0; i < featureNames.length; i++) {
+            out[i] = features.get(featureNames[i]).getValue();
+        }
+    }
+
+    /**
+     * Returns whether this extractor computes its features natively in sparse
+     * form (see {@link #getSparseFeatures}), e.g. because most of them are zero
+     * in every state
+     * 
+     * @return
+     */
+    public boolean isSparse() {
+        return false;
+    }
+
+    /**
+     * Fills the given sparse vector with the non-zero features (normalized as in
+     * {@link #getFeatures}) of a {@link GameState} from the point of view of a
+     * player. Indices refer to the given feature names. By default, computes
+     * the dense vector and collects its non-zero values.
+     * 
+     * @param state
+     * @param player
+     * @param featureNames
+     * @param out
+     */
+    public void getSparseFeatures(GameState state, int player, String[] featureNames, SparseFeatures out) {
+        float[] dense = new float[featureNames.length];
+        getFeatureVector(state, player, featureNames, dense);
+        out.gather(dense);
+    }
+
+    /**
+     * Returns a new extractor with the same parameters, e.g. for a copy of an
+     * agent (an instance is not meant to be shared by agents). It shares what
+     * does not depend on the states (e.g., the schema), but nothing kept from
+     * the states seen so far.
+     * 
+     * @return
+     */
+    public abstract FeatureExtractor copy();
+
+    /**
+     * Discards anything kept from the states seen so far (e.g., by extractors
+     * that update their features incrementally). To be called when a new match
+     * starts. Does nothing by default.
+     */
+    public void reset() {
+    }
+
 }
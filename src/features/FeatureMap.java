@@ -0,0 +1,83 @@
+package features;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map view of a feature vector (see {@link FeatureSchema#asMap}). Each
+ * {@link Feature} is created upon its first access and then kept, so that
+ * changes to it (e.g., {@link Feature#minMaxScaling}) are seen by later
+ * lookups.
+ */
+class FeatureMap extends AbstractMap<String, Feature> {
+
+    private final FeatureSchema schema;
+
+    private final float[] values;
+
+    private final Feature[] features;
+
+    FeatureMap(FeatureSchema schema, float[] values) {
+        this.schema = schema;
+        this.values = values;
+        this.features = new Feature[schema.size()];
+    }
+
+    private Feature feature(int j) {
+        if (features[j] == null) {
+            features[j] = new Feature(schema.getName(j), values[j], schema.getMin(j), schema.getMax(j));
+        }
+        return features[j];
+    }
+
+    @Override
+    public Feature get(Object key) {
+        int j = key instanceof String ? schema.indexOf((String) key) : -1;
+        return j != -1 ? feature(j) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && schema.indexOf((String) key) != -1;
+    }
+
+    @Override
+    public int size() {
+        return schema.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Feature>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Feature>>() {
+            @Override
+            public Iterator<Map.Entry<String, Feature>> iterator() {
+                return new Iterator<Map.Entry<String, Feature>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < features.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Feature> next() {
+                        if (next >= features.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int j = next++;
+                        return new AbstractMap.SimpleImmutableEntry<>(schema.getName(j), feature(j));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return features.length;
+            }
+        };
+    }
+}
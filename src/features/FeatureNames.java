@@ -6,6 +6,7 @@ public class FeatureNames {
 
     public static final String UNIT_COUNT = "unit_count"; // to be concatenated with quadrant, player and unit type
     public static final String AVG_HEALTH = "avg_health"; // to be concatenated with quadrant and player
+    public static final String INFLUENCE = "influence"; // to be concatenated with cell and player
 
     public static final String RESOURCES_OWN = "resources_own";
     public static final String RESOURCES_OPP = "resources_opp";
@@ -40,4 +41,47 @@ public class FeatureNames {
         return String.format(AVG_HEALTH + "-%d-%d-%d", xQuad, yQuad, player);
     }
 
+    /**
+     * Returns the feature name for unit count in a cell of the given level (the
+     * map divided in level x level cells) of a feature pyramid
+     * 
+     * @param level
+     * @param xCell
+     * @param yCell
+     * @param owner
+     * @param type
+     * @return
+     */
+    public static String unitsOfTypePerCell(int level, int xCell, int yCell, int owner, UnitType type) {
+        // feature name: unit_count-levelxlevel-x-y-owner-type
+        return String.format(UNIT_COUNT + "-%dx%d-%d-%d-%d-%s", level, level, xCell, yCell, owner, type.name);
+    }
+
+    /**
+     * Returns the feature name for average unit health in a cell of the given
+     * level of a feature pyramid
+     * 
+     * @param level
+     * @param xCell
+     * @param yCell
+     * @param player
+     * @return
+     */
+    public static String avgHealthPerCell(int level, int xCell, int yCell, int player) {
+        return String.format(AVG_HEALTH + "-%dx%d-%d-%d-%d", level, level, xCell, yCell, player);
+    }
+
+    /**
+     * Returns the feature name for the influence of a player in a cell of an
+     * influence map
+     * 
+     * @param xCell
+     * @param yCell
+     * @param player
+     * @return
+     */
+    public static String influencePerCell(int xCell, int yCell, int player) {
+        return INFLUENCE + "-" + xCell + "-" + yCell + "-" + player;
+    }
+
 }
@@ -0,0 +1,139 @@
+package features;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The features of an extractor for a given map: their names, min and max
+ * bounds (as in {@link Feature}) and ordinals, i.e., their positions in a
+ * feature vector. A schema is immutable, so it is built once and shared by
+ * every extraction (and thread) on the same map.
+ *
+ */
+public final class FeatureSchema {
+
+    private final String[] names;
+
+    private final List<String> nameList;
+
+    private final float[] min;
+
+    private final float[] max;
+
+    private final Map<String, Integer> ordinals;
+
+    /**
+     * @param names feature names, in ordinal order
+     * @param min   lower bound of each feature
+     * @param max   upper bound of each feature
+     */
+    public FeatureSchema(List<String> names, float[] min, float[] max) {
+        if (min.length != names.size() || max.length != names.size()) {
+            throw new RuntimeException("Expected bounds for " + names.size() + " features");
+        }
+        this.names = names.toArray(new String[0]);
+        this.nameList = Collections.unmodifiableList(Arrays.asList(this.names));
+        this.min = min.clone();
+        this.max = max.clone();
+
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (int j = 0; j < this.names.length; j++) {
+            if (ordinals.put(this.names[j], j) != null) {
+                throw new RuntimeException("Duplicate feature: " + this.names[j]);
+            }
+        }
+        this.ordinals = ordinals;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int feature) {
+        return names[feature];
+    }
+
+    /**
+     * Returns the (unmodifiable) list of feature names, in ordinal order
+     *
+     * @return
+     */
+    public List<String> getNames() {
+        return nameList;
+    }
+
+    public float getMin(int feature) {
+        return min[feature];
+    }
+
+    public float getMax(int feature) {
+        return max[feature];
+    }
+
+    /**
+     * Returns the ordinal of a feature, or -1 if it is not in this schema
+     *
+     * @param name
+     * @return
+     */
+    public int indexOf(String name) {
+        Integer ordinal = ordinals.get(name);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Returns, for each feature of this schema, its position in the given names
+     * (-1 if absent), or null if the names are exactly the ones of this schema,
+     * in the same order. Extractors use it to fill vectors whose features are
+     * in another order (e.g., the order of weights loaded from a file).
+     *
+     * @param featureNames
+     * @return
+     */
+    public int[] permutation(String[] featureNames) {
+        if (nameList.equals(Arrays.asList(featureNames))) {
+            return null;
+        }
+
+        int[] permutation = new int[names.length];
+        Arrays.fill(permutation, -1);
+        for (int i = 0; i < featureNames.length; i++) {
+            int j = indexOf(featureNames[i]);
+            if (j == -1) {
+                throw new RuntimeException("Unknown feature: " + featureNames[i]);
+            }
+            permutation[j] = i;
+        }
+        return permutation;
+    }
+
+    /**
+     * Truncates each value of a (raw) feature vector to the bounds of its
+     * feature and scales it to [0, 1], in place, with the same arithmetic as
+     * {@link Feature#setValue} followed by {@link Feature#minMaxScaling}
+     *
+     * @param values
+     */
+    public void scale(float[] values) {
+        for (int j = 0; j < names.length; j++) {
+            float value = Math.max(min[j], Math.min(values[j], max[j]));
+            values[j] = (value - min[j]) / (max[j] - min[j]);
+        }
+    }
+
+    /**
+     * Returns a view of a feature vector as a map from feature name to
+     * {@link Feature} (with the bounds of this schema), for code that logs or
+     * inspects features by name. The {@link Feature} objects are created upon
+     * access. The view keeps the array, which must not change afterwards.
+     *
+     * @param values
+     * @return
+     */
+    public Map<String, Feature> asMap(float[] values) {
+        return new FeatureMap(this, values);
+    }
+}
@@ -0,0 +1,274 @@
+package features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.Unit;
+
+/**
+ * The quadrant model of {@link QuadrantModelFeatureExtractor} (unit count per
+ * quadrant, player and unit type; average health per quadrant and player;
+ * resources; game time and bias) in a hashed feature space. Instead of one
+ * feature per (quadrant, player, type), each one is hashed into a fixed number
+ * of 2^bits features, so the number of weights does not grow with the number
+ * of quadrants, and only the features of the quadrants that contain units are
+ * computed. Colliding features are added, each with a hashed sign (+1 or -1)
+ * so that collisions cancel out on average.
+ *
+ * The global features keep their names and come first; the hashed ones are
+ * named hashed-0 to hashed-(2^bits - 1). Values are normalized as in the
+ * quadrant model before hashing, so {@link #getFeatures} and
+ * {@link #getRawFeatures} are the same.
+ *
+ */
+public class HashedQuadrantFeatureExtractor extends FeatureExtractor {
+
+    public static final String HASHED = "hashed";
+
+    /**
+     * resources_own, resources_opp, game_time and bias
+     */
+    private static final int GLOBAL_FEATURES = 4;
+
+    private final int numQuadrants;
+
+    private final int mask;
+
+    /**
+     * The features do not depend on the map. The hashed ones are unbounded, as
+     * collisions add up.
+     */
+    private final FeatureSchema schema;
+
+    /**
+     * Reusable accumulators of the unit count of each (cell, unit type) and the
+     * health sum and unit count of each cell, where a cell is a (quadrant,
+     * player) pair
+     */
+    private int[] typeCounts;
+    private float[] hpSums;
+    private int[] unitCounts;
+
+    /**
+     * The cells with units, so that only they are emitted and reset
+     */
+    private int[] touched;
+    private int touchedCount;
+
+    private int typeCount;
+
+    /**
+     * @param numQuadrants the map is divided in numQuadrants x numQuadrants
+     * @param bits         the hashed features are 2^bits
+     */
+    public HashedQuadrantFeatureExtractor(int numQuadrants, int bits) {
+        if (bits < 1 || bits > 24) {
+            throw new RuntimeException("Invalid number of hash bits: " + bits);
+        }
+        this.numQuadrants = numQuadrants;
+        this.mask = (1 << bits) - 1;
+
+        List<String> names = new ArrayList<>(GLOBAL_FEATURES + (1 << bits));
+        names.add(FeatureNames.RESOURCES_OWN);
+        names.add(FeatureNames.RESOURCES_OPP);
+        names.add(FeatureNames.GAME_TIME);
+        names.add(FeatureNames.BIAS);
+        for (int i = 0; i <= mask; i++) {
+            names.add(HASHED + "-" + i);
+        }
+
+        float[] min = new float[names.size()];
+        float[] max = new float[names.size()];
+        for (int j = 0; j < names.size(); j++) {
+            min[j] = j < GLOBAL_FEATURES ? 0 : Float.NEGATIVE_INFINITY;
+            max[j] = j < GLOBAL_FEATURES ? 1 : Float.POSITIVE_INFINITY;
+        }
+        schema = new FeatureSchema(names, min, max);
+    }
+
+    /**
+     * Creates an extractor with the parameters and schema of another (whose
+     * 2^bits names are not built again)
+     *
+     * @param other
+     */
+    private HashedQuadrantFeatureExtractor(HashedQuadrantFeatureExtractor other) {
+        this.numQuadrants = other.numQuadrants;
+        this.mask = other.mask;
+        this.schema = other.schema;
+    }
+
+    @Override
+    public FeatureSchema getSchema(GameState state) {
+        return schema;
+    }
+
+    @Override
+    public FeatureExtractor copy() {
+        return new HashedQuadrantFeatureExtractor(this);
+    }
+
+    @Override
+    public boolean isSparse() {
+        return true;
+    }
+
+    /**
+     * Fills the sparse vector with the features of the state. The feature names
+     * must be the ones of the schema, in the same order.
+     */
+    @Override
+    public void getSparseFeatures(GameState state, int player, String[] featureNames, SparseFeatures out) {
+        if (featureNames.length != schema.size()) {
+            throw new RuntimeException("Expected " + schema.size() + " hashed features, got "
+                    + featureNames.length);
+        }
+        out.clear();
+
+        PhysicalGameState pgs = state.getPhysicalGameState();
+        int horizQuadLength = pgs.getWidth() / numQuadrants;
+        int vertQuadLength = pgs.getHeight() / numQuadrants;
+        int tilesPerQuadrant = horizQuadLength * vertQuadLength;
+
+        // global features, min-max scaled as in the quadrant model
+        addIfNonZero(out, 0, Math.min(state.getPlayer(player).getResources(), 20) / 20f);
+        addIfNonZero(out, 1, Math.min(state.getPlayer(1 - player).getResources(), 20) / 20f);
+        addIfNonZero(out, 2, Math.min(state.getTime(), 3000) / 3000f);
+        out.add(3, 1);
+
+        if (tilesPerQuadrant == 0) {
+            return; // the map is smaller than the quadrant division
+        }
+
+        ensureCapacity(state.getUnitTypeTable().getUnitTypes().size());
+
+        for (Unit u : pgs.getUnits()) {
+            if (u.getType().isResource)
+                continue; // ignores resources
+
+            // units beyond the last full quadrant are ignored, as in the quadrant model
+            int horizQuad = u.getX() / horizQuadLength;
+            int vertQuad = u.getY() / vertQuadLength;
+            if (horizQuad >= numQuadrants || vertQuad >= numQuadrants) {
+                continue;
+            }
+
+            int cell = ((horizQuad * numQuadrants) + vertQuad) * 2 + u.getPlayer();
+            if (unitCounts[cell] == 0) {
+                touched[touchedCount++] = cell;
+            }
+            unitCounts[cell]++;
+            hpSums[cell] += u.getHitPoints() / (float) u.getType().hp;
+            typeCounts[cell * typeCount + u.getType().ID]++;
+        }
+
+        for (int t = 0; t < touchedCount; t++) {
+            int cell = touched[t];
+            int owner = cell % 2;
+            int quadrant = cell / 2;
+            int horizQuad = quadrant / numQuadrants;
+            int vertQuad = quadrant % numQuadrants;
+
+            addHashed(out, hash(horizQuad, vertQuad, owner, -1), Math.min(hpSums[cell] / unitCounts[cell], 1f));
+
+            for (int type = 0; type < typeCount; type++) {
+                int count = typeCounts[cell * typeCount + type];
+                if (count != 0) {
+                    addHashed(out, hash(horizQuad, vertQuad, owner, type),
+                            Math.min(count, tilesPerQuadrant) / (float) tilesPerQuadrant);
+                    typeCounts[cell * typeCount + type] = 0;
+                }
+            }
+
+            unitCounts[cell] = 0;
+            hpSums[cell] = 0;
+        }
+        touchedCount = 0;
+    }
+
+    @Override
+    public void getFeatureVector(GameState state, int player, String[] featureNames, float[] out) {
+        SparseFeatures features = new SparseFeatures(featureNames.length);
+        getSparseFeatures(state, player, featureNames, features);
+        for (int j = 0; j < out.length; j++) {
+            out[j] = 0;
+        }
+        features.scatter(out);
+    }
+
+    @Override
+    public Map<String, Feature> getRawFeatures(GameState state, int player) {
+        String[] names = schema.getNames().toArray(new String[0]);
+        float[] values = new float[names.length];
+        getFeatureVector(state, player, names, values);
+        return schema.asMap(values);
+    }
+
+    /**
+     * Same as {@link #getRawFeatures}, as the values are normalized before
+     * hashing
+     */
+    @Override
+    public Map<String, Feature> getFeatures(GameState state, int player) {
+        return getRawFeatures(state, player);
+    }
+
+    private void ensureCapacity(int unitTypes) {
+        int cells = numQuadrants * numQuadrants * 2;
+        if (unitCounts == null || typeCount != unitTypes) {
+            typeCount = unitTypes;
+            typeCounts = new int[cells * unitTypes];
+            hpSums = new float[cells];
+            unitCounts = new int[cells];
+            touched = new int[cells];
+            touchedCount = 0;
+        }
+    }
+
+    private static void addIfNonZero(SparseFeatures out, int index, float value) {
+        if (value != 0) {
+            out.add(index, value);
+        }
+    }
+
+    /**
+     * Adds a value to the hashed feature given by the low bits of the hash, with
+     * the sign given by its highest bit
+     *
+     * @param out
+     * @param hash
+     * @param value
+     */
+    private void addHashed(SparseFeatures out, long hash, float value) {
+        int index = GLOBAL_FEATURES + (int) (hash & mask);
+        out.add(index, hash < 0 ? -value : value);
+    }
+
+    /**
+     * Hashes a quadrant feature: the unit count of a type (type >= 0) or the
+     * average health (type = -1) of a player in a quadrant
+     *
+     * @param horizQuad
+     * @param vertQuad
+     * @param player
+     * @param type
+     * @return
+     */
+    static long hash(int horizQuad, int vertQuad, int player, int type) {
+        long h = horizQuad;
+        h = h * 0x9E3779B97F4A7C15L + vertQuad;
+        h = h * 0x9E3779B97F4A7C15L + player;
+        h = h * 0x9E3779B97F4A7C15L + (type + 1);
+
+        // finalizer of MurmurHash3 (fmix64), so that all bits depend on all inputs
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,217 @@
+package features;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.Unit;
+import rts.units.UnitType;
+
+/**
+ * The quadrant model of {@link QuadrantModelFeatureExtractor}, maintained
+ * incrementally between frames. It keeps the unit count per quadrant, player
+ * and type, and the hit points per quadrant, player and type. It also keeps
+ * the quadrant, type and hit points of every unit (by ID) seen in the
+ * previous call.
+ *
+ * Each call compares the units of the state with the previous ones (see
+ * {@link UnitTracker}). Only the units that were created, died, changed
+ * quadrant or lost hit points update the counts, and only the quadrants they
+ * touch are normalized again.
+ *
+ * Everything is recomputed from scratch after {@link #reset}, when the game
+ * time runs backwards (e.g., a new match) and when the map changes. Counts are
+ * exact. Hit points are summed per unit type before being divided by the
+ * type's maximum, so the average health may differ from the
+ * non-incremental value by float rounding.
+ *
+ * As with the parent class, an instance must be used by a single thread.
+ *
+ */
+public class IncrementalQuadrantFeatureExtractor extends QuadrantModelFeatureExtractor {
+
+    /**
+     * Layout the counts refer to (null forces a full recompute)
+     */
+    private Layout trackedLayout;
+
+    private int lastTime = -1;
+
+    /**
+     * Unit count and hit point sum of each (quadrant, player, type), at
+     * cell * stride + type offset, as in the feature layout. unitCount has
+     * the number of units of each cell (quadrant, player).
+     */
+    private int[] typeCount;
+    private int[] hitPoints;
+    private int[] unitCount;
+
+    /**
+     * Maximum hit points of the unit type at each offset of a cell
+     */
+    private float[] maxHitPoints;
+
+    /**
+     * The normalized features, in layout order, of the previous call
+     */
+    private float[] features;
+
+    /**
+     * Cells whose features must be normalized again
+     */
+    private boolean[] dirty;
+    private int[] dirtyCells;
+    private int dirtyCount;
+
+    /**
+     * Finds the units that changed since the previous call. A unit contributes
+     * its hit points under its slot, i.e., cell * stride + type offset (or -1 if
+     * it is a resource or in no quadrant).
+     */
+    private final UnitTracker tracker = new UnitTracker() {
+        @Override
+        int keyOf(Unit u) {
+            return slotOf(trackedLayout, u);
+        }
+
+        @Override
+        int valueOf(Unit u) {
+            return u.getHitPoints();
+        }
+
+        @Override
+        void apply(int slot, int hp, int sign) {
+            add(slot, hp, sign);
+        }
+    };
+
+    public IncrementalQuadrantFeatureExtractor(int numQuadrants) {
+        super(numQuadrants);
+    }
+
+    @Override
+    public FeatureExtractor copy() {
+        return new IncrementalQuadrantFeatureExtractor(numQuadrants);
+    }
+
+    /**
+     * Discards the counts, so that the next state is processed from scratch
+     */
+    @Override
+    public void reset() {
+        trackedLayout = null;
+    }
+
+    @Override
+    void fillFeatures(GameState state, int player, PhysicalGameState pgs, float[] out) {
+        Layout layout = this.layout;
+        if (trackedLayout != layout || state.getTime() < lastTime) {
+            recomputeFrom(layout, state);
+        }
+        lastTime = state.getTime();
+
+        tracker.update(pgs.getUnits());
+
+        // normalizes the changed cells
+        float tiles = layout.tilesPerQuadrant;
+        int stride = layout.stride;
+        for (int d = 0; d < dirtyCount; d++) {
+            int cell = dirtyCells[d];
+            dirty[cell] = false;
+
+            int base = cell * stride;
+            float hpSum = 0;
+            for (int t = 1; t < stride; t++) {
+                if (typeCount[base + t] != 0) {
+                    hpSum += hitPoints[base + t] / maxHitPoints[t];
+                }
+                features[4 + base + t] = scale(typeCount[base + t], 0, tiles);
+            }
+            float avgHP = unitCount[cell] != 0 ? hpSum / unitCount[cell] : 0;
+            features[4 + base] = scale(avgHP, 0, 1);
+        }
+        dirtyCount = 0;
+
+        features[0] = scale(state.getPlayer(player).getResources(), 0, 20);
+        features[1] = scale(state.getPlayer(1 - player).getResources(), 0, 20);
+        features[2] = scale(state.getTime(), 0, 3000);
+        features[3] = scale(1, 0, 1);
+
+        System.arraycopy(features, 0, out, 0, layout.featureCount);
+    }
+
+    /**
+     * Clears the counts and the previous units, marking every cell as changed
+     *
+     * @param layout
+     * @param state
+     */
+    private void recomputeFrom(Layout layout, GameState state) {
+        int cells = numQuadrants * numQuadrants * 2;
+        typeCount = new int[cells * layout.stride];
+        hitPoints = new int[cells * layout.stride];
+        unitCount = new int[cells];
+        features = new float[layout.featureCount];
+
+        maxHitPoints = new float[layout.stride];
+        for (UnitType type : state.getUnitTypeTable().getUnitTypes()) {
+            if (layout.typeOffset[type.ID] != -1) {
+                maxHitPoints[layout.typeOffset[type.ID]] = type.hp;
+            }
+        }
+
+        dirty = new boolean[cells];
+        dirtyCells = new int[cells];
+        dirtyCount = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            markDirty(cell);
+        }
+
+        tracker.clear();
+        trackedLayout = layout;
+    }
+
+    /**
+     * Returns the position of the features of a unit (cell * stride + type
+     * offset), or -1 if it is a resource or is in no quadrant
+     *
+     * @param layout
+     * @param u
+     * @return
+     */
+    private int slotOf(Layout layout, Unit u) {
+        if (u.getType().isResource || layout.horizQuadLength == 0 || layout.vertQuadLength == 0) {
+            return -1;
+        }
+
+        // units beyond the last full quadrant are in no quadrant
+        int horizQuad = u.getX() / layout.horizQuadLength;
+        int vertQuad = u.getY() / layout.vertQuadLength;
+        if (horizQuad >= numQuadrants || vertQuad >= numQuadrants) {
+            return -1;
+        }
+
+        int cell = ((horizQuad * numQuadrants) + vertQuad) * 2 + u.getPlayer();
+        return cell * layout.stride + layout.typeOffset[u.getType().ID];
+    }
+
+    /**
+     * Adds (sign = 1) or removes (sign = -1) a unit from the counts
+     *
+     * @param slot
+     * @param hp
+     * @param sign
+     */
+    private void add(int slot, int hp, int sign) {
+        int cell = slot / trackedLayout.stride;
+        typeCount[slot] += sign;
+        hitPoints[slot] += sign * hp;
+        unitCount[cell] += sign;
+        markDirty(cell);
+    }
+
+    private void markDirty(int cell) {
+        if (!dirty[cell]) {
+            dirty[cell] = true;
+            dirtyCells[dirtyCount++] = cell;
+        }
+    }
+}
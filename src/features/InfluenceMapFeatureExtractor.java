@@ -0,0 +1,358 @@
+package features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.Unit;
+import rts.units.UnitType;
+import rts.units.UnitTypeTable;
+
+/**
+ * An influence map of each player, pooled into cells x cells cells. Each unit
+ * spreads its strength (hit points, times the maximum damage for units that
+ * attack) over the tiles within radius (Manhattan distance) of it, decaying by
+ * a factor of decay per tile of distance. The feature of a cell and player is
+ * the mean influence of the player over the tiles of the cell. The resources,
+ * game time and bias features are as in {@link QuadrantModelFeatureExtractor}.
+ *
+ * The map is divided into cells with tile x in cell x * cells / width (and the
+ * same for y), so every tile belongs to a cell.
+ *
+ * The influence is maintained incrementally: each call compares the units with
+ * the ones of the previous call (see {@link UnitTracker}), and only the units
+ * that were created, died, moved or lost hit points remove their previous
+ * influence and add the new one, touching the tiles within radius of them.
+ * Finding those units still takes one pass over the unit list, as microRTS
+ * does not report what changed. Influences are summed in fixed point (weights
+ * in units of 2^-16), so that adding and removing the same unit cancels out
+ * exactly and the incremental sums do not drift from a recomputation.
+ *
+ * Everything is recomputed from scratch after {@link #reset}, when the game
+ * time runs backwards (e.g., a new match) and when the map changes.
+ *
+ * An instance must be used by a single thread.
+ *
+ */
+public class InfluenceMapFeatureExtractor extends FeatureExtractor {
+
+    /**
+     * Fixed-point scale of the kernel weights
+     */
+    private static final int ONE = 1 << 16;
+
+    private final int cells;
+    private final int radius;
+    private final float saturation;
+
+    /**
+     * Weight of each Manhattan distance, from 0 to radius, in units of 1 / ONE
+     */
+    private final long[] weights;
+
+    /**
+     * The map (dimensions and unit type table) the tables and schema refer to
+     */
+    private int width = -1;
+    private int height = -1;
+    private UnitTypeTable unitTypeTable;
+
+    private FeatureSchema schema;
+
+    /**
+     * Position in {@link #influence} of the cell of each tile (at y * width +
+     * x) for player 0; player 1 is at the next position
+     */
+    private int[] cellOf;
+
+    /**
+     * Number of tiles of each cell
+     */
+    private int[] tilesPerCell;
+
+    /**
+     * Influence sum of each (cell, player), at cell * 2 + player, in units of 1
+     * / ONE
+     */
+    private long[] influence;
+
+    /**
+     * Whether the influence reflects the units known to the tracker
+     */
+    private boolean tracking;
+
+    private int lastTime = -1;
+
+    private String[] lastFeatureNames;
+    private int[] permutation;
+    private float[] scratch;
+
+    /**
+     * Finds the units that changed since the previous call. A unit contributes
+     * its strength under its packed player, y and x (or -1 if it is a
+     * resource).
+     */
+    private final UnitTracker tracker = new UnitTracker() {
+        @Override
+        int keyOf(Unit u) {
+            if (u.getType().isResource || u.getPlayer() < 0) {
+                return -1;
+            }
+            return (u.getPlayer() << 24) | (u.getY() << 12) | u.getX();
+        }
+
+        @Override
+        int valueOf(Unit u) {
+            UnitType type = u.getType();
+            return type.canAttack ? u.getHitPoints() * Math.max(type.maxDamage, 1) : u.getHitPoints();
+        }
+
+        @Override
+        void apply(int key, int strength, int sign) {
+            spread(key & 0xFFF, (key >>> 12) & 0xFFF, key >>> 24, sign * (long) strength);
+        }
+    };
+
+    /**
+     * @param cells      the map is pooled into cells x cells cells
+     * @param radius     maximum distance (in tiles) reached by the influence of
+     *                   a unit
+     * @param decay      factor applied to the influence per tile of distance
+     * @param saturation mean influence at which a cell's feature reaches 1
+     */
+    public InfluenceMapFeatureExtractor(int cells, int radius, float decay, float saturation) {
+        if (cells < 1) {
+            throw new RuntimeException("Invalid number of influence cells: " + cells);
+        }
+        if (radius < 0) {
+            throw new RuntimeException("Invalid influence radius: " + radius);
+        }
+        if (decay <= 0 || decay > 1) {
+            throw new RuntimeException("Invalid influence decay (must be in (0, 1]): " + decay);
+        }
+        if (saturation <= 0) {
+            throw new RuntimeException("Invalid influence saturation: " + saturation);
+        }
+        this.cells = cells;
+        this.radius = radius;
+        this.saturation = saturation;
+
+        weights = new long[radius + 1];
+        for (int d = 0; d <= radius; d++) {
+            weights[d] = Math.round(ONE * Math.pow(decay, d));
+        }
+    }
+
+    /**
+     * Creates an extractor with the parameters of another, sharing its schema
+     * and the cells of its tiles if it has seen a map (the influence is
+     * computed from scratch on the first state)
+     *
+     * @param other
+     */
+    private InfluenceMapFeatureExtractor(InfluenceMapFeatureExtractor other) {
+        this.cells = other.cells;
+        this.radius = other.radius;
+        this.saturation = other.saturation;
+        this.weights = other.weights;
+        if (other.schema != null) {
+            width = other.width;
+            height = other.height;
+            unitTypeTable = other.unitTypeTable;
+            cellOf = other.cellOf;
+            tilesPerCell = other.tilesPerCell;
+            influence = new long[cells * cells * 2];
+            schema = other.schema;
+            scratch = new float[schema.size()];
+        }
+    }
+
+    @Override
+    public FeatureExtractor copy() {
+        return new InfluenceMapFeatureExtractor(this);
+    }
+
+    /**
+     * Discards the influence, so that the next state is processed from scratch
+     */
+    @Override
+    public void reset() {
+        tracking = false;
+    }
+
+    @Override
+    public FeatureSchema getSchema(GameState state) {
+        prepare(state);
+        return schema;
+    }
+
+    @Override
+    public Map<String, Feature> getRawFeatures(GameState state, int player) {
+        prepare(state);
+        float[] values = new float[schema.size()];
+        fillRawFeatures(state, player, values);
+        return schema.asMap(values);
+    }
+
+    @Override
+    public Map<String, Feature> getFeatures(GameState state, int player) {
+        prepare(state);
+        float[] values = new float[schema.size()];
+        fillRawFeatures(state, player, values);
+        schema.scale(values);
+        return schema.asMap(values);
+    }
+
+    @Override
+    public void getFeatureVector(GameState state, int player, String[] featureNames, float[] out) {
+        prepare(state);
+
+        if (featureNames != lastFeatureNames) {
+            permutation = schema.permutation(featureNames);
+            lastFeatureNames = featureNames;
+        }
+
+        float[] values = permutation == null ? out : scratch;
+        fillRawFeatures(state, player, values);
+        schema.scale(values);
+        if (permutation != null) {
+            for (int k = 0; k < permutation.length; k++) {
+                if (permutation[k] != -1) {
+                    out[permutation[k]] = scratch[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the schema and the cell of each tile if the map changed
+     *
+     * @param state
+     */
+    private void prepare(GameState state) {
+        PhysicalGameState pgs = state.getPhysicalGameState();
+        if (pgs.getWidth() == width && pgs.getHeight() == height && state.getUnitTypeTable() == unitTypeTable) {
+            return;
+        }
+        width = pgs.getWidth();
+        height = pgs.getHeight();
+        unitTypeTable = state.getUnitTypeTable();
+
+        if (width > 0xFFF || height > 0xFFF) {
+            throw new RuntimeException("Map too large for the influence map: " + width + "x" + height);
+        }
+
+        cellOf = new int[width * height];
+        tilesPerCell = new int[cells * cells];
+        for (int y = 0; y < height; y++) {
+            int yCell = y * cells / height;
+            for (int x = 0; x < width; x++) {
+                int cell = (x * cells / width) * cells + yCell;
+                cellOf[y * width + x] = cell * 2;
+                tilesPerCell[cell]++;
+            }
+        }
+        influence = new long[cells * cells * 2];
+
+        schema = buildSchema();
+        scratch = new float[schema.size()];
+        lastFeatureNames = null;
+        tracking = false;
+    }
+
+    /**
+     * Builds the names and bounds of the features, in the order in which
+     * {@link #fillRawFeatures} writes them: the global features, then the
+     * influence of each cell and player
+     *
+     * @return
+     */
+    private FeatureSchema buildSchema() {
+        List<String> names = new ArrayList<>();
+        List<Float> max = new ArrayList<>();
+
+        names.add(FeatureNames.RESOURCES_OWN);
+        max.add(20f);
+        names.add(FeatureNames.RESOURCES_OPP);
+        max.add(20f);
+        names.add(FeatureNames.GAME_TIME);
+        max.add(3000f);
+        names.add(FeatureNames.BIAS);
+        max.add(1f);
+
+        for (int xCell = 0; xCell < cells; xCell++) {
+            for (int yCell = 0; yCell < cells; yCell++) {
+                for (int player = 0; player < 2; player++) {
+                    names.add(FeatureNames.influencePerCell(xCell, yCell, player));
+                    max.add(saturation);
+                }
+            }
+        }
+
+        float[] minArray = new float[names.size()];
+        float[] maxArray = new float[names.size()];
+        for (int j = 0; j < maxArray.length; j++) {
+            maxArray[j] = max.get(j);
+        }
+        return new FeatureSchema(names, minArray, maxArray);
+    }
+
+    /**
+     * Brings the influence up to date with the units of the state and fills
+     * the array with the features before normalization, in the order of the
+     * schema
+     *
+     * @param state
+     * @param player
+     * @param out
+     */
+    private void fillRawFeatures(GameState state, int player, float[] out) {
+        if (!tracking || state.getTime() < lastTime) {
+            Arrays.fill(influence, 0);
+            tracker.clear();
+            tracking = true;
+        }
+        lastTime = state.getTime();
+
+        tracker.update(state.getPhysicalGameState().getUnits());
+
+        out[0] = state.getPlayer(player).getResources();
+        out[1] = state.getPlayer(1 - player).getResources();
+        out[2] = state.getTime();
+        out[3] = 1;
+
+        for (int cell = 0; cell < tilesPerCell.length; cell++) {
+            // cells with no tiles (more cells than tiles) have no influence
+            float tiles = (float) ONE * Math.max(tilesPerCell[cell], 1);
+            out[4 + cell * 2] = influence[cell * 2] / tiles;
+            out[4 + cell * 2 + 1] = influence[cell * 2 + 1] / tiles;
+        }
+    }
+
+    /**
+     * Adds a strength (negative to remove it) to the influence of a player on
+     * the tiles within radius of (x, y)
+     *
+     * @param x
+     * @param y
+     * @param player
+     * @param strength
+     */
+    private void spread(int x, int y, int player, long strength) {
+        int yFrom = Math.max(y - radius, 0);
+        int yTo = Math.min(y + radius, height - 1);
+        for (int ty = yFrom; ty <= yTo; ty++) {
+            int dy = Math.abs(ty - y);
+            int reach = radius - dy;
+            int xFrom = Math.max(x - reach, 0);
+            int xTo = Math.min(x + reach, width - 1);
+            int row = ty * width;
+            for (int tx = xFrom; tx <= xTo; tx++) {
+                influence[cellOf[row + tx] + player] += strength * weights[dy + Math.abs(tx - x)];
+            }
+        }
+    }
+}
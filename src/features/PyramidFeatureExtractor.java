@@ -0,0 +1,397 @@
+package features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.Unit;
+import rts.units.UnitType;
+import rts.units.UnitTypeTable;
+
+/**
+ * The features of {@link QuadrantModelFeatureExtractor} (unit count per cell,
+ * player and unit type, and average health per cell and player) at several
+ * resolutions at once. For example, levels 1, 2, 3 and 6 divide the map into
+ * 1x1, 2x2, 3x3 and 6x6 cells. The resources, game time and bias features
+ * appear once.
+ *
+ * Each frame builds one summed-area table per player and unit type, holding
+ * the unit count and the sum of hit points. After that, the count or the hit
+ * points of any rectangle take four lookups. The cost of a frame is one pass
+ * over the units plus one pass over the tables of the (player, type) pairs
+ * that have units. It does not depend on the number of levels or cells.
+ *
+ * As in the quadrant model, the cells of a level have size (width / level) x
+ * (height / level), and units beyond the last full cell are not counted at
+ * that level. Unlike in the quadrant model, a level with more cells than tiles
+ * has zero features instead of NaN.
+ *
+ * An instance must be used by a single thread.
+ *
+ */
+public class PyramidFeatureExtractor extends FeatureExtractor {
+
+    private final int[] levels;
+
+    /**
+     * The map (dimensions and unit type table) the tables and schema refer to
+     */
+    private int width = -1;
+    private int height = -1;
+    private UnitTypeTable unitTypeTable;
+
+    private FeatureSchema schema;
+
+    /**
+     * Index of each unit type (by ID) among the non-resource types, or -1 for
+     * resources
+     */
+    private int[] typeIndex;
+    private int typeCount;
+
+    /**
+     * Maximum hit points of each non-resource type
+     */
+    private float[] maxHitPoints;
+
+    /**
+     * Summed-area tables of the unit count and hit points of each (player,
+     * type), at player * typeCount + type: the entry (x, y), at y * (width + 1)
+     * + x, is the sum over the tiles of [0, x) x [0, y)
+     */
+    private int[][] countTables;
+    private int[][] hitPointTables;
+
+    /**
+     * Whether the tables of each (player, type) have units (the others are all
+     * zero)
+     */
+    private boolean[] occupied;
+
+    private String[] lastFeatureNames;
+    private int[] permutation;
+    private float[] scratch;
+
+    /**
+     * @param levels the resolutions: level n divides the map in n x n cells
+     */
+    public PyramidFeatureExtractor(int... levels) {
+        if (levels.length == 0) {
+            throw new RuntimeException("The feature pyramid needs at least one level");
+        }
+        for (int level : levels) {
+            if (level < 1) {
+                throw new RuntimeException("Invalid pyramid level: " + level);
+            }
+        }
+        this.levels = levels.clone();
+    }
+
+    /**
+     * Creates an extractor with the levels of another, sharing its schema and
+     * unit types if it has seen a map (the tables are allocated)
+     *
+     * @param other
+     */
+    private PyramidFeatureExtractor(PyramidFeatureExtractor other) {
+        this.levels = other.levels;
+        if (other.schema != null) {
+            width = other.width;
+            height = other.height;
+            unitTypeTable = other.unitTypeTable;
+            typeIndex = other.typeIndex;
+            typeCount = other.typeCount;
+            maxHitPoints = other.maxHitPoints;
+            schema = other.schema;
+            allocateTables();
+        }
+    }
+
+    @Override
+    public FeatureExtractor copy() {
+        return new PyramidFeatureExtractor(this);
+    }
+
+    /**
+     * Parses a comma-separated list of levels, e.g. "1,2,3,6"
+     *
+     * @param levels
+     * @return
+     */
+    public static int[] parseLevels(String levels) {
+        String[] parts = levels.split(",");
+        int[] parsed = new int[parts.length];
+        for (int l = 0; l < parts.length; l++) {
+            parsed[l] = Integer.parseInt(parts[l].trim());
+        }
+        return parsed;
+    }
+
+    @Override
+    public FeatureSchema getSchema(GameState state) {
+        prepare(state);
+        return schema;
+    }
+
+    @Override
+    public Map<String, Feature> getRawFeatures(GameState state, int player) {
+        prepare(state);
+        float[] values = new float[schema.size()];
+        fillRawFeatures(state, player, values);
+        return schema.asMap(values);
+    }
+
+    @Override
+    public Map<String, Feature> getFeatures(GameState state, int player) {
+        prepare(state);
+        float[] values = new float[schema.size()];
+        fillRawFeatures(state, player, values);
+        schema.scale(values);
+        return schema.asMap(values);
+    }
+
+    @Override
+    public void getFeatureVector(GameState state, int player, String[] featureNames, float[] out) {
+        prepare(state);
+
+        if (featureNames != lastFeatureNames) {
+            permutation = schema.permutation(featureNames);
+            lastFeatureNames = featureNames;
+        }
+
+        float[] values = permutation == null ? out : scratch;
+        fillRawFeatures(state, player, values);
+        schema.scale(values);
+        if (permutation != null) {
+            for (int k = 0; k < permutation.length; k++) {
+                if (permutation[k] != -1) {
+                    out[permutation[k]] = scratch[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the schema and allocates the tables if the map changed
+     *
+     * @param state
+     */
+    private void prepare(GameState state) {
+        PhysicalGameState pgs = state.getPhysicalGameState();
+        if (pgs.getWidth() == width && pgs.getHeight() == height && state.getUnitTypeTable() == unitTypeTable) {
+            return;
+        }
+        width = pgs.getWidth();
+        height = pgs.getHeight();
+        unitTypeTable = state.getUnitTypeTable();
+
+        int maxID = -1;
+        for (UnitType type : unitTypeTable.getUnitTypes()) {
+            maxID = Math.max(maxID, type.ID);
+        }
+        typeIndex = new int[maxID + 1];
+        List<UnitType> types = new ArrayList<>();
+        for (UnitType type : unitTypeTable.getUnitTypes()) {
+            typeIndex[type.ID] = type.isResource ? -1 : types.size();
+            if (!type.isResource) {
+                types.add(type);
+            }
+        }
+        typeCount = types.size();
+        maxHitPoints = new float[typeCount];
+        for (int t = 0; t < typeCount; t++) {
+            maxHitPoints[t] = types.get(t).hp;
+        }
+
+        schema = buildSchema(types);
+        allocateTables();
+        lastFeatureNames = null;
+    }
+
+    /**
+     * Allocates the tables and buffers of the current map and schema
+     */
+    private void allocateTables() {
+        int tableSize = (width + 1) * (height + 1);
+        countTables = new int[2 * typeCount][tableSize];
+        hitPointTables = new int[2 * typeCount][tableSize];
+        occupied = new boolean[2 * typeCount];
+        scratch = new float[schema.size()];
+    }
+
+    /**
+     * Builds the names and bounds of the features, in the order in which
+     * {@link #fillRawFeatures} writes them: the global features, then, for each
+     * level, cell and player, the average health followed by the count of each
+     * unit type
+     *
+     * @param types the non-resource unit types
+     * @return
+     */
+    private FeatureSchema buildSchema(List<UnitType> types) {
+        List<String> names = new ArrayList<>();
+        List<Float> max = new ArrayList<>();
+
+        names.add(FeatureNames.RESOURCES_OWN);
+        max.add(20f);
+        names.add(FeatureNames.RESOURCES_OPP);
+        max.add(20f);
+        names.add(FeatureNames.GAME_TIME);
+        max.add(3000f);
+        names.add(FeatureNames.BIAS);
+        max.add(1f);
+
+        for (int level : levels) {
+            int tilesPerCell = (width / level) * (height / level);
+
+            for (int xCell = 0; xCell < level; xCell++) {
+                for (int yCell = 0; yCell < level; yCell++) {
+                    for (int player = 0; player < 2; player++) {
+                        names.add(FeatureNames.avgHealthPerCell(level, xCell, yCell, player));
+                        max.add(1f);
+
+                        for (UnitType type : types) {
+                            names.add(FeatureNames.unitsOfTypePerCell(level, xCell, yCell, player, type));
+                            // empty cells (level larger than the map) have a unit range, to avoid NaN
+                            max.add((float) Math.max(tilesPerCell, 1));
+                        }
+                    }
+                }
+            }
+        }
+
+        float[] minArray = new float[names.size()];
+        float[] maxArray = new float[names.size()];
+        for (int j = 0; j < maxArray.length; j++) {
+            maxArray[j] = max.get(j);
+        }
+        return new FeatureSchema(names, minArray, maxArray);
+    }
+
+    /**
+     * Fills the array with the features before normalization, in the order of
+     * the schema
+     *
+     * @param state
+     * @param player
+     * @param out
+     */
+    private void fillRawFeatures(GameState state, int player, float[] out) {
+        buildTables(state.getPhysicalGameState());
+
+        out[0] = state.getPlayer(player).getResources();
+        out[1] = state.getPlayer(1 - player).getResources();
+        out[2] = state.getTime();
+        out[3] = 1;
+
+        int j = 4;
+        for (int level : levels) {
+            int cellWidth = width / level;
+            int cellHeight = height / level;
+
+            for (int xCell = 0; xCell < level; xCell++) {
+                for (int yCell = 0; yCell < level; yCell++) {
+                    int x0 = xCell * cellWidth;
+                    int y0 = yCell * cellHeight;
+                    int x1 = x0 + cellWidth;
+                    int y1 = y0 + cellHeight;
+
+                    for (int p = 0; p < 2; p++) {
+                        int healthPosition = j++;
+                        int units = 0;
+                        float hpSum = 0;
+
+                        for (int t = 0; t < typeCount; t++) {
+                            int plane = p * typeCount + t;
+                            int count = 0;
+                            if (occupied[plane]) {
+                                count = rectangleSum(countTables[plane], x0, y0, x1, y1);
+                                if (count != 0) {
+                                    units += count;
+                                    hpSum += rectangleSum(hitPointTables[plane], x0, y0, x1, y1) / maxHitPoints[t];
+                                }
+                            }
+                            out[j++] = count;
+                        }
+
+                        out[healthPosition] = units != 0 ? hpSum / units : 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the summed-area tables with the units of the map
+     *
+     * @param pgs
+     */
+    private void buildTables(PhysicalGameState pgs) {
+        int stride = width + 1;
+
+        for (int plane = 0; plane < occupied.length; plane++) {
+            if (occupied[plane]) {
+                Arrays.fill(countTables[plane], 0);
+                Arrays.fill(hitPointTables[plane], 0);
+                occupied[plane] = false;
+            }
+        }
+
+        // each unit is added to the entry just past its tile
+        for (Unit u : pgs.getUnits()) {
+            int t = typeIndex[u.getType().ID];
+            if (t == -1)
+                continue; // ignores resources
+
+            int plane = u.getPlayer() * typeCount + t;
+            int position = (u.getY() + 1) * stride + u.getX() + 1;
+            countTables[plane][position]++;
+            hitPointTables[plane][position] += u.getHitPoints();
+            occupied[plane] = true;
+        }
+
+        // turns the tiles into prefix sums, row by row
+        for (int plane = 0; plane < occupied.length; plane++) {
+            if (occupied[plane]) {
+                integrate(countTables[plane], stride);
+                integrate(hitPointTables[plane], stride);
+            }
+        }
+    }
+
+    /**
+     * Replaces the tile values of a table (entry (x + 1, y + 1) holding tile
+     * (x, y)) by their sums over [0, x + 1) x [0, y + 1)
+     *
+     * @param table
+     * @param stride
+     */
+    private void integrate(int[] table, int stride) {
+        for (int y = 1; y <= height; y++) {
+            int rowSum = 0;
+            int row = y * stride;
+            for (int x = 1; x <= width; x++) {
+                rowSum += table[row + x];
+                table[row + x] = table[row - stride + x] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * Returns the sum over the tiles of [x0, x1) x [y0, y1)
+     *
+     * @param table
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @return
+     */
+    private int rectangleSum(int[] table, int x0, int y0, int x1, int y1) {
+        int stride = width + 1;
+        return table[y1 * stride + x1] - table[y0 * stride + x1] - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+}
@@ -1,94 +1,200 @@
 package features;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import rts.GameState;
+import rts.PhysicalGameState;
 import rts.units.Unit;
 import rts.units.UnitType;
+import rts.units.UnitTypeTable;
 
 /**
  * Extract features from a microRTS {@link GameState} using the IJCAI-18 paper
  * model, where most features are related to material advantage in each map
  * quadrant. See:
- * 
+ *
  * Tavares, Anbalagan, Marcolino, and Chaimowicz. Algorithms or Actions? A Study
  * in Large-Scale Reinforcement Learning. In IJCAI 2018, pages 2717--2723.
- * 
+ *
+ * The features of a map are described by a {@link FeatureSchema}, built once
+ * per (map size, unit type table, number of quadrants) and shared by all
+ * extractors of the process.
+ *
  * @author anderson
  *
  */
 public class QuadrantModelFeatureExtractor extends FeatureExtractor {
     int numQuadrants;
 
-    public QuadrantModelFeatureExtractor(int numQuadrants) {
-        this.numQuadrants = numQuadrants;
+    /**
+     * Schemas already built, by (map size, unit type table, number of quadrants)
+     */
+    private static final Map<SchemaKey, FeatureSchema> schemas = new ConcurrentHashMap<>();
 
-    }
+    /**
+     * Layout of the features of the last map (dimensions and unit type table)
+     * seen by {@link #getFeatureVector}
+     */
+    Layout layout;
 
     /**
-     * Initializes the features from the given state. Feature values are zero, but
-     * max and min are set accordingly
-     * 
-     * @param state
-     * @return
+     * Number of units of each (quadrant, player) of the current state, reused
      */
-    private Map<String, Feature> initializeFeatures(GameState state) {
-        // initializes the features (values will be set within getFeatures)
-        Map<String, Feature> features = new HashMap<>();
+    private int[] unitCount;
 
-        // adds the 'global' features
-        features.put(FeatureNames.RESOURCES_OWN, new Feature(FeatureNames.RESOURCES_OWN, 0, 0, 20));
-        features.put(FeatureNames.RESOURCES_OPP, new Feature(FeatureNames.RESOURCES_OPP, 0, 0, 20));
-        features.put(FeatureNames.GAME_TIME, new Feature(FeatureNames.GAME_TIME, 0, 0, 3000));
-        features.put(FeatureNames.BIAS, new Feature(FeatureNames.BIAS, 1, 0, 1));
+    /**
+     * The feature names last given to {@link #getFeatureVector} and, for each
+     * position of the layout, the position of its feature in them (null if they
+     * are in the layout order)
+     */
+    private String[] lastFeatureNames;
+    private int[] permutation;
+    private float[] scratch;
 
-        // adds the 'per-quadrant' features
-        int horizQuadLength = state.getPhysicalGameState().getWidth() / numQuadrants;
-        int vertQuadLength = state.getPhysicalGameState().getHeight() / numQuadrants;
+    /**
+     * Features of the current frame counted for both players of the match, if
+     * shared (see {@link UnitCensus})
+     */
+    UnitCensus census;
 
-        int tilesPerQuadrant = horizQuadLength * vertQuadLength;
+    public QuadrantModelFeatureExtractor(int numQuadrants) {
+        this.numQuadrants = numQuadrants;
 
-        // FIXME hardcoded to the HP of the base (which is the highest in microRTS)
-        int maxHitPoints = 10;
+    }
 
-        // the first two for traverse the quadrants
-        for (int horizQuad = 0; horizQuad < numQuadrants; horizQuad++) {
-            for (int vertQuad = 0; vertQuad < numQuadrants; vertQuad++) {
+    /**
+     * Position of each feature of the schema for a given map and unit type
+     * table: the 4 global features come first, then, for each quadrant and
+     * player, the average health followed by the count of each (non-resource)
+     * unit type
+     */
+    static class Layout {
+        final int width;
+        final int height;
+        final UnitTypeTable unitTypeTable;
+
+        final int horizQuadLength;
+        final int vertQuadLength;
+        final int tilesPerQuadrant;
+
+        /**
+         * Offset of each unit type (by ID) within the features of a (quadrant,
+         * player), or -1 for resources
+         */
+        final int[] typeOffset;
+
+        /**
+         * Number of features of each (quadrant, player)
+         */
+        final int stride;
+
+        final int featureCount;
+
+        final FeatureSchema schema;
+
+        Layout(PhysicalGameState pgs, UnitTypeTable unitTypeTable, int numQuadrants) {
+            width = pgs.getWidth();
+            height = pgs.getHeight();
+            this.unitTypeTable = unitTypeTable;
+
+            horizQuadLength = width / numQuadrants;
+            vertQuadLength = height / numQuadrants;
+            tilesPerQuadrant = horizQuadLength * vertQuadLength;
+
+            int maxID = -1;
+            for (UnitType type : unitTypeTable.getUnitTypes()) {
+                maxID = Math.max(maxID, type.ID);
+            }
+            typeOffset = new int[maxID + 1];
+            int offset = 1; // the average health comes first
+            for (UnitType type : unitTypeTable.getUnitTypes()) {
+                typeOffset[type.ID] = type.isResource ? -1 : offset++;
+            }
+            stride = offset;
+            featureCount = 4 + numQuadrants * numQuadrants * 2 * stride;
+            schema = schema(pgs, unitTypeTable, numQuadrants);
+        }
 
-                // the third for traverses the players
-                for (int player = 0; player < 2; player++) {
-                    String healthFeatName = FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, player);
+        boolean matches(PhysicalGameState pgs, UnitTypeTable unitTypeTable) {
+            return width == pgs.getWidth() && height == pgs.getHeight() && this.unitTypeTable == unitTypeTable;
+        }
+    }
 
-                    features.put(healthFeatName, new Feature(healthFeatName, 0, 0, 1));
+    /**
+     * Identifies a schema. Unit type tables are compared by identity.
+     */
+    private static class SchemaKey {
+        final int width;
+        final int height;
+        final UnitTypeTable unitTypeTable;
+        final int numQuadrants;
+
+        SchemaKey(int width, int height, UnitTypeTable unitTypeTable, int numQuadrants) {
+            this.width = width;
+            this.height = height;
+            this.unitTypeTable = unitTypeTable;
+            this.numQuadrants = numQuadrants;
+        }
 
-                    // the fourth for traverses the unit types
-                    for (UnitType type : state.getUnitTypeTable().getUnitTypes()) {
-                        if (type.isResource)
-                            continue; // ignores resources
-                        String countFeatName = FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, player, type);
-                        features.put(countFeatName, new Feature(countFeatName, 0, 0, tilesPerQuadrant));
-                    }
-                }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SchemaKey)) {
+                return false;
             }
+            SchemaKey other = (SchemaKey) o;
+            return width == other.width && height == other.height && unitTypeTable == other.unitTypeTable
+                    && numQuadrants == other.numQuadrants;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((width * 31 + height) * 31 + numQuadrants) * 31 + System.identityHashCode(unitTypeTable);
         }
+    }
 
-        return features;
+    /**
+     * Returns the schema of a map, building it upon the first request
+     *
+     * @param pgs
+     * @param unitTypeTable
+     * @param numQuadrants
+     * @return
+     */
+    static FeatureSchema schema(PhysicalGameState pgs, UnitTypeTable unitTypeTable, int numQuadrants) {
+        SchemaKey key = new SchemaKey(pgs.getWidth(), pgs.getHeight(), unitTypeTable, numQuadrants);
+        return schemas.computeIfAbsent(key, k -> buildSchema(pgs, unitTypeTable, numQuadrants));
     }
 
-    public List<String> getFeatureNames(GameState state) {
-        List<String> featureNames = new ArrayList<>();
+    /**
+     * Builds the names and bounds of the features of a map
+     *
+     * @param pgs
+     * @param unitTypeTable
+     * @param numQuadrants
+     * @return
+     */
+    private static FeatureSchema buildSchema(PhysicalGameState pgs, UnitTypeTable unitTypeTable, int numQuadrants) {
+        List<String> names = new ArrayList<>();
+        List<Float> max = new ArrayList<>();
 
-        // weights are initialized randomly within [-1, 1]
-        featureNames.add(FeatureNames.RESOURCES_OWN);
-        featureNames.add(FeatureNames.RESOURCES_OPP);
-        featureNames.add(FeatureNames.GAME_TIME);
-        featureNames.add(FeatureNames.BIAS);
+        // adds the 'global' features
+        names.add(FeatureNames.RESOURCES_OWN);
+        max.add(20f);
+        names.add(FeatureNames.RESOURCES_OPP);
+        max.add(20f);
+        names.add(FeatureNames.GAME_TIME);
+        max.add(3000f);
+        names.add(FeatureNames.BIAS);
+        max.add(1f);
 
         // adds the 'per-quadrant' features
+        int horizQuadLength = pgs.getWidth() / numQuadrants;
+        int vertQuadLength = pgs.getHeight() / numQuadrants;
+
+        int tilesPerQuadrant = horizQuadLength * vertQuadLength;
 
         // the first two for traverse the quadrants
         for (int horizQuad = 0; horizQuad < numQuadrants; horizQuad++) {
@@ -96,104 +202,201 @@ public class QuadrantModelFeatureExtractor extends FeatureExtractor {
 
                 // the third for traverses the players
                 for (int player = 0; player < 2; player++) {
-                    String healthFeatName = FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, player);
-
-                    featureNames.add(healthFeatName);
+                    names.add(FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, player));
+                    max.add(1f);
 
                     // the fourth for traverses the unit types
-                    for (UnitType type : state.getUnitTypeTable().getUnitTypes()) {
+                    for (UnitType type : unitTypeTable.getUnitTypes()) {
                         if (type.isResource)
                             continue; // ignores resources
-                        String countFeatName = FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, player, type);
-                        featureNames.add(countFeatName);
+                        names.add(FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, player, type));
+                        max.add((float) tilesPerQuadrant);
                     }
                 }
             }
         }
 
-        return featureNames;
+        // all features have zero as lower bound
+        float[] minArray = new float[names.size()];
+        float[] maxArray = new float[names.size()];
+        for (int j = 0; j < maxArray.length; j++) {
+            maxArray[j] = max.get(j);
+        }
+        return new FeatureSchema(names, minArray, maxArray);
     }
 
-    public Map<String, Feature> getRawFeatures(GameState state, int player) {
+    @Override
+    public FeatureSchema getSchema(GameState state) {
+        return schema(state.getPhysicalGameState(), state.getUnitTypeTable(), numQuadrants);
+    }
 
-        // receives the features with no values yet (their max and min are initialized,
-        // though)
-        Map<String, Feature> features = initializeFeatures(state);
+    /**
+     * The schemas are shared by every instance (see {@link #schema}), so the
+     * copy only rebuilds its layout on the first state.
+     */
+    @Override
+    public FeatureExtractor copy() {
+        return new QuadrantModelFeatureExtractor(numQuadrants);
+    }
 
-        // gets the opponent's index:
-        int opponent = 1 - player;
+    /**
+     * Returns a view of the features (truncated to their bounds, but not
+     * normalized). Meant for logging: {@link #getFeatureVector} does not build
+     * it.
+     */
+    @Override
+    public Map<String, Feature> getRawFeatures(GameState state, int player) {
+        Layout layout = layoutFor(state);
+        float[] values = new float[layout.featureCount];
+        fillRawFeatures(state, player, state.getPhysicalGameState(), values);
+        return layout.schema.asMap(values);
+    }
 
-        // divides the map in quadrants
-        int horizQuadLength = state.getPhysicalGameState().getWidth() / numQuadrants;
-        int vertQuadLength = state.getPhysicalGameState().getHeight() / numQuadrants;
+    /**
+     * Returns a view of the normalized features. Meant for logging:
+     * {@link #getFeatureVector} does not build it.
+     */
+    @Override
+    public Map<String, Feature> getFeatures(GameState state, int player) {
+        Layout layout = layoutFor(state);
+        float[] values = new float[layout.featureCount];
+        fillFeatures(state, player, state.getPhysicalGameState(), values);
+        return layout.schema.asMap(values);
+    }
 
-        // for each quadrant, counts the number of units of each type per player
-        for (int horizQuad = 0; horizQuad < numQuadrants; horizQuad++) {
-            for (int vertQuad = 0; vertQuad < numQuadrants; vertQuad++) {
+    /**
+     * Bins every unit into its quadrant, player and type in a single pass over
+     * the units, writing straight into the array, and normalizes the values in
+     * place with the bounds of the schema. If the extractor shares a
+     * {@link UnitCensus}, the features are read from it instead.
+     */
+    @Override
+    public void getFeatureVector(GameState state, int player, String[] featureNames, float[] out) {
+        Layout layout = layoutFor(state);
 
-                // arrays counting the sum of hit points and number of units owned by each
-                // player
-                float hpSum[] = new float[2];
-                int unitCount[] = new int[2];
-
-                // a collection of units in this quadrant:
-                Collection<Unit> unitsInQuad = state.getPhysicalGameState().getUnitsInRectangle(
-                        horizQuad * horizQuadLength, vertQuad * vertQuadLength, horizQuadLength, vertQuadLength);
-
-                // initializes the unit count of each type and player as zero
-                // also initializes the sum of HP of units owned per player as zero
-                for (int p = 0; p < 2; p++) { // p for each player
-                    // unitCountPerQuad.put(p, new HashMap<>());
-                    hpSum[p] = 0;
-                    unitCount[p] = 0;
-
-                    /*
-                     * for(UnitType type : state.getUnitTypeTable().getUnitTypes()){ //type for each
-                     * unit type //unitCountPerQuad.get(p).put(type, 0); if(type.isResource)
-                     * continue; //ignores resources
-                     * features.put(FeatureNames.unitTypeCountPerQuad(horizQuad, vertQuad, p, type),
-                     * 0.0f);
-                     * 
-                     * }
-                     */
+        if (featureNames != lastFeatureNames) {
+            permutation = layout.schema.permutation(featureNames);
+            lastFeatureNames = featureNames;
+        }
+
+        float[] values = permutation == null ? out : scratch;
+        if (census != null) {
+            census.fill(state, player, values);
+        } else {
+            fillFeatures(state, player, state.getPhysicalGameState(), values);
+        }
+        if (permutation != null) {
+            for (int k = 0; k < permutation.length; k++) {
+                if (permutation[k] != -1) {
+                    out[permutation[k]] = scratch[k];
                 }
+            }
+        }
+    }
 
-                // traverses the list of units in quadrant, incrementing their feature count
-                for (Unit u : unitsInQuad) {
-                    if (u.getType().isResource)
-                        continue; // ignores resources
+    /**
+     * Returns the layout of the state's map, replacing the current one if the
+     * map changed
+     *
+     * @param state
+     * @return
+     */
+    Layout layoutFor(GameState state) {
+        PhysicalGameState pgs = state.getPhysicalGameState();
+        if (layout == null || !layout.matches(pgs, state.getUnitTypeTable())) {
+            layout = new Layout(pgs, state.getUnitTypeTable(), numQuadrants);
+            unitCount = new int[numQuadrants * numQuadrants * 2];
+            scratch = new float[layout.featureCount];
+            lastFeatureNames = null;
+        }
+        return layout;
+    }
 
-                    unitCount[u.getPlayer()]++;
-                    hpSum[u.getPlayer()] += u.getHitPoints() / (float)u.getType().hp;
+    /**
+     * Fills the array with the normalized features, in the order of the schema
+     *
+     * @param state
+     * @param player
+     * @param pgs
+     * @param out
+     */
+    void fillFeatures(GameState state, int player, PhysicalGameState pgs, float[] out) {
+        fillRawFeatures(state, player, pgs, out);
+        layout.schema.scale(out);
+    }
 
-                    String name = FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, u.getPlayer(), u.getType());
+    /**
+     * Fills the array with the features before normalization, in the order of
+     * the schema
+     *
+     * @param state
+     * @param player
+     * @param pgs
+     * @param out
+     */
+    private void fillRawFeatures(GameState state, int player, PhysicalGameState pgs, float[] out) {
+        Layout layout = this.layout;
+        int stride = layout.stride;
 
-                    // counts and increment the number of the given unit in the current quadrant
-                    Feature typeCountPerQuadrant = features.get(name);
-                    typeCountPerQuadrant.setValue(1 + typeCountPerQuadrant.getValue());
-                    // features.put(name, features.get(name) + 1 );
-                }
+        // the health features accumulate the sum of hit points until averaged
+        for (int j = 4; j < layout.featureCount; j++) {
+            out[j] = 0;
+        }
+        for (int cell = 0; cell < unitCount.length; cell++) {
+            unitCount[cell] = 0;
+        }
 
-                // computes the average HP of units owned by each player
-                for (int p = 0; p < 2; p++) { // p for each player
-                    float avgHP = unitCount[p] != 0 ? hpSum[p] / unitCount[p] : 0;
-                    Feature avgHealthInQuad = features.get(FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, p));
-                    avgHealthInQuad.setValue(avgHP);
-                    // features.put(FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, p), avgHP);
+        // if the map is smaller than the quadrant division, no unit is in a quadrant
+        if (layout.horizQuadLength > 0 && layout.vertQuadLength > 0) {
+            for (Unit u : pgs.getUnits()) {
+                if (u.getType().isResource)
+                    continue; // ignores resources
+
+                // units beyond the last full quadrant are in no quadrant
+                int horizQuad = u.getX() / layout.horizQuadLength;
+                int vertQuad = u.getY() / layout.vertQuadLength;
+                if (horizQuad >= numQuadrants || vertQuad >= numQuadrants) {
+                    continue;
                 }
 
+                int cell = ((horizQuad * numQuadrants) + vertQuad) * 2 + u.getPlayer();
+                int base = 4 + cell * stride;
+                unitCount[cell]++;
+                out[base] += u.getHitPoints() / (float) u.getType().hp;
+                out[base + layout.typeOffset[u.getType().ID]]++;
             }
         }
 
-        // sets the resources owned by the players
-        features.get(FeatureNames.RESOURCES_OWN).setValue((float) state.getPlayer(player).getResources());
-        features.get(FeatureNames.RESOURCES_OPP).setValue((float) state.getPlayer(opponent).getResources());
+        // computes the average HP of units owned by each player in each quadrant
+        for (int cell = 0; cell < unitCount.length; cell++) {
+            int base = 4 + cell * stride;
+            out[base] = unitCount[cell] != 0 ? out[base] / unitCount[cell] : 0;
+        }
 
-        // sets game time
-        features.get(FeatureNames.GAME_TIME).setValue((float) state.getTime());
+        // sets the resources owned by the players, game time and bias
+        out[0] = state.getPlayer(player).getResources();
+        out[1] = state.getPlayer(1 - player).getResources();
+        out[2] = state.getTime();
+        out[3] = 1;
 
-        return features;
+        // truncates to the bounds, as Feature.setValue does
+        for (int j = 0; j < layout.featureCount; j++) {
+            out[j] = Math.max(layout.schema.getMin(j), Math.min(out[j], layout.schema.getMax(j)));
+        }
+    }
 
+    /**
+     * Truncates the value to [min, max] and scales it to [0, 1], with the same
+     * float arithmetic as {@link Feature}
+     *
+     * @param value
+     * @param min
+     * @param max
+     * @return
+     */
+    static float scale(float value, float min, float max) {
+        value = Math.max(min, Math.min(value, max));
+        return (value - min) / (max - min);
     }
 
 }
@@ -0,0 +1,145 @@
+package features;
+
+/**
+ * The non-zero entries of a feature vector, as (index, value) pairs. Adding a
+ * value to an index that is already present accumulates it, so each index
+ * appears once. Clearing costs proportionally to the number of entries, not to
+ * the dimension of the vector.
+ *
+ * Instances are reused: they allocate only when they grow.
+ */
+public class SparseFeatures {
+
+    private int[] indices;
+    private float[] values;
+    private int size;
+
+    /**
+     * For each index of the vector, its position in {@link #indices} or -1
+     */
+    private final int[] positions;
+
+    /**
+     * Creates an empty vector
+     *
+     * @param dimension number of features (i.e., indices range from 0 to
+     *                  dimension - 1)
+     */
+    public SparseFeatures(int dimension) {
+        indices = new int[16];
+        values = new float[16];
+        positions = new int[dimension];
+        for (int j = 0; j < dimension; j++) {
+            positions[j] = -1;
+        }
+        size = 0;
+    }
+
+    public int getDimension() {
+        return positions.length;
+    }
+
+    /**
+     * Returns the number of entries
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the feature index of the k-th entry
+     *
+     * @param k
+     * @return
+     */
+    public int index(int k) {
+        return indices[k];
+    }
+
+    /**
+     * Returns the value of the k-th entry
+     *
+     * @param k
+     * @return
+     */
+    public float value(int k) {
+        return values[k];
+    }
+
+    /**
+     * Adds a value to a feature
+     *
+     * @param index
+     * @param value
+     */
+    public void add(int index, float value) {
+        int position = positions[index];
+        if (position >= 0) {
+            values[position] += value;
+            return;
+        }
+
+        if (size == indices.length) {
+            int[] largerIndices = new int[2 * size];
+            float[] largerValues = new float[2 * size];
+            System.arraycopy(indices, 0, largerIndices, 0, size);
+            System.arraycopy(values, 0, largerValues, 0, size);
+            indices = largerIndices;
+            values = largerValues;
+        }
+        positions[index] = size;
+        indices[size] = index;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        for (int k = 0; k < size; k++) {
+            positions[indices[k]] = -1;
+        }
+        size = 0;
+    }
+
+    /**
+     * Replaces the entries by the non-zero values of a dense vector (in index
+     * order)
+     *
+     * @param dense
+     */
+    public void gather(float[] dense) {
+        clear();
+        for (int j = 0; j < dense.length; j++) {
+            if (dense[j] != 0) {
+                add(j, dense[j]);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries into a dense vector, whose other positions must be zero
+     *
+     * @param dense
+     */
+    public void scatter(float[] dense) {
+        for (int k = 0; k < size; k++) {
+            dense[indices[k]] = values[k];
+        }
+    }
+
+    /**
+     * Sets the positions of the entries in a dense vector back to zero (undoes
+     * {@link #scatter})
+     *
+     * @param dense
+     */
+    public void unscatter(float[] dense) {
+        for (int k = 0; k < size; k++) {
+            dense[indices[k]] = 0;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package features;
+
+import rts.GameState;
+
+/**
+ * The quadrant model features of a frame, counted once and shared by the
+ * quadrant model extractors of both players of a match in which they see the
+ * same state (e.g., self-play with full observability).
+ *
+ * The per-quadrant features refer to players 0 and 1 by number, so they are
+ * the same from either point of view. Only the own and opponent resources
+ * depend on the player: the vector is kept from the point of view of player 0,
+ * and the two are swapped for player 1.
+ *
+ * The census is taken lazily: the first extractor asking for the features of
+ * a frame counts its units, and the other one copies them. Frames without a
+ * decision (see rl.sticky_actions) are never counted. As {@link FeatureCache},
+ * the census is keyed on the game time: it answers for any state of the match
+ * at the frame it holds (e.g., the state and the clones the learner keeps of
+ * it), and is taken again for a state of another frame. The census of a match
+ * must be read by the thread that runs the match.
+ *
+ */
+public class UnitCensus {
+
+    /**
+     * Extracts the features of each frame, from the point of view of player 0
+     */
+    private final QuadrantModelFeatureExtractor extractor;
+
+    private float[] vector = new float[0];
+
+    /**
+     * Game time of the frame in {@link #vector}, or -1 if none
+     */
+    private int time = -1;
+
+    private UnitCensus(int numQuadrants) {
+        extractor = new QuadrantModelFeatureExtractor(numQuadrants);
+    }
+
+    /**
+     * Returns a census shared by the two extractors, or null if they do not
+     * extract the same quadrant model (in which case each one keeps computing
+     * its own features)
+     *
+     * @param first
+     * @param second
+     * @return
+     */
+    public static UnitCensus share(FeatureExtractor first, FeatureExtractor second) {
+        if (!(first instanceof QuadrantModelFeatureExtractor) || !(second instanceof QuadrantModelFeatureExtractor)) {
+            return null;
+        }
+        QuadrantModelFeatureExtractor a = (QuadrantModelFeatureExtractor) first;
+        QuadrantModelFeatureExtractor b = (QuadrantModelFeatureExtractor) second;
+        if (a.numQuadrants != b.numQuadrants) {
+            return null;
+        }
+
+        UnitCensus census = new UnitCensus(a.numQuadrants);
+        a.census = census;
+        b.census = census;
+        return census;
+    }
+
+    /**
+     * Stops sharing this census with the given extractors
+     *
+     * @param first
+     * @param second
+     */
+    public void release(FeatureExtractor first, FeatureExtractor second) {
+        for (FeatureExtractor extractor : new FeatureExtractor[] { first, second }) {
+            if (extractor instanceof QuadrantModelFeatureExtractor
+                    && ((QuadrantModelFeatureExtractor) extractor).census == this) {
+                ((QuadrantModelFeatureExtractor) extractor).census = null;
+            }
+        }
+        time = -1;
+    }
+
+    /**
+     * Counts the units of a frame
+     *
+     * @param state
+     */
+    private void take(GameState state) {
+        QuadrantModelFeatureExtractor.Layout layout = extractor.layoutFor(state);
+        if (vector.length != layout.featureCount) {
+            vector = new float[layout.featureCount];
+        }
+        extractor.fillFeatures(state, 0, state.getPhysicalGameState(), vector);
+        time = state.getTime();
+    }
+
+    /**
+     * Returns whether the census holds the features of the given state (its
+     * frame, on the same map)
+     *
+     * @param state
+     * @return
+     */
+    private boolean covers(GameState state) {
+        return time == state.getTime() && extractor.layout != null
+                && extractor.layout.matches(state.getPhysicalGameState(), state.getUnitTypeTable());
+    }
+
+    /**
+     * Fills the array with the normalized features of the state, in layout
+     * order, from the point of view of the given player, counting the units of
+     * its frame first if the census does not hold them yet
+     *
+     * @param state
+     * @param player
+     * @param out
+     */
+    void fill(GameState state, int player, float[] out) {
+        if (!covers(state)) {
+            take(state);
+        }
+        System.arraycopy(vector, 0, out, 0, vector.length);
+        if (player == 1) {
+            float own = out[0];
+            out[0] = out[1];
+            out[1] = own;
+        }
+    }
+}
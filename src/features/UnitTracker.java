@@ -0,0 +1,220 @@
+package features;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import rts.units.Unit;
+
+/**
+ * Finds the units that changed between two frames, for extractors that update
+ * their features incrementally. Each unit contributes a value (e.g., its hit
+ * points) under a key (e.g., its quadrant, player and type, or -1 if it
+ * contributes to no feature). {@link #update} calls {@link #apply} to remove
+ * the previous contribution and add the new one of each unit that was created,
+ * died, moved or whose value changed.
+ *
+ * The comparison follows the order of the unit list, which microRTS keeps
+ * between frames, and updates the units in place while the order holds. A map
+ * from ID to previous unit is built only when a unit is created or dies.
+ *
+ */
+abstract class UnitTracker {
+
+    /**
+     * ID, position (x and y packed in an int), key and value of the units of
+     * the previous call, in the order of the unit list, and the same for the
+     * current call (swapped afterwards)
+     */
+    private long[] ids = new long[0];
+    private int[] coords = new int[0];
+    private int[] keys = new int[0];
+    private int[] values = new int[0];
+    private int size;
+
+    private long[] nextIds = new long[0];
+    private int[] nextCoords = new int[0];
+    private int[] nextKeys = new int[0];
+    private int[] nextValues = new int[0];
+
+    /**
+     * Whether each previous unit is still in the state
+     */
+    private boolean[] seen = new boolean[0];
+
+    /**
+     * Position of each previous unit by ID, built only if the unit list is out
+     * of order
+     */
+    private final Map<Long, Integer> positions = new HashMap<>();
+
+    /**
+     * Returns the key under which a unit contributes, or -1 if it contributes
+     * to no feature. It must depend only on the unit's position and on what
+     * does not change during a match (e.g., its type and player).
+     *
+     * @param u
+     * @return
+     */
+    abstract int keyOf(Unit u);
+
+    /**
+     * Returns the contribution of a unit
+     *
+     * @param u
+     * @return
+     */
+    abstract int valueOf(Unit u);
+
+    /**
+     * Adds (sign = 1) or removes (sign = -1) a contribution. Not called for key
+     * -1.
+     *
+     * @param key
+     * @param value
+     * @param sign
+     */
+    abstract void apply(int key, int value, int sign);
+
+    /**
+     * Forgets the previous units, so that the next update adds every unit
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Compares the units with the previous ones, applying the changes
+     *
+     * @param units
+     */
+    void update(List<Unit> units) {
+        ensureCapacity(units.size());
+        positions.clear();
+
+        // while the units are in the previous order, they are updated in place
+        boolean inPlace = true;
+        int prefix = 0;
+
+        int cursor = 0;
+        int count = 0;
+        for (Unit u : units) {
+            long id = u.getID();
+            int coord = (u.getX() << 16) | u.getY();
+            int value = valueOf(u);
+
+            if (inPlace) {
+                if (count < size && ids[count] == id) {
+                    // the key is computed again only if the unit moved or changed
+                    if (coords[count] != coord || values[count] != value) {
+                        int key = keyOf(u);
+                        if (keys[count] != key || values[count] != value) {
+                            change(keys[count], values[count], key, value);
+                        }
+                        coords[count] = coord;
+                        keys[count] = key;
+                        values[count] = value;
+                    }
+                    count++;
+                    continue;
+                }
+
+                // a unit was created or died: the rest is matched by ID into the next arrays
+                inPlace = false;
+                prefix = count;
+                cursor = count;
+                System.arraycopy(ids, 0, nextIds, 0, prefix);
+                System.arraycopy(coords, 0, nextCoords, 0, prefix);
+                System.arraycopy(keys, 0, nextKeys, 0, prefix);
+                System.arraycopy(values, 0, nextValues, 0, prefix);
+            }
+
+            // the previous position of this unit: usually the next in order
+            int previous = -1;
+            if (cursor < size && ids[cursor] == id) {
+                previous = cursor;
+            } else if (prefix < size) {
+                if (positions.isEmpty()) {
+                    for (int k = prefix; k < size; k++) {
+                        positions.put(ids[k], k);
+                    }
+                }
+                Integer position = positions.get(id);
+                if (position != null) {
+                    previous = position;
+                }
+            }
+
+            int key = keyOf(u);
+            if (previous == -1) {
+                change(-1, 0, key, value);
+            } else {
+                seen[previous] = true;
+                cursor = previous + 1;
+                if (keys[previous] != key || values[previous] != value) {
+                    change(keys[previous], values[previous], key, value);
+                }
+            }
+
+            nextIds[count] = id;
+            nextCoords[count] = coord;
+            nextKeys[count] = key;
+            nextValues[count] = value;
+            count++;
+        }
+
+        if (inPlace) {
+            // the units at the end of the previous list are gone
+            for (int k = count; k < size; k++) {
+                change(keys[k], values[k], -1, 0);
+            }
+            size = count;
+            return;
+        }
+
+        // the units that are gone
+        for (int k = prefix; k < size; k++) {
+            if (seen[k]) {
+                seen[k] = false;
+            } else {
+                change(keys[k], values[k], -1, 0);
+            }
+        }
+
+        long[] swapIds = ids;
+        ids = nextIds;
+        nextIds = swapIds;
+        int[] swapCoords = coords;
+        coords = nextCoords;
+        nextCoords = swapCoords;
+        int[] swapKeys = keys;
+        keys = nextKeys;
+        nextKeys = swapKeys;
+        int[] swapValues = values;
+        values = nextValues;
+        nextValues = swapValues;
+        size = count;
+    }
+
+    private void change(int oldKey, int oldValue, int newKey, int newValue) {
+        if (oldKey != -1) {
+            apply(oldKey, oldValue, -1);
+        }
+        if (newKey != -1) {
+            apply(newKey, newValue, 1);
+        }
+    }
+
+    private void ensureCapacity(int units) {
+        if (nextIds.length < units) {
+            int capacity = Math.max(units, 2 * nextIds.length);
+            nextIds = new long[capacity];
+            nextCoords = new int[capacity];
+            nextKeys = new int[capacity];
+            nextValues = new int[capacity];
+        }
+        if (seen.length < size) {
+            seen = new boolean[ids.length];
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package metabot;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ai.core.AI;
+import rts.GameState;
+import rts.PlayerAction;
+
+/**
+ * Runs the portfolio member chosen by MetaBot under a per-frame deadline. The
+ * member computes its action on a dedicated thread, on a clone of the state
+ * (the game moves on while a late member is still running). If the action is
+ * not ready by the deadline, the action of a cheap fallback member (e.g., a
+ * scripted rush) is returned instead and an overrun is counted.
+ *
+ * A member that overran keeps its thread until it finishes, and its action is
+ * discarded. Until then, every frame falls back (and counts as an overrun), so
+ * that no member runs twice at the same time. The thread ends after
+ * {@link #KEEP_ALIVE_SECONDS} without members to run (and is started again
+ * with the next one), so a discarded watchdog (e.g., of a MetaBot clone that
+ * finished its matches) does not keep a thread.
+ *
+ * An instance must be used by a single thread (the one playing the match).
+ *
+ */
+public class DeadlineWatchdog {
+
+    /**
+     * How long the member thread waits idle before it ends
+     */
+    static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final long deadlineMillis;
+
+    /**
+     * Played when the chosen member misses the deadline (null for no action)
+     */
+    private final AI fallback;
+
+    private final ExecutorService executor;
+
+    /**
+     * The call of a member that missed its deadline and is still running
+     */
+    private Future<PlayerAction> pending;
+
+    /**
+     * Overruns since the last {@link #takeRecentOverruns} and since the last
+     * {@link #reset}
+     */
+    private int recentOverruns;
+    private int overruns;
+
+    /**
+     * @param deadlineMillis time each member has to return its action
+     * @param fallback       member played when the deadline is missed (null to
+     *                       issue no actions)
+     */
+    public DeadlineWatchdog(long deadlineMillis, AI fallback) {
+        if (deadlineMillis <= 0) {
+            throw new RuntimeException("Invalid member deadline: " + deadlineMillis + " ms");
+        }
+        this.deadlineMillis = deadlineMillis;
+        this.fallback = fallback;
+
+        // a single thread, in a daemon, so that a member stuck in its computation does not keep the JVM alive
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "metabot-member");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * Returns the member's action for the state, or the fallback's if the
+     * member misses the deadline (or is still running from a previous frame)
+     *
+     * @param member
+     * @param player
+     * @param state
+     * @return
+     * @throws Exception if the member or the fallback fails
+     */
+    public PlayerAction getAction(AI member, int player, GameState state) throws Exception {
+        if (pending != null) {
+            if (!pending.isDone()) {
+                return overrun(player, state);
+            }
+            // the late action (or failure) refers to a past frame
+            pending = null;
+        }
+
+        GameState copy = state.clone();
+        Future<PlayerAction> call = executor.submit(() -> member.getAction(player, copy));
+        try {
+            return unwrap(call, deadlineMillis);
+        } catch (TimeoutException e) {
+            pending = call;
+            return overrun(player, state);
+        }
+    }
+
+    /**
+     * Counts an overrun and returns the fallback action
+     *
+     * @param player
+     * @param state
+     * @return
+     * @throws Exception
+     */
+    private PlayerAction overrun(int player, GameState state) throws Exception {
+        overruns++;
+        recentOverruns++;
+
+        if (fallback != null) {
+            return fallback.getAction(player, state);
+        }
+        PlayerAction none = new PlayerAction();
+        none.fillWithNones(state, player, 1);
+        return none;
+    }
+
+    /**
+     * Waits up to the timeout for a call and returns its action, rethrowing the
+     * member's exception
+     *
+     * @param call
+     * @param timeoutMillis
+     * @return
+     * @throws Exception
+     */
+    private PlayerAction unwrap(Future<PlayerAction> call, long timeoutMillis) throws Exception {
+        try {
+            return call.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns how many frames fell back since the previous call (e.g., since
+     * the previous decision)
+     *
+     * @return
+     */
+    public int takeRecentOverruns() {
+        int taken = recentOverruns;
+        recentOverruns = 0;
+        return taken;
+    }
+
+    /**
+     * Returns how many frames fell back since the last {@link #reset}
+     *
+     * @return
+     */
+    public int getOverruns() {
+        return overruns;
+    }
+
+    public AI getFallback() {
+        return fallback;
+    }
+
+    /**
+     * Returns a watchdog with the same deadline and a clone of the fallback,
+     * e.g. for a clone of MetaBot (its own thread starts with the first member
+     * it runs)
+     *
+     * @return
+     */
+    public DeadlineWatchdog copy() {
+        return new DeadlineWatchdog(deadlineMillis, fallback != null ? fallback.clone() : null);
+    }
+
+    /**
+     * Interrupts a member still running from a previous frame and waits until
+     * it finishes, so that the members can be reset, and clears the counters.
+     * To be called between matches.
+     */
+    public void reset() {
+        if (pending != null) {
+            pending.cancel(true);
+            // a cancelled future does not wait for the task, so an empty task is queued behind it
+            try {
+                executor.submit(() -> { }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+            pending = null;
+        }
+        overruns = 0;
+        recentOverruns = 0;
+    }
+}
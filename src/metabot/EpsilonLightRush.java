@@ -28,6 +28,12 @@ public class EpsilonLightRush extends AI {
     private AI lightRush;
     private Map<String, AI> portfolio;
 
+    /**
+     * The portfolio members, so that a random one is picked without building a
+     * list on every frame
+     */
+    private AI[] members;
+
     // Epsilon value and decay
     private double epsilon = 0.2f;
     private double decayRate = 0.9955f;
@@ -54,6 +60,8 @@ public class EpsilonLightRush extends AI {
         portfolio.put("HeavyRush", new HeavyRush(unitTypeTable));
         portfolio.put("Expand", new Expand(unitTypeTable));
         portfolio.put("BuildBarracks", new BuildBarracks(unitTypeTable));
+
+        members = portfolio.values().toArray(new AI[0]);
     }
 
     @Override
@@ -80,9 +88,7 @@ public class EpsilonLightRush extends AI {
     private AI selectAI() {
         if (random.nextFloat() < epsilon) {
             // Select random AI
-            List<String> aiList = new ArrayList<String>(portfolio.keySet());
-            String aiName = aiList.get(random.nextInt(aiList.size()));
-            return portfolio.get(aiName);
+            return members[random.nextInt(members.length)];
         } else {
             // Select LightRush
             return lightRush;
@@ -0,0 +1,156 @@
+package metabot;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies (in nanoseconds) with a fixed memory footprint.
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 16 buckets, so that a percentile is reported with at most 1/16 (6.25%)
+ * relative error, from nanoseconds to hours, in less than 8 KB (allocated
+ * with the first latency). Recording is a few arithmetic operations and an
+ * array increment; it allocates only once.
+ *
+ * An instance must be recorded by a single thread.
+ *
+ */
+public class LatencyHistogram {
+
+    /**
+     * Each power of two is split into 2^SUB_BITS buckets
+     */
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * Values below SUB_BUCKETS have one bucket each; above, one group of
+     * SUB_BUCKETS buckets per power of two (null until the first latency, so
+     * that unused histograms cost nothing)
+     */
+    private long[] counts;
+
+    private long total;
+    private long max;
+
+    /**
+     * Counts a latency
+     *
+     * @param nanos negative values (e.g., from a clock adjustment) count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        if (counts == null) {
+            counts = new long[BUCKETS];
+        }
+        counts[bucket(nanos)]++;
+        total++;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    /**
+     * Returns the bucket of a non-negative value
+     *
+     * @param value
+     * @return
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the value is in [2^exponent, 2^(exponent+1)), split into SUB_BUCKETS by its next bits
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket
+     *
+     * @param bucket
+     * @return
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the latency below or at which the given fraction of the counted
+     * latencies are (the upper bound of its bucket, but never above the
+     * maximum), or 0 if nothing was counted
+     *
+     * @param fraction in [0, 1], e.g. 0.99 for the 99th percentile
+     * @return nanoseconds
+     */
+    public long percentile(double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(upperBound(b), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the number of latencies counted
+     *
+     * @return
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Returns the largest latency counted (exact), or 0 if none
+     *
+     * @return nanoseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     *
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        if (other.counts == null) {
+            return;
+        }
+        if (counts == null) {
+            counts = new long[BUCKETS];
+        }
+        for (int b = 0; b < counts.length; b++) {
+            counts[b] += other.counts[b];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Clears the counts (e.g., when a match starts)
+     */
+    public void clear() {
+        if (counts != null) {
+            Arrays.fill(counts, 0);
+        }
+        total = 0;
+        max = 0;
+    }
+}
@@ -1,13 +1,15 @@
 package metabot;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -15,11 +17,16 @@ import org.apache.logging.log4j.Logger;
 import ai.core.AI;
 import ai.core.ParameterSpecification;
 import config.ConfigManager;
+import features.FeatureCache;
+import rl.CheckpointWriter;
+import rl.DecisionSnapshot;
 import rl.Sarsa;
+import rl.WeightFile;
+import rl.WeightHistory;
+import rl.WeightMatrix;
 import rts.GameState;
 import rts.PlayerAction;
 import rts.units.UnitTypeTable;
-import utils.FileNameUtil;
 
 public class MetaBot extends AI {
     UnitTypeTable myUnitTypeTable = null;
@@ -37,15 +44,19 @@ public class MetaBot extends AI {
      */
     private Map<String, AI> portfolio;
 
+    /**
+     * Members used by the clones of this MetaBot instead of clones of them (see
+     * portfolio.shared_members)
+     */
+    private Set<String> sharedMembers;
+
     private Sarsa learningAgent;
 
     /**
-     * Stores the choices made for debugging purposes
+     * Writes the choices, Q-values and features (see output.* settings), or null
+     * if no output is enabled
      */
-    private List<String> choices;
-
-    private List<Map<String, Double>> qValues;
-    private List<Map<String, Float>> features;
+    private Telemetry telemetry;
 
     /**
      * Stores the player number to retrieve actions and determine match outcome
@@ -57,9 +68,55 @@ public class MetaBot extends AI {
 
     int matchCount = 1;
 
+    /**
+     * Whether the weights are saved at the end of each match
+     */
+    private boolean saveWeights = true;
+
+    /**
+     * The weights are saved every checkpointInterval matches
+     */
+    private int checkpointInterval;
+
+    /**
+     * Number of matches finished since the weights were last saved
+     */
+    private int matchesSinceCheckpoint = 0;
+
+    /**
+     * Log of weight snapshots (see rl.save_weights_history). It is opened,
+     * written and closed only by the {@link CheckpointWriter} thread.
+     */
+    private WeightHistory weightHistory;
+
+    /**
+     * Runs the chosen member under a per-frame deadline (null if
+     * portfolio.deadline_ms is not set)
+     */
+    private DeadlineWatchdog watchdog;
+
+    /**
+     * Subtracted from the reward for each frame in which the chosen member
+     * missed the deadline
+     */
+    private double overrunPenalty;
+
+    /**
+     * Latencies of the current match: of the whole getAction, of its phases
+     * (in decision frames) and of each member (by ordinal) in the frames it
+     * played. See {@link #getLatencies}.
+     */
+    private final LatencyHistogram frameLatency = new LatencyHistogram();
+    private final LatencyHistogram featuresLatency = new LatencyHistogram();
+    private final LatencyHistogram lookaheadLatency = new LatencyHistogram();
+    private final LatencyHistogram learningLatency = new LatencyHistogram();
+    private final LatencyHistogram telemetryLatency = new LatencyHistogram();
+    private LatencyHistogram[] memberLatency;
+
     // BEGIN -- variables to feed the learning agent
-    private GameState previousState;
-    private GameState currentState;
+    // the features and choices of the previous and current decisions (reused)
+    private DecisionSnapshot previousDecision = new DecisionSnapshot();
+    private DecisionSnapshot currentDecision = new DecisionSnapshot();
     private AI choice;
     double reward;
     // END-- variables to feed the learning agent
@@ -96,6 +153,7 @@ public class MetaBot extends AI {
         }
 
         setupPortifolio(members);
+        setupWatchdog();
 
         // Creates the learning agent with the specified portfolio and loaded parameters
         learningAgent = new Sarsa(portfolio, config);
@@ -111,6 +169,12 @@ public class MetaBot extends AI {
         }
 
         stickyActions = Integer.parseInt(config.getProperty("rl.sticky_actions", "100")) - 1;
+        checkpointInterval = Integer.parseInt(config.getProperty("rl.checkpoint.interval", "1"));
+
+        telemetry = new Telemetry(config);
+        if (!telemetry.isEnabled()) {
+            telemetry = null;
+        }
 
         reset();
     }
@@ -138,6 +202,7 @@ public class MetaBot extends AI {
         }
 
         setupPortifolio(members);
+        setupWatchdog();
 
         // creates the learning agent with the specified portfolio and loaded parameters
         learningAgent = new Sarsa(portfolio, config);
@@ -167,9 +232,57 @@ public class MetaBot extends AI {
         // }
         // }
 
+        checkpointInterval = Integer.parseInt(config.getProperty("rl.checkpoint.interval", "1"));
+
+        telemetry = new Telemetry(config);
+        if (!telemetry.isEnabled()) {
+            telemetry = null;
+        }
+
         reset();
     }
 
+    /**
+     * Creates a copy of a MetaBot (see {@link #clone})
+     * 
+     * @param other
+     */
+    private MetaBot(MetaBot other) {
+        myUnitTypeTable = other.myUnitTypeTable;
+        logger = other.logger;
+        config = other.config;
+
+        portfolio = new HashMap<>();
+        sharedMembers = other.sharedMembers;
+        for (Map.Entry<String, AI> member : other.portfolio.entrySet()) {
+            AI ai = member.getValue();
+            if (sharedMembers.contains(member.getKey())) {
+                // in use by the original, so it is not reset
+                portfolio.put(member.getKey(), ai);
+            } else {
+                AI clone = ai.clone();
+                clone.reset();
+                portfolio.put(member.getKey(), clone);
+            }
+        }
+        if (other.watchdog != null) {
+            watchdog = other.watchdog.copy();
+            if (watchdog.getFallback() != null) {
+                watchdog.getFallback().reset();
+            }
+        }
+        overrunPenalty = other.overrunPenalty;
+
+        learningAgent = other.learningAgent.copy(portfolio);
+
+        stickyActions = other.stickyActions;
+        checkpointInterval = other.checkpointInterval;
+        saveWeights = false;
+        telemetry = null;
+
+        resetMatchState();
+    }
+
     /**
      * Saves the weight 'vector' to a file in the specified path by serializing the
      * weights HashMap. The file is overridden if already exists.
@@ -211,6 +324,12 @@ public class MetaBot extends AI {
         // loads the portfolio according to the file specification
         portfolio = new HashMap<>();
 
+        sharedMembers = new HashSet<>();
+        String shared = config.getProperty("portfolio.shared_members", "").trim();
+        if (!shared.isEmpty()) {
+            sharedMembers.addAll(Arrays.asList(shared.split(",\\s*")));
+        }
+
         for (String memberName : memberNames) {
             try {
                 AI ai = (AI) Class.forName(memberName).getConstructor(UnitTypeTable.class).newInstance(myUnitTypeTable);
@@ -221,6 +340,32 @@ public class MetaBot extends AI {
         }
     }
 
+    /**
+     * Creates the deadline watchdog if portfolio.deadline_ms is set, with the
+     * fallback member of portfolio.fallback (if any)
+     */
+    private void setupWatchdog() {
+        long deadline = Long.parseLong(config.getProperty("portfolio.deadline_ms", "0"));
+        overrunPenalty = Double.parseDouble(config.getProperty("rl.overrun_penalty", "0"));
+        if (deadline <= 0) {
+            watchdog = null;
+            return;
+        }
+
+        // the fallback is a separate instance, as the chosen member may still be running
+        AI fallback = null;
+        String fallbackName = config.getProperty("portfolio.fallback");
+        if (fallbackName != null && !fallbackName.trim().isEmpty()) {
+            try {
+                fallback = (AI) Class.forName(fallbackName.trim()).getConstructor(UnitTypeTable.class)
+                        .newInstance(myUnitTypeTable);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        watchdog = new DeadlineWatchdog(deadline, fallback);
+    }
+
     public void preGameAnalysis(GameState gs, long milliseconds) throws Exception {
 
     }
@@ -236,7 +381,12 @@ public class MetaBot extends AI {
         myUnitTypeTable = utt;
         myPlayerNumber = -1;
         stickyCount = 0;
-        first = true;
+        if (watchdog != null) {
+            watchdog.reset();
+            if (watchdog.getFallback() != null) {
+                watchdog.getFallback().reset(utt);
+            }
+        }
         for (AI ai : portfolio.values()) {
             ai.reset(utt);
         }
@@ -250,27 +400,51 @@ public class MetaBot extends AI {
      * my internal variables. It does not reset the weight vector
      */
     public void reset() {
+        // no member may still be running when the portfolio is reset
+        if (watchdog != null) {
+            watchdog.reset();
+            if (watchdog.getFallback() != null) {
+                watchdog.getFallback().reset();
+            }
+        }
         for (AI ai : portfolio.values()) {
             ai.reset();
         }
 
+        resetMatchState();
+    }
+
+    /**
+     * Resets the variables of the current match (but not the portfolio members)
+     */
+    private void resetMatchState() {
+        if (memberLatency == null) {
+            memberLatency = new LatencyHistogram[learningAgent.getMemberNames().size()];
+            for (int i = 0; i < memberLatency.length; i++) {
+                memberLatency[i] = new LatencyHistogram();
+            }
+        }
+        for (LatencyHistogram histogram : getLatencies().values()) {
+            histogram.clear();
+        }
+
         choice = null;
-        previousState = null;
-        currentState = null;
+        previousDecision.clear();
+        currentDecision.clear();
         myPlayerNumber = -1;
         stickyCount = 0;
-        first = true;
         learningAgent.resetChoice();
+        learningAgent.resetTraces();
+        learningAgent.invalidateFeatureCache();
 
-        choices = new ArrayList<>(3000);
-        qValues = new ArrayList<>();
-        features = new ArrayList<>();
-
+        // closes the files of a match that did not reach gameOver
+        if (telemetry != null) {
+            telemetry.endMatch();
+        }
     }
 
-    boolean first = true;
-
     public PlayerAction getAction(int player, GameState state) {
+        long frameStart = System.nanoTime();
 
         // sets to a valid number on the first call
         if (myPlayerNumber == -1) {
@@ -284,11 +458,18 @@ public class MetaBot extends AI {
         }
 
         // makes the learning agent learn
-        if (stickyCount == 0) {
+        boolean decision = stickyCount == 0;
+        long lap = frameStart;
+        if (decision) {
             stickyCount = stickyActions;
-            previousState = currentState;
-            currentState = state.clone();
-            if (previousState != null)
+            DecisionSnapshot swap = previousDecision;
+            previousDecision = currentDecision;
+            currentDecision = swap;
+            learningAgent.snapshot(state, player, currentDecision);
+            lap = record(featuresLatency, lap);
+            learningAgent.lookahead(state, player);
+            lap = record(lookaheadLatency, lap);
+            if (previousDecision.isComplete())
                 reward = 0;
             if (state.gameover()) {
                 if (state.winner() == player)
@@ -298,28 +479,35 @@ public class MetaBot extends AI {
                 else
                     reward = 0;
             }
-            learningAgent.learn(previousState, choice, reward, currentState, currentState.gameover(), player);
+            if (watchdog != null) {
+                // the frames that fell back since the previous decision penalize its choice
+                reward -= overrunPenalty * watchdog.takeRecentOverruns();
+            }
+            learningAgent.learn(previousDecision, reward, currentDecision, state.gameover());
 
         } else {
             stickyCount--;
         }
         // selected is the AI that will perform our action, let's try it:
         choice = learningAgent.act(state, player);
+        if (decision) {
+            // learning includes evaluating the Q-values to choose the next member
+            record(learningLatency, lap);
+        }
+        int member = learningAgent.memberIndex(choice);
+        currentDecision.setChoice(member);
 
-        choices.add(choice.getClass().getSimpleName());
-
-        if (matchCount > 1 || !first) {
-            first = false;
-            Map<String, Double> qs = learningAgent.getQValues(state, player);
-            qValues.add(qs);
-
-            Map<String, Float> feat = learningAgent.getFeatures(state, player);
-            features.add(feat);
-        } else {
-            first = false;
+        if (telemetry != null) {
+            long telemetryStart = System.nanoTime();
+            telemetry.frame(matchCount, state, player, decision, choice, learningAgent);
+            record(telemetryLatency, telemetryStart);
         }
 
+        long memberStart = System.nanoTime();
         try {
+            if (watchdog != null) {
+                return watchdog.getAction(choice, player, state);
+            }
             return choice.getAction(player, state);
         } catch (Exception e) {
             logger.error("Exception while getting action in frame #" + state.getTime() + " from "
@@ -330,9 +518,25 @@ public class MetaBot extends AI {
             PlayerAction pa = new PlayerAction();
             pa.fillWithNones(state, player, 1);
             return pa;
+        } finally {
+            record(memberLatency[member], memberStart);
+            record(frameLatency, frameStart);
         }
     }
 
+    /**
+     * Records the time elapsed since start and returns the current time
+     * 
+     * @param histogram
+     * @param start     from System.nanoTime
+     * @return
+     */
+    private static long record(LatencyHistogram histogram, long start) {
+        long now = System.nanoTime();
+        histogram.record(now - start);
+        return now;
+    }
+
     public void gameOver(int winner) throws Exception {
         if (winner == -1)
             reward = 0; // game not finished (timeout) or draw
@@ -341,7 +545,20 @@ public class MetaBot extends AI {
         else
             reward = -1; // I lost
 
-        learningAgent.learn(currentState, choice, reward, null, true, myPlayerNumber);
+        if (watchdog != null) {
+            reward -= overrunPenalty * watchdog.takeRecentOverruns();
+            if (watchdog.getOverruns() > 0) {
+                logger.info("Player {}: the chosen member missed the deadline in {} frames", myPlayerNumber,
+                        watchdog.getOverruns());
+            }
+        }
+
+        learningAgent.learn(currentDecision, reward, null, true);
+
+        FeatureCache featureCache = learningAgent.getFeatureCache();
+        if (featureCache != null) {
+            logger.debug("Feature cache: {} hits, {} misses", featureCache.getHits(), featureCache.getMisses());
+        }
 
         // tests whether the output prefix has been specified to save the weights
         // (binary)
@@ -358,109 +575,180 @@ public class MetaBot extends AI {
         // learningAgent.saveHuman(config.getProperty("rl.output.humanprefix"));
         // }
 
-        if (config.containsKey("rl.save_weights_bin")) {
-            if (config.getProperty("rl.save_weights_bin").equalsIgnoreCase("True")) {
-                String dir = config.getProperty("rl.workingdir", "weights/");
-                if (dir.charAt(dir.length() - 1) != '/') {
-                    dir = dir + "/";
-                }
-
-                learningAgent.saveBin(dir + "weights_" + myPlayerNumber + ".bin");
-            }
+        if (saveWeights) {
+            checkpoint(myPlayerNumber);
         }
 
-        if (config.containsKey("rl.save_weights_human")) {
-            if (config.getProperty("rl.save_weights_human").equalsIgnoreCase("True")) {
-                String dir = config.getProperty("rl.workingdir", "weights/");
-                if (dir.charAt(dir.length() - 1) != '/') {
-                    dir = dir + "/";
-                }
+        // the files are written in background
+        if (telemetry != null) {
+            telemetry.endMatch();
+        }
+        matchCount++;
+    }
 
-                learningAgent.saveHuman(dir + "weights_" + myPlayerNumber);
-            }
+    /**
+     * Counts a finished match and saves the weights if rl.checkpoint.interval
+     * matches have finished since they were last saved
+     * 
+     * @param player
+     */
+    public void checkpoint(int player) {
+        matchesSinceCheckpoint++;
+        if (matchesSinceCheckpoint >= checkpointInterval) {
+            saveWeights(player);
         }
+    }
 
-        // check if it needs to save the choices
-        if (config.containsKey("output.choices_prefix")) {
+    /**
+     * Saves the weights if any match finished since they were last saved (so
+     * that no training is lost when the number of matches is not a multiple of
+     * rl.checkpoint.interval), then waits until all checkpoints are written
+     * 
+     * @param player
+     */
+    public void flushWeights(int player) {
+        if (matchesSinceCheckpoint > 0) {
+            saveWeights(player);
+        }
 
-            String dir = config.getProperty("rl.workingdir");
-            if (dir.charAt(dir.length() - 1) != '/') {
-                dir = dir + "/" + config.getProperty("output.choices_prefix");
-            } else {
-                dir = dir + config.getProperty("output.choices_prefix");
+        // closes the history; it is reopened (and appended to) by the next checkpoint
+        CheckpointWriter.getInstance().submit("closing weight history", () -> {
+            if (weightHistory != null) {
+                weightHistory.close();
+                weightHistory = null;
             }
+        });
+        CheckpointWriter.getInstance().flush();
+    }
+
+    /**
+     * Saves the weights to the working directory, in binary, history and/or
+     * human-readable format according to rl.save_weights_bin,
+     * rl.save_weights_history and rl.save_weights_human. The file names are
+     * given by the player number.
+     * 
+     * The weights are copied and the copy is written by the
+     * {@link CheckpointWriter} in background, so this returns without waiting
+     * for the disk.
+     * 
+     * @param player
+     */
+    public void saveWeights(int player) {
+        matchesSinceCheckpoint = 0;
 
-            // finds the file name
-            String filename = FileNameUtil.nextAvailableFileName(dir,
-                    "choices");
+        String dir = config.getProperty("rl.workingdir", "weights/");
+        if (dir.charAt(dir.length() - 1) != '/') {
+            dir = dir + "/";
+        }
+        String prefix = dir + "weights_" + player;
 
-            // saves the weights
-            FileWriter writer = new FileWriter(filename);
-            writer.write(String.join("\n", choices));
-            writer.close();
+        boolean saveBin = config.getProperty("rl.save_weights_bin", "False").equalsIgnoreCase("True");
+        boolean saveHistory = config.getProperty("rl.save_weights_history", "False").equalsIgnoreCase("True");
+        boolean saveHuman = config.getProperty("rl.save_weights_human", "False").equalsIgnoreCase("True");
+        if (!saveBin && !saveHistory && !saveHuman) {
+            return;
         }
+        int keyframeInterval = Integer.parseInt(config.getProperty("rl.weights_history.keyframe_interval", "20"));
 
-        if (config.containsKey("output.qvalues_prefix")) {
+        if (learningAgent.getWeights() == null) {
+            throw new RuntimeException("Attempted to save non-initialized weights");
+        }
+        WeightMatrix snapshot = learningAgent.getWeights().copy();
 
-            String dir = config.getProperty("rl.workingdir");
-            if (dir.charAt(dir.length() - 1) != '/') {
-                dir = dir + "/" + config.getProperty("output.qvalues_prefix");
-            } else {
-                dir = dir + config.getProperty("output.qvalues_prefix");
+        CheckpointWriter.getInstance().submit(prefix, () -> {
+            if (saveBin) {
+                WeightFile.write(snapshot, prefix + ".bin");
             }
-
-            // finds the file name
-            String filename = FileNameUtil.nextAvailableFileName(dir,
-                    "csv");
-
-            // saves the weights
-            FileWriter writer = new FileWriter(filename);
-            writer.write("Match,Frame,Action,Q-Value\n");
-            for (int i = 1; i <= qValues.size(); i++) {
-                for (String key : qValues.get(i - 1).keySet()) {
-                    if (matchCount == 1) {
-                        writer.write(String.format(Locale.US, "%d,%d,%s,%f\n", matchCount, i + 1, key, qValues.get(i - 1).get(key)));
-                    } else {
-                        writer.write(String.format(Locale.US, "%d,%d,%s,%f\n", matchCount, i, key, qValues.get(i - 1).get(key)));
-                    }
+            if (saveHistory) {
+                if (weightHistory == null) {
+                    weightHistory = new WeightHistory(prefix + ".history", snapshot.getMemberNames(),
+                            snapshot.getFeatureNames(), keyframeInterval);
                 }
+                weightHistory.append(snapshot);
             }
-            writer.close();
-        }
+            if (saveHuman) {
+                Sarsa.saveHuman(snapshot, prefix);
+            }
+        });
+    }
 
-        if (config.containsKey("output.features_prefix")) {
+    /**
+     * Enables or disables saving the weights at the end of each match (enabled by
+     * default). When several MetaBots share their weights, only one of them
+     * should save.
+     * 
+     * @param saveWeights
+     */
+    public void setSaveWeights(boolean saveWeights) {
+        this.saveWeights = saveWeights;
+    }
 
-            String dir = config.getProperty("rl.workingdir");
-            if (dir.charAt(dir.length() - 1) != '/') {
-                dir = dir + "/" + config.getProperty("output.features_prefix");
-            } else {
-                dir = dir + config.getProperty("output.features_prefix");
-            }
+    /**
+     * Returns how many frames of the current match fell back because the chosen
+     * member missed the deadline (0 if there is no deadline)
+     * 
+     * @return
+     */
+    public int getOverruns() {
+        return watchdog != null ? watchdog.getOverruns() : 0;
+    }
 
-            // finds the file name
-            String filename = FileNameUtil.nextAvailableFileName(dir,
-                    "csv");
-
-            // saves the weights
-            FileWriter writer = new FileWriter(filename);
-            writer.write("Match,Frame,Feature,Value\n");
-            for (int i = 1; i <= features.size(); i++) {
-                for (String key : features.get(i - 1).keySet()) {
-                    if (matchCount == 1) {
-                        writer.write(String.format(Locale.US, "%d,%d,%s,%f\n", matchCount, i + 1, key, features.get(i - 1).get(key)));
-                    } else {
-                        writer.write(String.format(Locale.US, "%d,%d,%s,%f\n", matchCount, i, key, features.get(i - 1).get(key)));
-                    }
-                }
-            }
-            writer.close();
+    /**
+     * Returns the latency histograms of the current match, by name: "frame"
+     * (the whole getAction), the phases of the decision frames ("features",
+     * "lookahead", "learning", which includes evaluating the Q-values of the
+     * next choice), "telemetry", then one per portfolio member (its getAction,
+     * including the fallback when it misses the deadline). The histograms are
+     * cleared when the next match starts.
+     * 
+     * @return
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+        latencies.put("frame", frameLatency);
+        latencies.put("features", featuresLatency);
+        latencies.put("lookahead", lookaheadLatency);
+        latencies.put("learning", learningLatency);
+        latencies.put("telemetry", telemetryLatency);
+        List<String> memberNames = learningAgent.getMemberNames();
+        for (int i = 0; i < memberLatency.length; i++) {
+            latencies.put(memberNames.get(i), memberLatency[i]);
         }
-        matchCount++;
+        return latencies;
+    }
+
+    /**
+     * Returns the portfolio members, by name
+     * 
+     * @return
+     */
+    public Map<String, AI> getPortfolio() {
+        return portfolio;
     }
 
+    /**
+     * Returns the learning agent of this MetaBot
+     * 
+     * @return
+     */
+    public Sarsa getLearningAgent() {
+        return learningAgent;
+    }
+
+    /**
+     * Returns a copy of this MetaBot that starts a new match (as after
+     * {@link #reset}), e.g. for search algorithms that clone the players at each
+     * node. The configuration is not loaded again. The copy plays with the
+     * current weights, which are shared until either MetaBot updates them (see
+     * {@link Sarsa#copy}). The members listed in portfolio.shared_members are
+     * shared (and not reset, as the original may be using them), and the
+     * others are cloned. Cloning has no effect on the original besides sharing
+     * its weights. The copy does not save weights or write telemetry.
+     * 
+     * @return
+     */
     public AI clone() {
-        // FIXME copy features, weights and other attributes!
-        return new MetaBot(myUnitTypeTable);
+        return new MetaBot(this);
     }
 
     // This will be called by the microRTS GUI to get the
@@ -0,0 +1,198 @@
+package metabot;
+
+import java.util.List;
+import java.util.Properties;
+
+import ai.core.AI;
+import rl.Sarsa;
+import rts.GameState;
+
+/**
+ * The telemetry of a MetaBot: the member chosen in each frame, and the
+ * Q-values and features of the sampled frames, written by the
+ * {@link TelemetryWriter} into one file per match and stream. A stream is
+ * enabled by its prefix (output.choices_prefix, output.qvalues_prefix,
+ * output.features_prefix, relative to rl.workingdir), and nothing is computed
+ * for the disabled ones.
+ *
+ * The choices are run-length encoded: each line has the first frame, the
+ * number of frames and the member. The Q-values and features have one line per
+ * sampled frame, with the match, the frame and the value of each member or
+ * feature (named in the header). Frames are sampled according to
+ * output.sample: "decision" samples the frames in which a member is chosen, and
+ * a number n samples every n-th frame.
+ *
+ */
+public class Telemetry {
+
+    private final String choicesPrefix;
+    private final String qValuesPrefix;
+    private final String featuresPrefix;
+
+    private final boolean decisionsOnly;
+    private final int sampleInterval;
+
+    private TelemetryWriter.Stream choices;
+    private TelemetryWriter.Stream qValues;
+    private TelemetryWriter.Stream features;
+
+    /**
+     * The current run of choices: the member, its first frame and length
+     */
+    private AI runChoice;
+    private int runStart;
+    private int runLength;
+
+    /**
+     * Number of features of the vectors written to the features stream
+     */
+    private int featureCount;
+
+    public Telemetry(Properties config) {
+        choicesPrefix = prefix(config, "output.choices_prefix");
+        qValuesPrefix = prefix(config, "output.qvalues_prefix");
+        featuresPrefix = prefix(config, "output.features_prefix");
+
+        String sample = config.getProperty("output.sample", "1").trim();
+        if (sample.equals("decision")) {
+            decisionsOnly = true;
+            sampleInterval = 1;
+        } else {
+            decisionsOnly = false;
+            sampleInterval = Integer.parseInt(sample);
+            if (sampleInterval < 1) {
+                throw new RuntimeException("Invalid telemetry sample interval: " + sample);
+            }
+        }
+    }
+
+    /**
+     * Returns the path prefix of a stream (under rl.workingdir), or null if it is
+     * disabled
+     *
+     * @param config
+     * @param key
+     * @return
+     */
+    private static String prefix(Properties config, String key) {
+        if (!config.containsKey(key)) {
+            return null;
+        }
+        String dir = config.getProperty("rl.workingdir", "");
+        if (!dir.isEmpty() && dir.charAt(dir.length() - 1) != '/') {
+            dir = dir + "/";
+        }
+        return dir + config.getProperty(key);
+    }
+
+    /**
+     * Returns whether any stream is enabled
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return choicesPrefix != null || qValuesPrefix != null || featuresPrefix != null;
+    }
+
+    /**
+     * Records a frame: the chosen member and, if the frame is sampled, the
+     * Q-values and features of the state
+     *
+     * @param match
+     * @param state
+     * @param player
+     * @param decision whether a member was chosen in this frame
+     * @param choice
+     * @param agent
+     */
+    public void frame(int match, GameState state, int player, boolean decision, AI choice, Sarsa agent) {
+        int time = state.getTime();
+
+        if (choicesPrefix != null) {
+            if (choice != runChoice || time != runStart + runLength) {
+                endRun();
+                runChoice = choice;
+                runStart = time;
+            }
+            runLength++;
+        }
+
+        boolean sampled = decisionsOnly ? decision : time % sampleInterval == 0;
+        if (!sampled) {
+            return;
+        }
+
+        if (qValuesPrefix != null) {
+            if (qValues == null) {
+                qValues = TelemetryWriter.getInstance().open(qValuesPrefix, "csv", header(agent.getMemberNames()));
+            }
+            double[] values = new double[agent.getMemberNames().size()];
+            agent.getQValues(state, player, values);
+            qValues.write(out -> {
+                out.write(match + "," + time);
+                for (double value : values) {
+                    out.write(',');
+                    out.write(Float.toString((float) value));
+                }
+                out.write('\n');
+            });
+        }
+
+        if (featuresPrefix != null) {
+            if (features == null) {
+                // the agent knows the feature names since it chose a member for a state
+                List<String> names = agent.getFeatureNames();
+                featureCount = names.size();
+                features = TelemetryWriter.getInstance().open(featuresPrefix, "csv", header(names));
+            }
+            float[] values = new float[featureCount];
+            agent.getFeatures(state, player, values);
+            features.write(out -> {
+                out.write(match + "," + time);
+                for (float value : values) {
+                    out.write(',');
+                    out.write(Float.toString(value));
+                }
+                out.write('\n');
+            });
+        }
+    }
+
+    private static String header(List<String> names) {
+        return "match,frame," + String.join(",", names);
+    }
+
+    /**
+     * Queues the current run of choices, if any
+     */
+    private void endRun() {
+        if (runLength == 0) {
+            return;
+        }
+        if (choices == null) {
+            choices = TelemetryWriter.getInstance().open(choicesPrefix, "choices", "first_frame,frames,member");
+        }
+        String line = runStart + "," + runLength + "," + runChoice.getClass().getSimpleName() + "\n";
+        choices.write(out -> out.write(line));
+        runLength = 0;
+    }
+
+    /**
+     * Queues the last run of choices and the closing of the files of the match.
+     * The next frame starts new files.
+     */
+    public void endMatch() {
+        if (choicesPrefix != null) {
+            endRun();
+            runChoice = null;
+        }
+        for (TelemetryWriter.Stream stream : new TelemetryWriter.Stream[] { choices, qValues, features }) {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+        choices = null;
+        qValues = null;
+        features = null;
+    }
+}
@@ -0,0 +1,215 @@
+package metabot;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import utils.FileNameUtil;
+
+/**
+ * Writes telemetry (choices, Q-values, features) on a background thread, so
+ * that the game thread only queues records. The queue is lock-free: the game
+ * threads append to it and wake the writer thread, which formats the records
+ * and writes them through buffered writers.
+ *
+ * There is one writer per process, shared by all MetaBots. As the writer
+ * thread is also the one that picks the file names (the next available
+ * prefix_number.extension), streams opened at the same time by MetaBots in
+ * parallel matches never get the same file. Pending records are written when
+ * the JVM shuts down.
+ *
+ */
+public class TelemetryWriter {
+
+    /**
+     * Writes a record to its stream, on the writer thread
+     */
+    public interface Line {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private static TelemetryWriter instance;
+
+    private static final Logger logger = LogManager.getLogger(TelemetryWriter.class);
+
+    private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+
+    private final Thread thread;
+
+    /**
+     * Streams opened and not closed yet, closed at shutdown (accessed by the
+     * writer thread only)
+     */
+    private final Set<Stream> openStreams = new HashSet<>();
+
+    private volatile boolean closed;
+
+    private TelemetryWriter() {
+        // a daemon, so that it does not keep the JVM alive; the shutdown hook drains the queue instead
+        thread = new Thread(this::drain, "telemetry-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the telemetry writer of this process, creating it (and registering
+     * its shutdown hook) on the first call
+     *
+     * @return
+     */
+    public static synchronized TelemetryWriter getInstance() {
+        if (instance == null) {
+            instance = new TelemetryWriter();
+
+            TelemetryWriter writer = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "telemetry-flush"));
+        }
+        return instance;
+    }
+
+    /**
+     * A file being written. The file is created (at the next available name for
+     * the prefix and extension) when the writer thread reaches the open request.
+     */
+    public final class Stream {
+
+        /**
+         * Accessed by the writer thread only (null until opened, or if opening
+         * failed)
+         */
+        private Writer writer;
+
+        private Stream() {
+        }
+
+        /**
+         * Queues a record
+         *
+         * @param line
+         */
+        public void write(Line line) {
+            submit(() -> {
+                if (writer != null) {
+                    line.writeTo(writer);
+                }
+            });
+        }
+
+        /**
+         * Queues the closing of the file, after the records queued so far
+         */
+        public void close() {
+            submit(() -> {
+                openStreams.remove(this);
+                if (writer != null) {
+                    Writer closing = writer;
+                    writer = null;
+                    closing.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens a stream to a new file named prefix_number.extension, starting with
+     * the given header line
+     *
+     * @param prefix
+     * @param extension
+     * @param header    written as is, followed by a line break
+     * @return
+     */
+    public Stream open(String prefix, String extension, String header) {
+        Stream stream = new Stream();
+        submit(() -> {
+            String filename = FileNameUtil.nextAvailableFileName(prefix, extension);
+            File file = new File(filename);
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            stream.writer = new BufferedWriter(new FileWriter(file), 1 << 16);
+            openStreams.add(stream);
+            stream.writer.write(header);
+            stream.writer.write('\n');
+        });
+        return stream;
+    }
+
+    private void submit(Task task) {
+        queue.offer(task);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Runs the queued tasks, parking while the queue is empty, until closed
+     */
+    private void drain() {
+        while (true) {
+            Task task = queue.poll();
+            if (task == null) {
+                if (closed && queue.isEmpty()) {
+                    // the streams of unfinished matches keep what was written
+                    for (Stream stream : openStreams) {
+                        try {
+                            stream.writer.close();
+                        } catch (IOException e) {
+                            logger.error("Error while closing telemetry", e);
+                        }
+                    }
+                    openStreams.clear();
+                    return;
+                }
+                if (!closed) {
+                    LockSupport.park(this);
+                }
+                continue;
+            }
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error while writing telemetry", e);
+            }
+        }
+    }
+
+    /**
+     * Blocks until every record queued so far is written (to the buffers of the
+     * open streams; closed streams are on disk)
+     */
+    public void flush() {
+        CountDownLatch done = new CountDownLatch(1);
+        submit(done::countDown);
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the queued records and stops the writer thread
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
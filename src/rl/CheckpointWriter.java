@@ -0,0 +1,109 @@
+package rl;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes weight checkpoints on a dedicated background thread, so that the game
+ * thread does not block on disk at the end of every match. Callers snapshot
+ * the weights (see {@link WeightMatrix#copy()}) and submit a checkpoint that
+ * writes the snapshot.
+ *
+ * Checkpoints are written one at a time, in submission order, so appends to
+ * the same file (e.g. by {@link Sarsa#saveHuman}) keep their order. Pending
+ * checkpoints are flushed when the JVM shuts down.
+ *
+ */
+public class CheckpointWriter {
+
+    /**
+     * A write to be performed on the checkpoint thread
+     */
+    public interface Checkpoint {
+        void write() throws IOException;
+    }
+
+    private static CheckpointWriter instance;
+
+    private static final Logger logger = LogManager.getLogger(CheckpointWriter.class);
+
+    private final ExecutorService executor;
+
+    private CheckpointWriter() {
+        // the thread is a daemon so that it does not keep the JVM alive; the
+        // shutdown hook drains the pending checkpoints instead
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "weight-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the checkpoint writer of this process, creating it (and registering
+     * its shutdown hook) on the first call
+     *
+     * @return
+     */
+    public static synchronized CheckpointWriter getInstance() {
+        if (instance == null) {
+            instance = new CheckpointWriter();
+
+            CheckpointWriter writer = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "weight-checkpoint-flush"));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a checkpoint to be written in background. Errors are logged, as
+     * there is no caller to report them to.
+     *
+     * @param description what is written (for the log)
+     * @param checkpoint
+     */
+    public void submit(String description, Checkpoint checkpoint) {
+        executor.execute(() -> {
+            try {
+                checkpoint.write();
+                logger.debug("Checkpoint written: {}", description);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Error while writing checkpoint: " + description, e);
+            }
+        });
+    }
+
+    /**
+     * Blocks until every checkpoint submitted so far is written
+     */
+    public void flush() {
+        try {
+            executor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the pending checkpoints and stops the checkpoint thread. Further
+     * submissions are rejected.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.info("Waiting for weight checkpoints to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
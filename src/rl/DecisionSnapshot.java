@@ -0,0 +1,94 @@
+package rl;
+
+import features.SparseFeatures;
+
+/**
+ * What {@link Sarsa#learn(DecisionSnapshot, double, DecisionSnapshot, boolean)}
+ * needs of a decision: the feature vector of the state (with its non-zero
+ * entries), the member chosen in it and the game time. It replaces keeping a
+ * clone of the state until the next decision.
+ *
+ * Snapshots are reused: the vectors are allocated on the first
+ * {@link Sarsa#snapshot} and overwritten afterwards, at a cost proportional to
+ * the number of non-zero features.
+ *
+ */
+public class DecisionSnapshot {
+
+    private float[] features;
+
+    private SparseFeatures nonZero;
+
+    /**
+     * Ordinal of the chosen portfolio member, or -1 if not chosen yet
+     */
+    private int choice = -1;
+
+    /**
+     * Game time of the state, or -1 if the snapshot is empty
+     */
+    private int time = -1;
+
+    /**
+     * Replaces the contents with a feature vector (not kept) and its non-zero
+     * entries, at the given time, with no choice
+     *
+     * @param vector
+     * @param vectorNonZero
+     * @param time
+     */
+    void set(float[] vector, SparseFeatures vectorNonZero, int time) {
+        if (features == null || features.length != vector.length) {
+            features = new float[vector.length];
+            nonZero = new SparseFeatures(vector.length);
+        }
+
+        // only the previous non-zero positions need to be cleared
+        nonZero.unscatter(features);
+        nonZero.clear();
+        for (int k = 0; k < vectorNonZero.size(); k++) {
+            nonZero.add(vectorNonZero.index(k), vectorNonZero.value(k));
+        }
+        nonZero.scatter(features);
+
+        this.time = time;
+        choice = -1;
+    }
+
+    /**
+     * Empties the snapshot (e.g., when a match starts)
+     */
+    public void clear() {
+        time = -1;
+        choice = -1;
+    }
+
+    /**
+     * Returns whether the snapshot holds a decision (a state and a choice)
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return time != -1 && choice != -1;
+    }
+
+    float[] getFeatures() {
+        return features;
+    }
+
+    SparseFeatures getNonZero() {
+        return nonZero;
+    }
+
+    public int getChoice() {
+        return choice;
+    }
+
+    public void setChoice(int choice) {
+        this.choice = choice;
+    }
+
+    public int getTime() {
+        return time;
+    }
+}
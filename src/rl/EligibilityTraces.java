@@ -0,0 +1,192 @@
+package rl;
+
+import features.SparseFeatures;
+
+/**
+ * Eligibility traces for Sarsa(lambda) with linear function approximation.
+ * There is one trace per weight (i.e., per portfolio member and feature), but
+ * only the non-zero ones are visited: their positions are kept in a list, so
+ * decaying the traces and updating the weights cost proportionally to the
+ * number of active traces rather than to the size of the weight matrix.
+ *
+ */
+public class EligibilityTraces {
+
+    /**
+     * Traces whose absolute value falls below this threshold are set to zero
+     */
+    private static final float MIN_TRACE = 1e-4f;
+
+    /**
+     * Whether traces are replaced (e = f) or accumulated (e = e + f) when their
+     * feature is visited
+     */
+    private final boolean replacing;
+
+    private final int featureCount;
+
+    /**
+     * The traces, laid out as the weights of a {@link WeightMatrix}
+     */
+    private final float[] traces;
+
+    /**
+     * Positions (in {@link #traces}) of the non-zero traces
+     */
+    private final int[] active;
+    private int activeCount;
+
+    /**
+     * For each trace, its index in {@link #active} or -1 if it is zero
+     */
+    private final int[] activeIndex;
+
+    /**
+     * Creates traces (all zero) for a weight matrix with the given dimensions
+     *
+     * @param memberCount
+     * @param featureCount
+     * @param replacing
+     */
+    public EligibilityTraces(int memberCount, int featureCount, boolean replacing) {
+        this.replacing = replacing;
+        this.featureCount = featureCount;
+
+        traces = new float[memberCount * featureCount];
+        active = new int[traces.length];
+        activeIndex = new int[traces.length];
+        for (int i = 0; i < activeIndex.length; i++) {
+            activeIndex[i] = -1;
+        }
+        activeCount = 0;
+    }
+
+    /**
+     * Updates the traces of a member with the features of the state where it was
+     * chosen. Only non-zero features are touched.
+     *
+     * @param member
+     * @param features
+     */
+    public void visit(int member, float[] features) {
+        int offset = member * featureCount;
+        for (int j = 0; j < featureCount; j++) {
+            if (features[j] == 0) {
+                continue;
+            }
+
+            int position = offset + j;
+            if (activeIndex[position] == -1) {
+                activeIndex[position] = activeCount;
+                active[activeCount++] = position;
+                traces[position] = features[j];
+            } else if (replacing) {
+                traces[position] = features[j];
+            } else {
+                traces[position] += features[j];
+            }
+        }
+    }
+
+    /**
+     * Updates the traces of a member with the (non-zero) features of the state
+     * where it was chosen
+     *
+     * @param member
+     * @param features
+     */
+    public void visit(int member, SparseFeatures features) {
+        int offset = member * featureCount;
+        for (int k = 0; k < features.size(); k++) {
+            float value = features.value(k);
+            if (value == 0) {
+                continue;
+            }
+
+            int position = offset + features.index(k);
+            if (activeIndex[position] == -1) {
+                activeIndex[position] = activeCount;
+                active[activeCount++] = position;
+                traces[position] = value;
+            } else if (replacing) {
+                traces[position] = value;
+            } else {
+                traces[position] += value;
+            }
+        }
+    }
+
+    /**
+     * Applies w <- w + scale * e to every weight with a non-zero trace. Nothing
+     * is written if scale is zero (e.g., when the learning rate is zero), so
+     * copy-on-write weights stay shared.
+     *
+     * @param weights
+     * @param scale
+     */
+    public void apply(WeightMatrix weights, double scale) {
+        if (scale == 0) {
+            return;
+        }
+        for (int k = 0; k < activeCount; k++) {
+            int position = active[k];
+            weights.addAt(position, scale * traces[position]);
+        }
+    }
+
+    /**
+     * Multiplies every trace by the given factor (gamma * lambda), dropping the
+     * ones that become negligible
+     *
+     * @param factor
+     */
+    public void decay(double factor) {
+        int k = 0;
+        while (k < activeCount) {
+            int position = active[k];
+            traces[position] *= factor;
+
+            if (Math.abs(traces[position]) < MIN_TRACE) {
+                // moves the last active trace into this slot
+                remove(k);
+            } else {
+                k++;
+            }
+        }
+    }
+
+    /**
+     * Sets every trace to zero (to be called at the beginning of every episode)
+     */
+    public void clear() {
+        while (activeCount > 0) {
+            remove(activeCount - 1);
+        }
+    }
+
+    /**
+     * Returns the number of non-zero traces
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Zeroes the k-th active trace and removes it from the active list
+     *
+     * @param k
+     */
+    private void remove(int k) {
+        int position = active[k];
+        traces[position] = 0;
+        activeIndex[position] = -1;
+
+        activeCount--;
+        if (k != activeCount) {
+            active[k] = active[activeCount];
+            activeIndex[active[k]] = k;
+        }
+    }
+}
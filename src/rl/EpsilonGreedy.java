@@ -1,9 +1,5 @@
 package rl;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 public class EpsilonGreedy implements ExplorationStrategy {
@@ -22,47 +18,47 @@ public class EpsilonGreedy implements ExplorationStrategy {
     }
 
     @Override
-    public String selectAction(Map<String, Double> actionsValues) {
+    public int selectAction(double[] actionValues) {
         if (random.nextDouble() < epsilon) {
             // Explore
-            List<String> actions = new ArrayList<String>(actionsValues.keySet());
-            return getRandomAction(actions);
+            return random.nextInt(actionValues.length);
         } else {
             // Exploit
-            return getRandomBestAction(actionsValues);
+            return getRandomBestAction(actionValues);
         }
     }
 
-    private String getRandomBestAction(Map<String, Double> actionsValues) {
-        List<String> bestActions = getBestActions(actionsValues);
-        return getRandomAction(bestActions);
-    }
-
     /**
-     * Returns a list containing all actions with max value.
-     * @param   actionsValues a map with available actions and their respective values
-     * @return  a list containing the IDs of all actions with max value.
+     * Returns one of the actions with max value, chosen uniformly at random. The
+     * tied actions are counted and then the chosen one is located, instead of
+     * being collected in a list.
+     *
+     * @param actionValues
+     * @return
      */
-    private List<String> getBestActions(Map<String, Double> actionsValues) {
-        double maxValue = Collections.max(actionsValues.values());
+    private int getRandomBestAction(double[] actionValues) {
+        double maxValue = actionValues[0];
+        for (int i = 1; i < actionValues.length; i++) {
+            maxValue = Math.max(maxValue, actionValues[i]);
+        }
 
-        List<String> bestActions = new ArrayList<String>();
-        for (Map.Entry<String, Double> entry : actionsValues.entrySet()) {
-            if (Math.abs(maxValue - entry.getValue()) < PRECISION) {
-                bestActions.add(entry.getKey());
+        int bestCount = 0;
+        for (double value : actionValues) {
+            if (Math.abs(maxValue - value) < PRECISION) {
+                bestCount++;
             }
         }
-        return bestActions;
-    }
 
-    /**
-     * 
-     * @param actions
-     * @return
-     */
-    private String getRandomAction(List<String> actions) {
-        int randomIndex = random.nextInt(actions.size());
-        return actions.get(randomIndex);
+        int chosen = random.nextInt(bestCount);
+        for (int i = 0; i < actionValues.length; i++) {
+            if (Math.abs(maxValue - actionValues[i]) < PRECISION) {
+                if (chosen == 0) {
+                    return i;
+                }
+                chosen--;
+            }
+        }
+        throw new IllegalStateException("No best action found");
     }
 
     @Override
@@ -70,4 +66,9 @@ public class EpsilonGreedy implements ExplorationStrategy {
         epsilon *= decayRate;
     }
 
+    @Override
+    public ExplorationStrategy copy(Random random) {
+        return new EpsilonGreedy(epsilon, decayRate, random);
+    }
+
 }
@@ -1,11 +1,60 @@
 package rl;
 
-import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
 
+/**
+ * Chooses an action given the value of each one. Actions are identified by
+ * their ordinal (for Sarsa, the portfolio member ordinal), and implementations
+ * must not allocate when selecting, as this is called at every decision.
+ */
 public interface ExplorationStrategy {
 
-    public String selectAction(Map<String, Double> actionsValues);
+    /**
+     * Returns the ordinal of the chosen action
+     *
+     * @param actionValues the value of each action, indexed by ordinal
+     * @return
+     */
+    public int selectAction(double[] actionValues);
 
     public void concludeEpisode();
 
+    /**
+     * Returns a strategy with the same parameters and current state (e.g., the
+     * decayed epsilon), e.g. for a clone of the agent
+     *
+     * @param random the random number generator of the copy
+     * @return
+     */
+    public ExplorationStrategy copy(Random random);
+
+    /**
+     * Creates the strategy specified by rl.exploration (epsilon_greedy, softmax
+     * or ucb1) with its parameters
+     *
+     * @param config
+     * @param random
+     * @return
+     */
+    public static ExplorationStrategy create(Properties config, Random random) {
+        String type = config.getProperty("rl.exploration", "epsilon_greedy");
+        switch (type) {
+            case "epsilon_greedy":
+                return new EpsilonGreedy(
+                        Double.parseDouble(config.getProperty("rl.epsilon.initial", "0.1")),
+                        Double.parseDouble(config.getProperty("rl.epsilon.decay", "1.0")),
+                        random);
+            case "softmax":
+                return new Softmax(
+                        Double.parseDouble(config.getProperty("rl.softmax.temperature.initial", "0.1")),
+                        Double.parseDouble(config.getProperty("rl.softmax.temperature.decay", "1.0")),
+                        random);
+            case "ucb1":
+                return new UCB1(Double.parseDouble(config.getProperty("rl.ucb.c", "1.0")));
+            default:
+                throw new RuntimeException("Invalid exploration strategy: " + type);
+        }
+    }
+
 }
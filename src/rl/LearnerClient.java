@@ -0,0 +1,166 @@
+package rl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.FloatBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import features.SparseFeatures;
+
+/**
+ * Connection of an actor to a {@link LearnerServer}. The actor keeps choosing
+ * portfolio members with its own copy of the weights, but instead of updating
+ * them, it streams its transitions to the learner, which pushes updated
+ * weights back from time to time.
+ *
+ * Pushed weights are received by a background thread and only copied into the
+ * actor's weights when the game thread calls {@link #applyUpdates}, so the
+ * weights never change in the middle of a decision.
+ *
+ */
+public class LearnerClient implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(LearnerClient.class);
+
+    private final String address;
+
+    private final Socket socket;
+
+    private final DataOutputStream out;
+
+    private final DataInputStream in;
+
+    /**
+     * The latest weights pushed by the learner and not applied yet (null if
+     * there are none)
+     */
+    private volatile float[] pending;
+
+    /**
+     * Connects to the learner at host:port, sends it the layout and the current
+     * values of the weights, and replaces them by the ones the learner replies
+     * with
+     *
+     * @param address
+     * @param weights
+     * @throws IOException
+     */
+    public LearnerClient(String address, WeightMatrix weights) throws IOException {
+        this.address = address;
+
+        if (weights.getFeatureCount() > LearnerProtocol.MAX_FEATURES) {
+            throw new RuntimeException("Too many features to send to the learner: " + weights.getFeatureCount());
+        }
+
+        int colon = address.lastIndexOf(':');
+        if (colon == -1) {
+            throw new RuntimeException("Invalid learner address (expected host:port): " + address);
+        }
+        socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        out.writeInt(LearnerProtocol.MAGIC);
+        out.writeInt(LearnerProtocol.VERSION);
+        LearnerProtocol.writeNames(out, weights.getMemberNames());
+        LearnerProtocol.writeNames(out, weights.getFeatureNames());
+        LearnerProtocol.writeWeights(out, weights);
+        out.flush();
+
+        if (in.readByte() != LearnerProtocol.WEIGHTS) {
+            socket.close();
+            throw new IOException("Unexpected reply from learner at " + address);
+        }
+        pending = LearnerProtocol.readWeights(in);
+        applyUpdates(weights);
+
+        Thread receiver = new Thread(this::receive, "learner-client");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        logger.info("Connected to learner at {}", address);
+    }
+
+    /**
+     * Sends a transition (s, a, r, s', a') to the learner
+     *
+     * @param stateFeatures     features of s
+     * @param choice            a (member ordinal)
+     * @param reward            r
+     * @param done              whether s' is terminal
+     * @param nextStateFeatures features of s' (ignored if done)
+     * @param nextChoice        a' (member ordinal, ignored if done)
+     * @throws IOException
+     */
+    public void send(SparseFeatures stateFeatures, int choice, double reward, boolean done,
+            SparseFeatures nextStateFeatures,
+            int nextChoice) throws IOException {
+        out.writeByte(LearnerProtocol.TRANSITION);
+        out.writeInt(choice);
+        out.writeFloat((float) reward);
+        out.writeBoolean(done);
+        out.writeInt(done ? -1 : nextChoice);
+        LearnerProtocol.writeSparse(out, stateFeatures);
+        if (!done) {
+            LearnerProtocol.writeSparse(out, nextStateFeatures);
+        }
+        out.flush();
+    }
+
+    /**
+     * Copies the latest weights pushed by the learner (if any arrived since the
+     * last call) into the given weights
+     *
+     * @param weights
+     * @return whether the weights were updated
+     */
+    public boolean applyUpdates(WeightMatrix weights) {
+        float[] values = pending;
+        if (values == null) {
+            return false;
+        }
+        pending = null;
+
+        if (values.length != weights.getMemberCount() * weights.getFeatureCount()) {
+            throw new RuntimeException("Learner sent " + values.length + " weights, expected "
+                    + weights.getMemberCount() * weights.getFeatureCount());
+        }
+        weights.copyFrom(FloatBuffer.wrap(values));
+        return true;
+    }
+
+    /**
+     * Receives the weights pushed by the learner until the connection is closed
+     */
+    private void receive() {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type != LearnerProtocol.WEIGHTS) {
+                    throw new IOException("Unexpected message type " + type);
+                }
+                // only the latest weights matter, older ones are dropped if not applied yet
+                pending = LearnerProtocol.readWeights(in);
+            }
+        } catch (EOFException e) {
+            logger.info("Learner at {} closed the connection", address);
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                logger.error("Error while receiving weights from learner at " + address, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
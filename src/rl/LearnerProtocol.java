@@ -0,0 +1,154 @@
+package rl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import features.SparseFeatures;
+
+/**
+ * Messages exchanged between actors ({@link LearnerClient}) and the learner
+ * ({@link LearnerServer}) over a local socket.
+ *
+ * <pre>
+ * actor -> learner, on connection:
+ *   int MAGIC, int VERSION, member names, feature names, weights
+ * learner -> actor, in reply:
+ *   WEIGHTS message with the weights to start from
+ * actor -> learner, at every decision:
+ *   byte TRANSITION, int a, float r, boolean done, int a', sparse s, sparse s' (if not done)
+ * learner -> actor, every rl.learner.push_interval updates:
+ *   byte WEIGHTS, int m*n, m*n floats (row-major)
+ * </pre>
+ *
+ * Names are written as an int count followed by (int length + UTF-8 bytes).
+ * Feature vectors are sparse, as most features of a state are zero: an int
+ * count of non-zero features followed by (short index + float value) pairs.
+ *
+ */
+class LearnerProtocol {
+
+    static final int MAGIC = 0x4C424D4D; // 'MMBL'
+
+    static final int VERSION = 1;
+
+    static final byte TRANSITION = 1;
+
+    static final byte WEIGHTS = 2;
+
+    /**
+     * Feature indices are sent as unsigned shorts
+     */
+    static final int MAX_FEATURES = 1 << 16;
+
+    static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+
+    /**
+     * Writes a WEIGHTS message
+     *
+     * @param out
+     * @param weights
+     * @throws IOException
+     */
+    static void writeWeights(DataOutputStream out, WeightMatrix weights) throws IOException {
+        out.writeByte(WEIGHTS);
+        out.writeInt(weights.getMemberCount() * weights.getFeatureCount());
+        for (int i = 0; i < weights.getMemberCount(); i++) {
+            for (int j = 0; j < weights.getFeatureCount(); j++) {
+                out.writeFloat(weights.get(i, j));
+            }
+        }
+    }
+
+    /**
+     * Reads the body of a WEIGHTS message (after its type)
+     *
+     * @param in
+     * @return the weights, row-major
+     * @throws IOException
+     */
+    static float[] readWeights(DataInputStream in) throws IOException {
+        float[] values = new float[in.readInt()];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = in.readFloat();
+        }
+        return values;
+    }
+
+    static void writeSparse(DataOutputStream out, SparseFeatures features) throws IOException {
+        out.writeInt(features.size());
+        for (int k = 0; k < features.size(); k++) {
+            out.writeShort(features.index(k));
+            out.writeFloat(features.value(k));
+        }
+    }
+
+    /**
+     * Reads a sparse feature vector into compact arrays, which are kept until the
+     * learning thread copies them into a reusable {@link SparseFeatures}
+     *
+     * @param in
+     * @param featureCount
+     * @return
+     * @throws IOException
+     */
+    static SparseVector readSparse(DataInputStream in, int featureCount) throws IOException {
+        int count = in.readInt();
+        SparseVector vector = new SparseVector(count);
+        for (int k = 0; k < count; k++) {
+            int j = in.readUnsignedShort();
+            if (j >= featureCount) {
+                throw new IOException("Feature index out of range: " + j);
+            }
+            vector.indices[k] = j;
+            vector.values[k] = in.readFloat();
+        }
+        return vector;
+    }
+
+    /**
+     * Non-zero features of a received feature vector
+     */
+    static class SparseVector {
+        final int[] indices;
+        final float[] values;
+
+        SparseVector(int count) {
+            indices = new int[count];
+            values = new float[count];
+        }
+
+        /**
+         * Replaces the entries of the given vector by these
+         *
+         * @param out
+         */
+        void copyTo(SparseFeatures out) {
+            out.clear();
+            for (int k = 0; k < indices.length; k++) {
+                out.add(indices[k], values[k]);
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package rl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import config.ConfigManager;
+import features.SparseFeatures;
+
+/**
+ * Learner process of the actor/learner mode. Actors are MetaBots (in any
+ * number of Runner processes on the same machine) whose configuration has
+ * rl.learner.address = localhost:port: they choose portfolio members with
+ * their copy of the weights and stream their transitions here (see
+ * {@link LearnerProtocol}). The learner applies the Sarsa(lambda) rule to a
+ * single weight table, with one set of eligibility traces per actor, and
+ * pushes the weights to every actor each rl.learner.push_interval updates.
+ *
+ * Transitions are applied by a single thread, in arrival order, so the weights
+ * have a single writer. The weights are saved (weights_learner.bin and/or
+ * weights_learner.history in rl.workingdir) every rl.checkpoint.interval
+ * episodes and when the last actor disconnects, which ends the learner.
+ *
+ * Usage: LearnerServer -c config/metabot.properties [-p port]
+ *
+ */
+public class LearnerServer {
+
+    private static final Logger logger = LogManager.getLogger(LearnerServer.class);
+
+    /**
+     * A connected actor
+     */
+    private static class Actor {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        /**
+         * Traces of the actor's current episode (created upon its handshake)
+         */
+        EligibilityTraces traces;
+
+        Actor(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    /**
+     * Something that happened to an actor, to be handled by the learning thread
+     */
+    private static class Event {
+        final Actor actor;
+
+        /**
+         * Weights and layout sent by a new actor (null for the other events)
+         */
+        WeightMatrix hello;
+
+        /**
+         * Whether the actor disconnected
+         */
+        boolean bye;
+
+        int choice;
+        float reward;
+        boolean done;
+        int nextChoice;
+        LearnerProtocol.SparseVector stateFeatures;
+        LearnerProtocol.SparseVector nextStateFeatures;
+
+        Event(Actor actor) {
+            this.actor = actor;
+        }
+    }
+
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+
+    private final List<Actor> actors = new ArrayList<>();
+
+    private WeightMatrix weights;
+
+    private double alpha;
+    private final double alphaDecayRate;
+    private final double gamma;
+    private final double lambda;
+    private final boolean replacingTraces;
+
+    private final int pushInterval;
+    private final int checkpointInterval;
+
+    private final String prefix;
+    private final boolean saveBin;
+    private final boolean saveHistory;
+    private final int keyframeInterval;
+
+    /**
+     * Written only by the checkpoint thread
+     */
+    private WeightHistory weightHistory;
+
+    private long updates;
+    private long episodes;
+
+    /**
+     * Number of episodes at the last checkpoint
+     */
+    private long checkpointEpisodes = -1;
+
+    public LearnerServer(Properties config) {
+        alpha = Double.parseDouble(config.getProperty("rl.alpha.initial", "0.1"));
+        alphaDecayRate = Double.parseDouble(config.getProperty("rl.alpha.decay", "1.0"));
+        gamma = Double.parseDouble(config.getProperty("rl.gamma", "0.9"));
+        lambda = Double.parseDouble(config.getProperty("rl.lambda", "0.0"));
+
+        String traceType = config.getProperty("rl.trace.type", "accumulating");
+        switch (traceType) {
+            case "accumulating":
+                replacingTraces = false;
+                break;
+            case "replacing":
+                replacingTraces = true;
+                break;
+            default:
+                throw new RuntimeException("Invalid eligibility trace type: " + traceType);
+        }
+
+        pushInterval = Integer.parseInt(config.getProperty("rl.learner.push_interval", "100"));
+        checkpointInterval = Integer.parseInt(config.getProperty("rl.checkpoint.interval", "1"));
+
+        String dir = config.getProperty("rl.workingdir", "weights/");
+        if (dir.charAt(dir.length() - 1) != '/') {
+            dir = dir + "/";
+        }
+        prefix = dir + "weights_learner";
+        saveBin = config.getProperty("rl.save_weights_bin", "False").equalsIgnoreCase("True");
+        saveHistory = config.getProperty("rl.save_weights_history", "False").equalsIgnoreCase("True");
+        keyframeInterval = Integer.parseInt(config.getProperty("rl.weights_history.keyframe_interval", "20"));
+
+        if (config.containsKey("rl.bin_input")) {
+            try {
+                weights = WeightFile.load(config.getProperty("rl.bin_input"));
+                logger.info("Loaded initial weights from {}", config.getProperty("rl.bin_input"));
+            } catch (IOException e) {
+                logger.error("Error while loading weights from " + config.getProperty("rl.bin_input")
+                        + ". The weights of the first actor will be used.", e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("c", "config", true, "config file");
+        options.addOption("p", "port", true, "port to listen on");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+        Properties config = ConfigManager.loadConfig(cmd.getOptionValue("c", "config/metabot.properties"));
+        int port = Integer.parseInt(cmd.getOptionValue("p", config.getProperty("rl.learner.port", "9899")));
+
+        new LearnerServer(config).serve(port);
+    }
+
+    /**
+     * Accepts actors on the given port (loopback interface only) and learns from
+     * their transitions until the last of them disconnects
+     *
+     * @param port
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void serve(int port) throws IOException, InterruptedException {
+        serve(new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+    }
+
+    /**
+     * Accepts actors on the given socket (e.g., bound to an ephemeral port) and
+     * learns from their transitions until the last of them disconnects, then
+     * closes the socket
+     *
+     * @param server
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void serve(ServerSocket server) throws IOException, InterruptedException {
+        logger.info("Learner listening on {}:{}", server.getInetAddress().getHostAddress(), server.getLocalPort());
+
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Actor actor = new Actor(server.accept());
+                    Thread reader = new Thread(() -> read(actor), "learner-actor-" + actor.socket.getPort());
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    if (!server.isClosed()) {
+                        logger.error("Error while accepting an actor", e);
+                    }
+                }
+            }
+        }, "learner-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        learn();
+
+        server.close();
+        checkpoint();
+        CheckpointWriter.getInstance().submit("closing weight history", () -> {
+            if (weightHistory != null) {
+                weightHistory.close();
+            }
+        });
+        CheckpointWriter.getInstance().flush();
+        logger.info("Learner finished after {} updates and {} episodes", updates, episodes);
+    }
+
+    /**
+     * Reads the messages of an actor into the event queue until it disconnects
+     *
+     * @param actor
+     */
+    private void read(Actor actor) {
+        try {
+            DataInputStream in = actor.in;
+            if (in.readInt() != LearnerProtocol.MAGIC || in.readInt() != LearnerProtocol.VERSION) {
+                throw new IOException("Actor uses an incompatible protocol");
+            }
+            List<String> memberNames = LearnerProtocol.readNames(in);
+            List<String> featureNames = LearnerProtocol.readNames(in);
+            if (in.readByte() != LearnerProtocol.WEIGHTS) {
+                throw new IOException("Actor did not send its weights");
+            }
+            float[] values = LearnerProtocol.readWeights(in);
+
+            Event hello = new Event(actor);
+            hello.hello = new WeightMatrix(memberNames, featureNames);
+            hello.hello.copyFrom(FloatBuffer.wrap(values));
+            events.put(hello);
+
+            int featureCount = featureNames.size();
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type != LearnerProtocol.TRANSITION) {
+                    throw new IOException("Unexpected message type " + type);
+                }
+
+                Event transition = new Event(actor);
+                transition.choice = in.readInt();
+                transition.reward = in.readFloat();
+                transition.done = in.readBoolean();
+                transition.nextChoice = in.readInt();
+                transition.stateFeatures = LearnerProtocol.readSparse(in, featureCount);
+                if (!transition.done) {
+                    transition.nextStateFeatures = LearnerProtocol.readSparse(in, featureCount);
+                }
+                events.put(transition);
+            }
+        } catch (IOException e) {
+            logger.error("Error while reading from actor " + actor.socket.getRemoteSocketAddress(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Event bye = new Event(actor);
+        bye.bye = true;
+        events.add(bye);
+    }
+
+    /**
+     * Handles the events of all actors, until the last actor disconnects
+     *
+     * @throws InterruptedException
+     */
+    private void learn() throws InterruptedException {
+        // reused for every transition (sized upon the first one)
+        SparseFeatures stateFeatures = null;
+        SparseFeatures nextStateFeatures = null;
+
+        while (true) {
+            Event event = events.take();
+            Actor actor = event.actor;
+
+            if (event.hello != null) {
+                hello(actor, event.hello);
+            } else if (event.bye) {
+                try {
+                    actor.socket.close();
+                } catch (IOException e) {
+                    // nothing to do, the actor is gone anyway
+                }
+                if (actors.remove(actor)) {
+                    logger.info("Actor {} disconnected ({} left)", actor.socket.getRemoteSocketAddress(),
+                            actors.size());
+                    if (actors.isEmpty()) {
+                        return;
+                    }
+                }
+            } else if (actor.traces != null) {
+                if (stateFeatures == null || stateFeatures.getDimension() != weights.getFeatureCount()) {
+                    stateFeatures = new SparseFeatures(weights.getFeatureCount());
+                    nextStateFeatures = new SparseFeatures(weights.getFeatureCount());
+                }
+                event.stateFeatures.copyTo(stateFeatures);
+                if (!event.done) {
+                    event.nextStateFeatures.copyTo(nextStateFeatures);
+                }
+                Sarsa.sarsaUpdate(weights, actor.traces, alpha, gamma, lambda, stateFeatures, event.choice,
+                        event.reward, event.done, event.done ? null : nextStateFeatures, event.nextChoice);
+                updates++;
+
+                if (event.done) {
+                    episodes++;
+                    alpha *= alphaDecayRate;
+                    if (episodes % checkpointInterval == 0) {
+                        checkpoint();
+                    }
+                }
+                if (updates % pushInterval == 0) {
+                    push();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a new actor and replies with the weights it should start from.
+     * The first actor defines the weights if none were loaded.
+     *
+     * @param actor
+     * @param actorWeights
+     */
+    private void hello(Actor actor, WeightMatrix actorWeights) {
+        if (weights == null) {
+            weights = actorWeights;
+        } else if (!weights.hasLayout(actorWeights.getMemberNames(), actorWeights.getFeatureNames())) {
+            if (actors.isEmpty() && updates == 0) {
+                // weights loaded from a file with another layout: adopts the actor's layout
+                actorWeights.importFrom(weights);
+                weights = actorWeights;
+            } else {
+                logger.error("Actor {} has different members or features, disconnecting it",
+                        actor.socket.getRemoteSocketAddress());
+                try {
+                    actor.socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                return;
+            }
+        }
+
+        actor.traces = new EligibilityTraces(weights.getMemberCount(), weights.getFeatureCount(), replacingTraces);
+        try {
+            LearnerProtocol.writeWeights(actor.out, weights);
+            actor.out.flush();
+            actors.add(actor);
+            logger.info("Actor {} connected ({} in total)", actor.socket.getRemoteSocketAddress(), actors.size());
+        } catch (IOException e) {
+            logger.error("Error while sending weights to actor " + actor.socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    /**
+     * Sends the weights to every actor
+     */
+    private void push() {
+        for (Actor actor : actors) {
+            try {
+                LearnerProtocol.writeWeights(actor.out, weights);
+                actor.out.flush();
+            } catch (IOException e) {
+                // the reader of this actor will notice the failure and disconnect it
+                logger.debug("Error while pushing weights to actor {}", actor.socket.getRemoteSocketAddress());
+            }
+        }
+    }
+
+    /**
+     * Saves a copy of the weights in background
+     */
+    private void checkpoint() {
+        if (weights == null || (!saveBin && !saveHistory) || episodes == checkpointEpisodes) {
+            return;
+        }
+        checkpointEpisodes = episodes;
+        WeightMatrix snapshot = weights.copy();
+        CheckpointWriter.getInstance().submit(prefix, () -> {
+            if (saveBin) {
+                WeightFile.write(snapshot, prefix + ".bin");
+            }
+            if (saveHistory) {
+                if (weightHistory == null) {
+                    weightHistory = new WeightHistory(prefix + ".history", snapshot.getMemberNames(),
+                            snapshot.getFeatureNames(), keyframeInterval);
+                }
+                weightHistory.append(snapshot);
+            }
+        });
+    }
+}
@@ -0,0 +1,233 @@
+package rl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ai.core.AI;
+import ai.evaluation.EvaluationFunction;
+import ai.evaluation.SimpleSqrtEvaluationFunction3;
+import rts.GameState;
+import rts.PlayerAction;
+
+/**
+ * Scores the portfolio members with the highest Q-values by simulating them.
+ * From a clone of the state, each candidate plays against an opponent model
+ * (a scripted member) for a number of cycles, and the resulting state is
+ * evaluated with {@link SimpleSqrtEvaluationFunction3}, in [-1, 1] as the
+ * Q-values. The evaluations are then blended with the Q-values (see
+ * {@link #blend}).
+ *
+ * The simulations run in parallel on a fixed pool of daemon threads. Each
+ * thread plays with its own clones of the members and the opponent, so the
+ * members that play the match are never touched. Simulations that do not
+ * finish within the timeout are cancelled, and their candidates keep their
+ * Q-values.
+ *
+ * {@link #evaluate} blocks the calling (game) thread until the simulations
+ * finish or the timeout expires. This happens only in decision frames (one
+ * every rl.sticky_actions frames), but the timeout counts against the time
+ * budget of that frame, together with the member's own action, so it should be
+ * well below the budget (the default is 20 ms). The simulations are not left
+ * running for the next decision: their evaluations refer to the decision
+ * state, from which the chosen member plays.
+ *
+ * An instance may be shared by agents playing on different threads (e.g., an
+ * agent and its clones): their simulations queue for the same threads.
+ *
+ */
+public class Lookahead {
+
+    private final int candidates;
+    private final int cycles;
+    private final double weight;
+    private final long timeoutMillis;
+
+    private final ExecutorService executor;
+
+    /**
+     * Clones of the members (by ordinal) followed by a clone of the opponent,
+     * one set per thread, taken by a simulation while it runs
+     */
+    private final BlockingQueue<AI[]> players;
+
+    /**
+     * @param members       the portfolio, by ordinal
+     * @param opponent      the opponent model
+     * @param candidates    number of members simulated at each decision
+     * @param cycles        number of game cycles simulated
+     * @param weight        weight of the evaluations in the blend, in [0, 1]
+     * @param threads       size of the thread pool
+     * @param timeoutMillis time the simulations of a decision have to finish
+     */
+    public Lookahead(AI[] members, AI opponent, int candidates, int cycles, double weight, int threads,
+            long timeoutMillis) {
+        if (candidates < 1 || cycles < 1 || threads < 1 || timeoutMillis < 1) {
+            throw new RuntimeException("Invalid lookahead settings: " + candidates + " candidates, " + cycles
+                    + " cycles, " + threads + " threads, " + timeoutMillis + " ms");
+        }
+        if (weight < 0 || weight > 1) {
+            throw new RuntimeException("Invalid lookahead weight (must be in [0, 1]): " + weight);
+        }
+        this.candidates = Math.min(candidates, members.length);
+        this.cycles = cycles;
+        this.weight = weight;
+        this.timeoutMillis = timeoutMillis;
+
+        players = new ArrayBlockingQueue<>(threads);
+        for (int t = 0; t < threads; t++) {
+            AI[] set = new AI[members.length + 1];
+            for (int i = 0; i < members.length; i++) {
+                set[i] = members[i].clone();
+            }
+            set[members.length] = opponent.clone();
+            players.add(set);
+        }
+
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "metabot-lookahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Simulates the candidates (the members with the highest Q-values) from the
+     * state, writing the evaluation of each member into out (NaN for the
+     * members not simulated or whose simulation did not finish in time)
+     *
+     * @param state
+     * @param player
+     * @param qValues by member ordinal
+     * @param out     by member ordinal
+     */
+    public void evaluate(GameState state, int player, double[] qValues, double[] out) {
+        Arrays.fill(out, Double.NaN);
+
+        int[] order = new int[candidates];
+        selectCandidates(qValues, order);
+
+        // the state is cloned here, as the game moves on while cancelled simulations wind down
+        List<Callable<Float>> simulations = new ArrayList<>(candidates);
+        for (int c = 0; c < candidates; c++) {
+            int member = order[c];
+            GameState copy = state.clone();
+            simulations.add(() -> simulate(member, player, copy));
+        }
+
+        List<Future<Float>> results;
+        try {
+            results = executor.invokeAll(simulations, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (int c = 0; c < candidates; c++) {
+            try {
+                out[order[c]] = results.get(c).get();
+            } catch (CancellationException | ExecutionException e) {
+                // did not finish in time (or failed): the member keeps its Q-value
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fills order with the ordinals of the members with the highest Q-values, in
+     * decreasing order of Q-value (ties in ordinal order), by insertion into the
+     * array: a partial selection in O(members x candidates), without sorting
+     * the whole portfolio
+     *
+     * @param qValues by member ordinal
+     * @param order   ordinals of the candidates, filled
+     */
+    public static void selectCandidates(double[] qValues, int[] order) {
+        int size = 0;
+        for (int i = 0; i < qValues.length; i++) {
+            int pos = size;
+            while (pos > 0 && qValues[order[pos - 1]] < qValues[i]) {
+                pos--;
+            }
+            if (pos == order.length) {
+                continue;
+            }
+            for (int k = Math.min(size, order.length - 1); k > pos; k--) {
+                order[k] = order[k - 1];
+            }
+            order[pos] = i;
+            if (size < order.length) {
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Plays a member against the opponent model from a state and evaluates the
+     * outcome
+     *
+     * @param member ordinal
+     * @param player
+     * @param state  a clone, modified by the simulation
+     * @return
+     * @throws Exception
+     */
+    private float simulate(int member, int player, GameState state) throws Exception {
+        AI[] set = players.take();
+        try {
+            AI ai = set[member];
+            AI opponent = set[set.length - 1];
+            ai.reset();
+            opponent.reset();
+
+            int end = state.getTime() + cycles;
+            boolean gameover = state.gameover();
+            while (!gameover && state.getTime() < end) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Simulation cancelled");
+                }
+                PlayerAction action = ai.getAction(player, state);
+                PlayerAction opponentAction = opponent.getAction(1 - player, state);
+                state.issueSafe(action);
+                state.issueSafe(opponentAction);
+                gameover = state.cycle();
+            }
+
+            if (state.gameover()) {
+                int winner = state.winner();
+                return winner == player ? 1 : winner == -1 ? 0 : -1;
+            }
+            EvaluationFunction evaluation = new SimpleSqrtEvaluationFunction3();
+            return evaluation.evaluate(player, 1 - player, state);
+        } finally {
+            // offer does not fail if this thread was interrupted (capacity is never exceeded)
+            players.offer(set);
+        }
+    }
+
+    /**
+     * Replaces the Q-value of each evaluated member by (1 - weight) * Q +
+     * weight * evaluation
+     *
+     * @param qValues     by member ordinal, modified
+     * @param evaluations by member ordinal (NaN if not evaluated)
+     */
+    public void blend(double[] qValues, double[] evaluations) {
+        for (int i = 0; i < qValues.length; i++) {
+            if (!Double.isNaN(evaluations[i])) {
+                qValues[i] = (1 - weight) * qValues[i] + weight * evaluations[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package rl;
+
+/**
+ * Computes the Q-values of all portfolio members for a feature vector in a
+ * single matrix-vector product over the raw weights of a {@link WeightMatrix}.
+ *
+ * The default implementation is {@link ScalarQEvaluator}. When the JDK Vector
+ * API (module jdk.incubator.vector) is available and the optional sources in
+ * src-vector were compiled (see the build-vector target in build.xml),
+ * {@link #create} can return a SIMD implementation instead.
+ *
+ */
+public abstract class QEvaluator {
+
+    /**
+     * Name of the optional SIMD implementation
+     */
+    private static final String VECTOR_EVALUATOR = "rl.VectorQEvaluator";
+
+    /**
+     * Fills out[i] with the dot product of the i-th row of the weights and the
+     * feature vector that starts at position 'from' of the features array
+     *
+     * @param weights      row-major weights (memberCount x featureCount)
+     * @param memberCount
+     * @param featureCount
+     * @param features
+     * @param from
+     * @param out
+     */
+    public abstract void evaluate(float[] weights, int memberCount, int featureCount, float[] features, int from,
+            float[] out);
+
+    /**
+     * Creates an evaluator of the given type: 'scalar', 'vector' (fails if the
+     * Vector API is not available) or 'auto' (vector if available, scalar
+     * otherwise)
+     *
+     * @param type
+     * @return
+     */
+    public static QEvaluator create(String type) {
+        switch (type) {
+            case "scalar":
+                return new ScalarQEvaluator();
+            case "vector":
+                QEvaluator vector = loadVectorEvaluator();
+                if (vector == null) {
+                    throw new RuntimeException("Vector API Q-value evaluator is not available");
+                }
+                return vector;
+            case "auto":
+                vector = loadVectorEvaluator();
+                return vector != null ? vector : new ScalarQEvaluator();
+            default:
+                throw new RuntimeException("Invalid Q-value evaluator: " + type);
+        }
+    }
+
+    /**
+     * Instantiates the SIMD evaluator, returning null if it was not compiled or if
+     * the JVM was not started with the Vector API module
+     *
+     * @return
+     */
+    private static QEvaluator loadVectorEvaluator() {
+        try {
+            return (QEvaluator) Class.forName(VECTOR_EVALUATOR).getConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+}
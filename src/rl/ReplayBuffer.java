@@ -0,0 +1,272 @@
+package rl;
+
+import java.util.Random;
+
+/**
+ * Fixed-capacity ring buffer of experience tuples (s, a, r, s', done). States
+ * are stored as feature vectors in flat primitive arrays (no {@link rts.GameState}
+ * is kept), so a stored transition costs two feature vectors plus a few
+ * scalars, and adding one allocates nothing. When the buffer is full, the
+ * oldest transition is overwritten.
+ *
+ * Transitions are sampled uniformly or, in priority mode, with probability
+ * proportional to priority^alpha, where the priority is the absolute value of
+ * the last temporal-difference error of the transition. Priorities are kept in
+ * a sum tree, so that sampling and updating a priority cost O(log capacity).
+ *
+ */
+public class ReplayBuffer {
+
+    /**
+     * Priority of transitions with zero TD error, so that they can still be
+     * sampled
+     */
+    private static final double MIN_PRIORITY = 1e-3;
+
+    private final int capacity;
+    private final int featureCount;
+
+    /**
+     * The stored transitions: the features of the i-th s (and s') start at
+     * i * featureCount
+     */
+    private final float[] states;
+    private final float[] nextStates;
+    private final int[] actions;
+    private final float[] rewards;
+    private final boolean[] terminal;
+
+    /**
+     * Position where the next transition will be written and number of stored
+     * transitions
+     */
+    private int next;
+    private int size;
+
+    private final boolean prioritized;
+    private final double priorityExponent;
+
+    /**
+     * Sum tree of priorities: leaves start at treeLeaves, node i is the sum of
+     * nodes 2i and 2i+1 (null if not prioritized)
+     */
+    private final double[] tree;
+    private final int treeLeaves;
+    private double maxPriority;
+
+    /**
+     * Creates a replay buffer with uniform sampling
+     *
+     * @param capacity
+     * @param featureCount
+     */
+    public ReplayBuffer(int capacity, int featureCount) {
+        this(capacity, featureCount, false, 0);
+    }
+
+    /**
+     * Creates a replay buffer
+     *
+     * @param capacity
+     * @param featureCount
+     * @param prioritized      whether transitions are sampled according to their
+     *                         priority
+     * @param priorityExponent alpha in P(i) = p_i^alpha / sum_k p_k^alpha
+     */
+    public ReplayBuffer(int capacity, int featureCount, boolean prioritized, double priorityExponent) {
+        if (capacity <= 0) {
+            throw new RuntimeException("Invalid replay buffer capacity: " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.featureCount = featureCount;
+
+        states = new float[capacity * featureCount];
+        nextStates = new float[capacity * featureCount];
+        actions = new int[capacity];
+        rewards = new float[capacity];
+        terminal = new boolean[capacity];
+
+        this.prioritized = prioritized;
+        this.priorityExponent = priorityExponent;
+
+        if (prioritized) {
+            int leaves = 1;
+            while (leaves < capacity) {
+                leaves *= 2;
+            }
+            treeLeaves = leaves;
+            tree = new double[2 * leaves];
+        } else {
+            treeLeaves = 0;
+            tree = null;
+        }
+        maxPriority = 1;
+
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * Stores a transition. The feature vectors are copied. In priority mode, the
+     * new transition receives the highest priority seen so far, so it is likely
+     * to be replayed at least once.
+     *
+     * @param stateFeatures     features of s
+     * @param action            a (member ordinal)
+     * @param reward            r
+     * @param nextStateFeatures features of s' (ignored if done)
+     * @param done              whether s' is terminal
+     */
+    public void add(float[] stateFeatures, int action, double reward, float[] nextStateFeatures, boolean done) {
+        int offset = next * featureCount;
+        System.arraycopy(stateFeatures, 0, states, offset, featureCount);
+        if (!done) {
+            System.arraycopy(nextStateFeatures, 0, nextStates, offset, featureCount);
+        }
+        actions[next] = action;
+        rewards[next] = (float) reward;
+        terminal[next] = done;
+
+        if (prioritized) {
+            setTreeValue(next, Math.pow(maxPriority, priorityExponent));
+        }
+
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Fills the given array with the positions of randomly sampled transitions
+     * (with replacement). The buffer must not be empty.
+     *
+     * @param random
+     * @param out
+     */
+    public void sample(Random random, int[] out) {
+        for (int k = 0; k < out.length; k++) {
+            if (prioritized) {
+                out[k] = sampleByPriority(random.nextDouble() * tree[1]);
+            } else {
+                out[k] = random.nextInt(size);
+            }
+        }
+    }
+
+    /**
+     * Fills the given array with the importance-sampling weights of the sampled
+     * transitions, (N * P(i))^-beta, normalized by the largest weight in the
+     * batch. All weights are 1 if the buffer is not prioritized.
+     *
+     * @param positions the sampled transitions
+     * @param beta
+     * @param out
+     */
+    public void importanceWeights(int[] positions, double beta, double[] out) {
+        if (!prioritized) {
+            for (int k = 0; k < positions.length; k++) {
+                out[k] = 1;
+            }
+            return;
+        }
+
+        double maxWeight = 0;
+        for (int k = 0; k < positions.length; k++) {
+            double probability = tree[treeLeaves + positions[k]] / tree[1];
+            out[k] = Math.pow(size * probability, -beta);
+            maxWeight = Math.max(maxWeight, out[k]);
+        }
+        for (int k = 0; k < positions.length; k++) {
+            out[k] /= maxWeight;
+        }
+    }
+
+    /**
+     * Sets the priority of a transition from its latest temporal-difference error
+     * (no effect if the buffer is not prioritized)
+     *
+     * @param position
+     * @param tdError
+     */
+    public void updatePriority(int position, double tdError) {
+        if (!prioritized) {
+            return;
+        }
+        double priority = Math.abs(tdError) + MIN_PRIORITY;
+        maxPriority = Math.max(maxPriority, priority);
+        setTreeValue(position, Math.pow(priority, priorityExponent));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the array holding the features of s. The features of the
+     * transition at a position start at {@link #offset}(position)
+     *
+     * @return
+     */
+    public float[] getStates() {
+        return states;
+    }
+
+    /**
+     * Returns the array holding the features of s'. The features of the
+     * transition at a position start at {@link #offset}(position)
+     *
+     * @return
+     */
+    public float[] getNextStates() {
+        return nextStates;
+    }
+
+    public int offset(int position) {
+        return position * featureCount;
+    }
+
+    public int getAction(int position) {
+        return actions[position];
+    }
+
+    public float getReward(int position) {
+        return rewards[position];
+    }
+
+    public boolean isTerminal(int position) {
+        return terminal[position];
+    }
+
+    /**
+     * Descends the sum tree to find the leaf where the cumulative priority
+     * reaches the given value
+     *
+     * @param value
+     * @return
+     */
+    private int sampleByPriority(double value) {
+        int node = 1;
+        while (node < treeLeaves) {
+            int left = 2 * node;
+            if (value < tree[left] || tree[left + 1] == 0) {
+                node = left;
+            } else {
+                value -= tree[left];
+                node = left + 1;
+            }
+        }
+        // guards against rounding errors that would select an empty leaf
+        return Math.min(node - treeLeaves, size - 1);
+    }
+
+    private void setTreeValue(int position, double value) {
+        int node = treeLeaves + position;
+        tree[node] = value;
+        for (node /= 2; node >= 1; node /= 2) {
+            tree[node] = tree[2 * node] + tree[2 * node + 1];
+        }
+    }
+
+}
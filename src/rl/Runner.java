@@ -5,9 +5,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -18,8 +23,11 @@ import org.apache.logging.log4j.Logger;
 
 import ai.core.AI;
 import config.ConfigManager;
+import features.FeatureExtractor;
+import features.UnitCensus;
 import metabot.MetaBot;
 import metabot.EpsilonLightRush;
+import metabot.LatencyHistogram;
 import rts.GameSettings;
 import rts.GameState;
 import rts.PartiallyObservableGameState;
@@ -53,6 +61,8 @@ public class Runner {
         // Runner command line options
         options.addOption("c", "config", true, "config file");
         options.addOption("o", "output", true, "output file");
+        options.addOption("t", "threads", true, "number of matches played in parallel");
+        options.addOption("l", "learner", true, "address (host:port) of the learner process MetaBots act for");
 
         // Player 1 command line options
         options.addOption("s1", "seed1", true, "player 1 seed number");
@@ -95,11 +105,22 @@ public class Runner {
         GameSettings settings = GameSettings.loadFromConfig(prop);
         logger.info(settings);
 
+        if (cmd.hasOption("t")) {
+            prop.setProperty("runner.threads", cmd.getOptionValue("t"));
+        }
+
         UnitTypeTable utt = new UnitTypeTable(settings.getUTTVersion(), settings.getConflictPolicy());
-        AI ai1 = loadAI(settings.getAI1(), utt, 1, prop, cmd);
-        AI ai2 = loadAI(settings.getAI2(), utt, 2, prop, cmd);
 
         int numGames = Integer.parseInt(prop.getProperty("runner.num_games", "1"));
+        int numThreads = Integer.parseInt(prop.getProperty("runner.threads", "1"));
+
+        if (numThreads > 1) {
+            parallelMatches(numThreads, numGames, settings, utt, prop, cmd);
+            return;
+        }
+
+        AI ai1 = loadAI(settings.getAI1(), utt, 1, prop, cmd);
+        AI ai2 = loadAI(settings.getAI2(), utt, 2, prop, cmd);
 
         for (int i = 0; i < numGames; i++) {
 
@@ -125,6 +146,7 @@ public class Runner {
             if (prop.containsKey("runner.output")) {
                 try {
                     outputSummary(prop.getProperty("runner.output"), result, duration, begin, end);
+                    outputLatencies(prop.getProperty("runner.output"), i + 1, new AI[] {ai1, ai2});
                 } catch(IOException ioe) {
                     logger.error("Error while trying to write summary to '" + prop.getProperty("runner.output") + "'", ioe);
                 }
@@ -134,10 +156,160 @@ public class Runner {
             ai2.reset();
         }
 
+        // saves the weights of the matches after the last checkpoint and waits for the writes
+        flushWeights(new AI[] {ai1, ai2});
+
         System.out.println(); // adds a trailing \n to the match count written in the loop.
         logger.info("Executed " + numGames + " matches.");
     }
 
+    /**
+     * Plays numGames matches with numThreads workers in parallel. Each worker has
+     * its own instances of both players. The MetaBots in the same position (player
+     * 1 or 2) share a single weight table, which they all update concurrently
+     * without locks (Hogwild!-style), so that learning from every worker
+     * accumulates in the same weights.
+     * 
+     * Only the MetaBots of the first worker save weights: each match (played by
+     * any worker) counts towards their checkpoint interval, and the shared
+     * weights are checkpointed through their usual saveBin and saveHuman paths.
+     * 
+     * @param numThreads
+     * @param numGames
+     * @param settings
+     * @param utt
+     * @param prop
+     * @param cmd
+     * @throws Exception
+     */
+    public static void parallelMatches(
+            int numThreads,
+            int numGames,
+            GameSettings settings,
+            UnitTypeTable utt,
+            Properties prop,
+            CommandLine cmd
+            ) throws Exception {
+        logger.info("Playing {} matches with {} threads", numGames, numThreads);
+
+        AI[][] players = new AI[numThreads][2];
+        for (int w = 0; w < numThreads; w++) {
+            players[w][0] = loadAI(settings.getAI1(), utt, 1, prop, cmd, w);
+            players[w][1] = loadAI(settings.getAI2(), utt, 2, prop, cmd, w);
+        }
+
+        // the weights are initialized from the initial state before any match starts,
+        // then the MetaBots of the other workers start using the same weights
+        GameState initialState = new GameState(PhysicalGameState.load(settings.getMapLocation(), utt), utt);
+        for (int p = 0; p < 2; p++) {
+            if (!(players[0][p] instanceof MetaBot)) {
+                continue;
+            }
+            Sarsa learner = ((MetaBot) players[0][p]).getLearningAgent();
+            learner.initializeWeights(initialState);
+
+            for (int w = 1; w < numThreads; w++) {
+                MetaBot metaBot = (MetaBot) players[w][p];
+                metaBot.getLearningAgent().setWeights(learner.getWeights());
+            }
+        }
+
+        for (int w = 0; w < numThreads; w++) {
+            for (int p = 0; p < 2; p++) {
+                if (players[w][p] instanceof MetaBot) {
+                    ((MetaBot) players[w][p]).setSaveWeights(false);
+                }
+            }
+        }
+
+        AtomicInteger nextMatch = new AtomicInteger(0);
+        Object outputLock = new Object();
+
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < numThreads; w++) {
+            AI ai1 = players[w][0];
+            AI ai2 = players[w][1];
+
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int i = nextMatch.getAndIncrement(); i < numGames; i = nextMatch.getAndIncrement()) {
+                        String traceOutput = null;
+
+                        synchronized (outputLock) {
+                            if (prop.containsKey("runner.trace_prefix")) {
+                                traceOutput = FileNameUtil.nextAvailableFileName(
+                                    prop.getProperty("runner.trace_prefix"), "trace.zip"
+                                );
+                                // reserves the file name for this match
+                                File f = new File(traceOutput);
+                                if (f.getParentFile() != null) {
+                                    f.getParentFile().mkdirs();
+                                }
+                                f.createNewFile();
+                            }
+                        }
+                        Date begin = new Date(System.currentTimeMillis());
+                        int result = headlessMatch(ai1, ai2, settings, utt, traceOutput);
+                        Date end = new Date(System.currentTimeMillis());
+
+                        synchronized (outputLock) {
+                            System.out.print(String.format("\rMatch %8d finished with result %3d.", i+1, result));
+
+                            if (prop.containsKey("runner.output")) {
+                                try {
+                                    outputSummary(prop.getProperty("runner.output"), result,
+                                            end.getTime() - begin.getTime(), begin, end);
+                                    outputLatencies(prop.getProperty("runner.output"), i + 1, new AI[] {ai1, ai2});
+                                } catch(IOException ioe) {
+                                    logger.error("Error while trying to write summary to '"
+                                            + prop.getProperty("runner.output") + "'", ioe);
+                                }
+                            }
+
+                            // checkpoints the shared weights
+                            for (int p = 0; p < 2; p++) {
+                                if (players[0][p] instanceof MetaBot) {
+                                    ((MetaBot) players[0][p]).checkpoint(p);
+                                }
+                            }
+                        }
+
+                        ai1.reset();
+                        ai2.reset();
+                    }
+                } catch (Exception e) {
+                    logger.error("Error in training worker", e);
+                }
+            }, "match-worker-" + w);
+
+            workers.add(worker);
+            worker.start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        flushWeights(players[0]);
+
+        System.out.println(); // adds a trailing \n to the match count written by the workers.
+        logger.info("Executed " + numGames + " matches.");
+    }
+
+    /**
+     * Saves the weights of the MetaBots among the given players (indexed by player
+     * number) that have not been saved yet, and waits until every checkpoint is
+     * written
+     * @param players
+     */
+    private static void flushWeights(AI[] players) {
+        for (int p = 0; p < players.length; p++) {
+            if (players[p] instanceof MetaBot) {
+                ((MetaBot) players[p]).flushWeights(p);
+            }
+        }
+    }
+
     /**
      * Runs a match between two AIs with the specified settings, without the GUI.
      * Saves the trace to re-play the match if traceOutput is not null
@@ -169,6 +341,16 @@ public class Runner {
 
         GameState state = new GameState(pgs, types);
 
+        // when two MetaBots see the same state (e.g. self-play with full observability),
+        // the units of a decision frame are counted once for both of them
+        UnitCensus census = null;
+        FeatureExtractor extractor1 = null, extractor2 = null;
+        if (!config.isPartiallyObservable() && ai1 instanceof MetaBot && ai2 instanceof MetaBot) {
+            extractor1 = ((MetaBot) ai1).getLearningAgent().getFeatureExtractor();
+            extractor2 = ((MetaBot) ai2).getLearningAgent().getFeatureExtractor();
+            census = UnitCensus.share(extractor1, extractor2);
+        }
+
         // creates the trace logger
         Trace replay = new Trace(types);
 
@@ -208,6 +390,9 @@ public class Runner {
             // runs one cycle of the game
             gameover = state.cycle();
         }
+        if (census != null) {
+            census.release(extractor1, extractor2);
+        }
         ai1.gameOver(state.winner());
         ai2.gameOver(state.winner());
 
@@ -262,6 +447,61 @@ public class Runner {
         writer.close();
     }
 
+    /**
+     * Appends the latencies of the MetaBots among the given players (indexed by
+     * player number) in the match that just finished to the latency file of the
+     * summary (see {@link #latencyPath}): one line per player and histogram
+     * (see {@link MetaBot#getLatencies}), with the count, p50, p99 and max in
+     * microseconds
+     * @param summaryPath
+     * @param match
+     * @param players
+     * @throws IOException
+     */
+    public static void outputLatencies(String summaryPath, int match, AI[] players) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int p = 0; p < players.length; p++) {
+            if (!(players[p] instanceof MetaBot)) {
+                continue;
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : ((MetaBot) players[p]).getLatencies().entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                lines.append(String.format(Locale.ROOT, "%d,%d,%s,%d,%.1f,%.1f,%.1f\n", match, p, entry.getKey(),
+                        histogram.getCount(), histogram.percentile(0.5) / 1000.0,
+                        histogram.percentile(0.99) / 1000.0, histogram.getMax() / 1000.0));
+            }
+        }
+        if (lines.length() == 0) {
+            return;
+        }
+
+        File f = new File(latencyPath(summaryPath));
+        boolean header = !f.exists();
+        try (FileWriter writer = new FileWriter(f, true)) {
+            if (header) {
+                writer.write("#match,player,timer,count,p50(us),p99(us),max(us)\n");
+            }
+            writer.write(lines.toString());
+        }
+    }
+
+    /**
+     * Returns the path of the latency file of a summary: summary.csv has its
+     * latencies in summary_latency.csv
+     * @param summaryPath
+     * @return
+     */
+    public static String latencyPath(String summaryPath) {
+        int dot = summaryPath.lastIndexOf('.');
+        if (dot <= summaryPath.lastIndexOf('/')) {
+            return summaryPath + "_latency";
+        }
+        return summaryPath.substring(0, dot) + "_latency" + summaryPath.substring(dot);
+    }
+
     /**
      * Loads an {@link AI} according to its name, using the provided UnitTypeTable.
      * If the AI is {@link MetaBot}, loads it with the configuration file specified in
@@ -291,6 +531,40 @@ public class Runner {
             IllegalAccessException,
             IllegalArgumentException,
             InvocationTargetException {
+        return loadAI(aiName, utt, playerNumber, config, cmd, 0);
+    }
+
+    /**
+     * Loads an {@link AI} for a worker of {@link #parallelMatches}. Same as
+     * {@link #loadAI(String, UnitTypeTable, int, Properties, CommandLine)}, but
+     * the random seed of MetaBot is offset by the worker index, so that workers
+     * explore differently.
+     * @param aiName
+     * @param utt
+     * @param playerNumber
+     * @return
+     * @throws NoSuchMethodException
+     * @throws SecurityException
+     * @throws ClassNotFoundException
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     * @throws IllegalArgumentException
+     * @throws InvocationTargetException
+     */
+    public static AI loadAI(
+            String aiName,
+            UnitTypeTable utt,
+            int playerNumber,
+            Properties config,
+            CommandLine cmd,
+            int worker
+            ) throws NoSuchMethodException,
+            SecurityException,
+            ClassNotFoundException,
+            InstantiationException,
+            IllegalAccessException,
+            IllegalArgumentException,
+            InvocationTargetException {
         AI ai;
 
         Logger logger = LogManager.getRootLogger();
@@ -349,6 +623,17 @@ public class Runner {
                         logger.info("Nope");
                     }
 
+                    if (cmd.hasOption("l")) {
+                        String value = cmd.getOptionValue("l");
+                        logger.info("Setting player {} learner address to {}", playerNumber, value);
+                        metaBotConfig.setProperty("rl.learner.address", value);
+                    }
+
+                    if (worker > 0) {
+                        int seed = Integer.parseInt(metaBotConfig.getProperty("rl.random.seed")) + worker;
+                        metaBotConfig.setProperty("rl.random.seed", Integer.toString(seed));
+                    }
+
                     // Load AI
                     ai = new MetaBot(utt, metaBotConfig);
                 } catch (IOException e) {
@@ -1,29 +1,36 @@
 package rl;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Set;
+import java.util.SplittableRandom;
 
 import ai.core.AI;
-import features.Feature;
+import features.FeatureCache;
 import features.FeatureExtractor;
+import features.HashedQuadrantFeatureExtractor;
+import features.IncrementalQuadrantFeatureExtractor;
+import features.InfluenceMapFeatureExtractor;
+import features.PyramidFeatureExtractor;
 import features.QuadrantModelFeatureExtractor;
+import features.SparseFeatures;
 import rts.GameState;
 
 /**
- * Implements Sarsa(0)
+ * Implements Sarsa(lambda) with replacing or accumulating eligibility traces
+ * (with lambda = 0, it is Sarsa(0)). The weights are kept in a dense
+ * {@link WeightMatrix}, indexed by portfolio member ordinal and feature
+ * ordinal.
  * 
- * TODO implement Sarsa(lambda) TODO allow loading and saving of weights
+ * If rl.learner.address is set, the agent only acts: its transitions are sent
+ * to a {@link LearnerServer}, which updates the weights and pushes them back.
  * 
  * @author anderson
  *
@@ -34,6 +41,12 @@ public class Sarsa {
      */
     Random random;
 
+    /**
+     * Seeds of the copies of this agent (see {@link #copy}), kept apart from
+     * {@link #random} so that copying does not change the choices of this agent
+     */
+    private SplittableRandom copySeeds;
+
     /**
      * For feature calculation, the map will be divided in quadrantDivision x
      * quadrantDivision
@@ -56,10 +69,21 @@ public class Sarsa {
     private double gamma;
 
     /**
-     * Eligibility trace
+     * Eligibility trace decay rate
      */
     private double lambda;
 
+    /**
+     * Whether eligibility traces are replaced (instead of accumulated) when
+     * their features are visited
+     */
+    private boolean replacingTraces;
+
+    /**
+     * The eligibility traces (created together with the weights)
+     */
+    private EligibilityTraces traces;
+
     // private final static Logger logger = Logger.getLogger(Sarsa.class.getName());
 
     /**
@@ -74,11 +98,22 @@ public class Sarsa {
     AI nextChoice;
 
     /**
-     * The weight 'vector' is the 'internal' Map from string (feature name) to float
-     * (weight value) There's a weight vector per AI, hence the map from string (AI
-     * name) to weight vectors
+     * The weight 'vector' of each AI, as a row of a dense matrix indexed by
+     * portfolio member ordinal and feature ordinal
+     */
+    private WeightMatrix weights;
+
+    /**
+     * Weights read by {@link #loadBin} before the feature names are known. They
+     * are used or copied into {@link #weights} upon initialization.
+     */
+    private WeightMatrix importedWeights;
+
+    /**
+     * The cached weight file read by {@link #loadBin}, held while the weights
+     * are shared with it (null if none)
      */
-    private Map<String, Map<String, Float>> weights;
+    private WeightCache.Reference weightFile;
 
     /**
      * An array of AI's, which are used as 'sub-bots' to play the game. In our
@@ -86,10 +121,96 @@ public class Sarsa {
      */
     private Map<String, AI> portfolio;
 
+    /**
+     * The portfolio members and their names, indexed by ordinal (which is the row
+     * of the member in the weight matrix)
+     */
+    private AI[] members;
+    private List<String> memberNames;
+
+    /**
+     * Names of the features, indexed by ordinal
+     */
+    private String[] featureNames;
+
+    /**
+     * Stores past transitions to be replayed (null if experience replay is
+     * disabled, i.e., rl.replay.capacity is 0)
+     */
+    private ReplayBuffer replayBuffer;
+
+    private int replayCapacity;
+    private boolean replayPrioritized;
+    private double replayPriorityExponent;
+    private double replayImportanceExponent;
+
+    /**
+     * Whether mini-batches are replayed at every decision or only at the end of
+     * the episode
+     */
+    private boolean replayEveryDecision;
+
+    /**
+     * Number of mini-batches replayed at each replay step
+     */
+    private int replayBatches;
+
+    /**
+     * Reusable buffers for the positions, importance-sampling weights and TD
+     * errors of a mini-batch
+     */
+    private int[] replaySample;
+    private double[] replayWeights;
+    private double[] replayErrors;
+
+    /**
+     * Feature vectors of the recently seen states, so that each state is
+     * extracted once (the vector of s' is reused as s in the next update)
+     */
+    private FeatureCache featureCache;
+
+    /**
+     * Reusable buffer for the Q-values
+     */
+    private double[] qBuffer;
+
+    /**
+     * Computes the (unclipped) Q-values of all members at once into
+     * {@link #rawQBuffer}
+     */
+    private QEvaluator qEvaluator;
+    private float[] rawQBuffer;
+
     private String weightInitMethod;
 
     private ExplorationStrategy explorationStrategy;
 
+    /**
+     * Address (host:port) of the {@link LearnerServer} this agent acts for, or
+     * null if it learns by itself
+     */
+    private String learnerAddress;
+
+    /**
+     * Connection to the learner (created together with the weights, null if
+     * learnerAddress is null)
+     */
+    private LearnerClient learner;
+
+    /**
+     * Simulates the best members at each decision, to blend their evaluations
+     * with the Q-values (null if rl.lookahead.candidates is 0)
+     */
+    private Lookahead lookahead;
+
+    /**
+     * Evaluations of the members (by ordinal) computed by the lookahead for the
+     * state at evaluatedTime, from the point of view of evaluatedPlayer
+     */
+    private double[] evaluations;
+    private int evaluatedTime = -1;
+    private int evaluatedPlayer = -1;
+
     /**
      * Loads the parameters from a specific Properties object
      * 
@@ -97,11 +218,11 @@ public class Sarsa {
      * @param config
      */
     public Sarsa(Map<String, AI> portfolio, Properties config) {
-        random = new Random(Integer.parseInt(config.getProperty("rl.random.seed")));
+        int seed = Integer.parseInt(config.getProperty("rl.random.seed"));
+        random = new Random(seed);
+        copySeeds = new SplittableRandom(seed);
 
-        double epsilon = Double.parseDouble(config.getProperty("rl.epsilon.initial", "0.1"));
-        double epsilonDecayRate = Double.parseDouble(config.getProperty("rl.epsilon.decay", "1.0"));
-        explorationStrategy = new EpsilonGreedy(epsilon, epsilonDecayRate, random);
+        explorationStrategy = ExplorationStrategy.create(config, random);
 
         alpha = Double.parseDouble(config.getProperty("rl.alpha.initial", "0.1"));
         alphaDecayRate = Double.parseDouble(config.getProperty("rl.alpha.decay", "1.0"));
@@ -110,43 +231,283 @@ public class Sarsa {
 
         lambda = Double.parseDouble(config.getProperty("rl.lambda", "0.0"));
 
+        String traceType = config.getProperty("rl.trace.type", "accumulating");
+        switch (traceType) {
+            case "accumulating":
+                replacingTraces = false;
+                break;
+            case "replacing":
+                replacingTraces = true;
+                break;
+            default:
+                throw new RuntimeException("Invalid eligibility trace type: " + traceType);
+        }
+
+        replayCapacity = Integer.parseInt(config.getProperty("rl.replay.capacity", "0"));
+        int replayBatchSize = Integer.parseInt(config.getProperty("rl.replay.batch_size", "32"));
+        replayBatches = Integer.parseInt(config.getProperty("rl.replay.batches", "1"));
+        replayPrioritized = Boolean.parseBoolean(config.getProperty("rl.replay.prioritized", "false"));
+        replayPriorityExponent = Double.parseDouble(config.getProperty("rl.replay.priority_exponent", "0.6"));
+        replayImportanceExponent = Double.parseDouble(config.getProperty("rl.replay.importance_exponent", "0.4"));
+
+        String replayWhen = config.getProperty("rl.replay.when", "game_over");
+        switch (replayWhen) {
+            case "decision":
+                replayEveryDecision = true;
+                break;
+            case "game_over":
+                replayEveryDecision = false;
+                break;
+            default:
+                throw new RuntimeException("Invalid replay moment: " + replayWhen);
+        }
+
+        replaySample = new int[replayBatchSize];
+        replayWeights = new double[replayBatchSize];
+        replayErrors = new double[replayBatchSize];
+
         quadrantDivision = Integer.parseInt(config.getProperty("rl.feature.extractor.quadrant_division", "3"));
 
         weightInitMethod = config.getProperty("rl.weights.init_method", "fixed_interval");
 
-        // if we want to use a different featureExtractor, must customize this call
-        featureExtractor = new QuadrantModelFeatureExtractor(quadrantDivision);
+        String extractorType = config.getProperty("rl.feature.extractor", "quadrant_model");
+        switch (extractorType) {
+            case "quadrant_model":
+                featureExtractor = new QuadrantModelFeatureExtractor(quadrantDivision);
+                break;
+            case "incremental_quadrant_model":
+                featureExtractor = new IncrementalQuadrantFeatureExtractor(quadrantDivision);
+                break;
+            case "pyramid_model":
+                featureExtractor = new PyramidFeatureExtractor(PyramidFeatureExtractor
+                        .parseLevels(config.getProperty("rl.feature.extractor.pyramid_levels", "1,2,3,6")));
+                break;
+            case "influence_model":
+                featureExtractor = new InfluenceMapFeatureExtractor(
+                        Integer.parseInt(config.getProperty("rl.feature.extractor.influence_cells", "4")),
+                        Integer.parseInt(config.getProperty("rl.feature.extractor.influence_radius", "4")),
+                        Float.parseFloat(config.getProperty("rl.feature.extractor.influence_decay", "0.7")),
+                        Float.parseFloat(config.getProperty("rl.feature.extractor.influence_saturation", "10")));
+                break;
+            case "hashed_quadrant_model":
+                int hashBits = Integer.parseInt(config.getProperty("rl.feature.extractor.hash_bits", "12"));
+                featureExtractor = new HashedQuadrantFeatureExtractor(quadrantDivision, hashBits);
+                break;
+            default:
+                throw new RuntimeException("Invalid feature extractor: " + extractorType);
+        }
 
         // weights are initialized in the first call to {@link #getAction} because we
         // require the game map
         weights = null;
 
         this.portfolio = portfolio;
+
+        // fixes an ordinal for each portfolio member
+        memberNames = new ArrayList<>(portfolio.keySet());
+        members = new AI[memberNames.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = portfolio.get(memberNames.get(i));
+        }
+        qBuffer = new double[members.length];
+        rawQBuffer = new float[members.length];
+
+        qEvaluator = QEvaluator.create(config.getProperty("rl.q_evaluator", "auto"));
+
+        int lookaheadCandidates = Integer.parseInt(config.getProperty("rl.lookahead.candidates", "0"));
+        if (lookaheadCandidates > 0) {
+            String opponentName = config.getProperty("rl.lookahead.opponent", "WorkerRush");
+            AI opponent = portfolio.get(opponentName);
+            if (opponent == null) {
+                throw new RuntimeException("Lookahead opponent is not a portfolio member: " + opponentName);
+            }
+            int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            lookahead = new Lookahead(members, opponent, lookaheadCandidates,
+                    Integer.parseInt(config.getProperty("rl.lookahead.cycles", "100")),
+                    Double.parseDouble(config.getProperty("rl.lookahead.weight", "0.5")),
+                    Integer.parseInt(config.getProperty("rl.lookahead.threads", "" + defaultThreads)),
+                    Long.parseLong(config.getProperty("rl.lookahead.timeout_ms", "20")));
+            evaluations = new double[members.length];
+        }
+
+        learnerAddress = config.getProperty("rl.learner.address");
+    }
+
+    /**
+     * Creates a copy of an agent that plays with the given portfolio (see
+     * {@link #copy})
+     * 
+     * @param other
+     * @param portfolio
+     */
+    private Sarsa(Sarsa other, Map<String, AI> portfolio) {
+        copySeeds = other.copySeeds.split();
+        random = new Random(copySeeds.nextLong());
+        explorationStrategy = other.explorationStrategy.copy(random);
+
+        alpha = other.alpha;
+        alphaDecayRate = other.alphaDecayRate;
+        gamma = other.gamma;
+        lambda = other.lambda;
+        replacingTraces = other.replacingTraces;
+
+        replayCapacity = other.replayCapacity;
+        replayBatches = other.replayBatches;
+        replayPrioritized = other.replayPrioritized;
+        replayPriorityExponent = other.replayPriorityExponent;
+        replayImportanceExponent = other.replayImportanceExponent;
+        replayEveryDecision = other.replayEveryDecision;
+        replaySample = new int[other.replaySample.length];
+        replayWeights = new double[other.replayWeights.length];
+        replayErrors = new double[other.replayErrors.length];
+
+        quadrantDivision = other.quadrantDivision;
+        weightInitMethod = other.weightInitMethod;
+        featureExtractor = other.featureExtractor.copy();
+
+        this.portfolio = portfolio;
+        memberNames = other.memberNames;
+        members = new AI[memberNames.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = portfolio.get(memberNames.get(i));
+        }
+        qBuffer = new double[members.length];
+        rawQBuffer = new float[members.length];
+        qEvaluator = other.qEvaluator;
+
+        // the simulations use clones of their own, so the lookahead can be shared
+        lookahead = other.lookahead;
+        if (lookahead != null) {
+            evaluations = new double[members.length];
+        }
+
+        // a copy learns by itself
+        learnerAddress = null;
+
+        if (other.importedWeights != null) {
+            importedWeights = other.importedWeights.share();
+        }
+        if (other.weights != null) {
+            setWeights(other.weights.share());
+        }
+    }
+
+    /**
+     * Returns a copy of this agent that plays with the given portfolio, which
+     * must have the same member names. The copy starts with the current weights,
+     * learning rate and exploration parameters, without copying the weights:
+     * they are shared until either agent updates them (see
+     * {@link WeightMatrix#share}), and updates made afterwards are not seen by
+     * the other agent. The copy does not act for a learner (see
+     * rl.learner.address) and starts with no choice, traces or replay memory.
+     * Its random numbers come from a seed of its own, so copying does not
+     * change the choices of this agent.
+     * 
+     * @param portfolio
+     * @return
+     */
+    public Sarsa copy(Map<String, AI> portfolio) {
+        if (!portfolio.keySet().equals(this.portfolio.keySet())) {
+            throw new RuntimeException("Portfolio " + portfolio.keySet() + " does not match " + memberNames);
+        }
+        return new Sarsa(this, portfolio);
     }
 
     /**
      * Initializes the weight vector (to be called at the first game frame) Requires
-     * the game state because some features depend on map size
+     * the game state because some features depend on map size. If weights were
+     * loaded via {@link #loadBin}, they override the random values.
      * 
-     * @param gs
+     * @param featureNames
+     * @param min
+     * @param max
      */
-    public void initializeWeights(Set<String> aiNames, List<String> featureNames, float min, float max) {
+    public void initializeWeights(List<String> featureNames, float min, float max) {
         if (min > max) {
             throw new RuntimeException("Weights min (" + min + ") greater than max (" + max + ")");
         }
 
-        float range = max - min;
+        // weights loaded with the same layout are used as they are (if memory-mapped,
+        // they are only copied upon the first update)
+        if (importedWeights != null && importedWeights.hasLayout(memberNames, featureNames)) {
+            setWeights(importedWeights);
+            importedWeights = null;
+            return;
+        }
 
-        weights = new HashMap<>();
-        for (String ai : aiNames) {
-            Map<String, Float> aiWeights = new HashMap<>();
+        float range = max - min;
 
-            for (String feature : featureNames) {
-                aiWeights.put(feature, random.nextFloat() * range + min);
+        WeightMatrix initialWeights = new WeightMatrix(memberNames, featureNames);
+        for (int i = 0; i < initialWeights.getMemberCount(); i++) {
+            for (int j = 0; j < initialWeights.getFeatureCount(); j++) {
+                initialWeights.set(i, j, random.nextFloat() * range + min);
             }
+        }
+
+        if (importedWeights != null) {
+            initialWeights.importFrom(importedWeights);
+            importedWeights = null;
+        }
+
+        setWeights(initialWeights);
+    }
+
+    /**
+     * Makes this agent use (and update) the given weight matrix, e.g., one that
+     * is shared with other agents that learn concurrently. Updates are not
+     * synchronized: concurrent agents write to the shared weights without locks
+     * (as in Hogwild!), which is acceptable because each update touches few
+     * weights and lost updates are rare. The rows of the matrix must follow the
+     * order of {@link #getMemberNames}.
+     * 
+     * @param weights
+     */
+    public void setWeights(WeightMatrix weights) {
+        if (weights.getMemberCount() != members.length) {
+            throw new RuntimeException("Weight matrix has " + weights.getMemberCount() + " members, expected "
+                    + members.length);
+        }
 
-            weights.put(ai, aiWeights);
+        if (weightFile != null && weights != weightFile.getWeights()) {
+            releaseWeightFile();
         }
+        this.weights = weights;
+
+        List<String> featureNames = new ArrayList<>();
+        for (int j = 0; j < weights.getFeatureCount(); j++) {
+            featureNames.add(weights.getFeatureName(j));
+        }
+        this.featureNames = featureNames.toArray(new String[0]);
+
+        traces = new EligibilityTraces(weights.getMemberCount(), weights.getFeatureCount(), replacingTraces);
+
+        if (replayCapacity > 0) {
+            replayBuffer = new ReplayBuffer(replayCapacity, weights.getFeatureCount(), replayPrioritized,
+                    replayPriorityExponent);
+        }
+
+        // s and s' must be both available during an update
+        featureCache = new FeatureCache(featureExtractor, featureNames, 2);
+
+        if (learnerAddress != null) {
+            try {
+                if (learner != null) {
+                    learner.close();
+                }
+                learner = new LearnerClient(learnerAddress, weights);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not connect to learner at " + learnerAddress, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the weight matrix (null if not initialized yet)
+     * 
+     * @return
+     */
+    public WeightMatrix getWeights() {
+        return weights;
     }
 
     /**
@@ -160,7 +521,8 @@ public class Sarsa {
         // nextChoice is null on the first call to this function, afterwards, it is
         // determined as a side-effect of 'learn'
         if (nextChoice == null) {
-            nextChoice = epsilonGreedy(state, player);
+            lookahead(state, player);
+            nextChoice = selectMember(state, player);
         }
 
         return nextChoice;
@@ -168,48 +530,96 @@ public class Sarsa {
 
     public void resetChoice() {
         nextChoice = null;
+        evaluatedTime = -1;
+    }
+
+    /**
+     * Sets all eligibility traces to zero. To be called when a new match starts.
+     */
+    public void resetTraces() {
+        if (traces != null) {
+            traces.clear();
+        }
     }
 
     /**
-     * Returns an action using epsilon-greedy for the given state (i.e., a random
-     * action with probability epsilon, and the greedy action otherwise)
+     * Returns an action for the given state, chosen by the exploration strategy
+     * (rl.exploration) from the Q-values
      * 
      * @param state
      * @param player
      * @return
      */
-    private AI epsilonGreedy(GameState state, int player) {
-        // initializes weights on first frame
-        if (weights == null) {
-            float weightsMin;
-            float weightsMax;
-
-            switch (weightInitMethod) {
-                case "fixed_interval":
-                    // TODO: remove magic numbers
-                    weightsMin = -1;
-                    weightsMax = 1;
-                    break;
-                case "parameterized":
-                    int featureCount = featureExtractor.getFeatureNames(state).size();
-                    weightsMin = -1 / (float) Math.sqrt(featureCount);
-                    weightsMax = 1 / (float) Math.sqrt(featureCount);
-                    break;
-                default:
-                    throw new RuntimeException("Invalid weight initialization method: " + weightInitMethod);
-            }
+    private AI selectMember(GameState state, int player) {
+        initializeWeights(state);
+        float[] features = featureCache.get(state, player);
+        return members[selectMember(features, featureCache.getSparse(features), state.getTime())];
+    }
 
-            initializeWeights(portfolio.keySet(), featureExtractor.getFeatureNames(state), weightsMin, weightsMax);
+    /**
+     * Returns the ordinal of the action chosen by the exploration strategy for
+     * the given feature vector
+     * 
+     * @param features
+     * @param nonZero  the non-zero entries of the vector
+     * @param time     game time of the state (to find its lookahead evaluations)
+     * @return
+     */
+    private int selectMember(float[] features, SparseFeatures nonZero, int time) {
+        // will choose the action for this state
+        qValues(features, nonZero, qBuffer);
+        if (lookahead != null && evaluatedTime == time) {
+            lookahead.blend(qBuffer, evaluations);
         }
+        return explorationStrategy.selectAction(qBuffer);
+    }
 
+    /**
+     * Initializes the weights for the given state, unless they are already
+     * initialized. It is called at the first game frame, but can be called
+     * beforehand (e.g. to share the weights among agents before they play).
+     * 
+     * @param state
+     */
+    public void initializeWeights(GameState state) {
+        if (weights != null) {
+            return;
+        }
 
-        // will choose the action for this state
-
-        Map<String, Double> qValues = getQValues(state, player);
+        float weightsMin;
+        float weightsMax;
+
+        switch (weightInitMethod) {
+            case "fixed_interval":
+                // TODO: remove magic numbers
+                weightsMin = -1;
+                weightsMax = 1;
+                break;
+            case "parameterized":
+                int featureCount = featureExtractor.getFeatureNames(state).size();
+                weightsMin = -1 / (float) Math.sqrt(featureCount);
+                weightsMax = 1 / (float) Math.sqrt(featureCount);
+                break;
+            default:
+                throw new RuntimeException("Invalid weight initialization method: " + weightInitMethod);
+        }
 
-        String choiceName = explorationStrategy.selectAction(qValues);
+        initializeWeights(featureExtractor.getFeatureNames(state), weightsMin, weightsMax);
+    }
 
-        return portfolio.get(choiceName);
+    /**
+     * Returns the ordinal of a portfolio member (-1 if it is not in the portfolio)
+     * 
+     * @param ai
+     * @return
+     */
+    public int memberIndex(AI ai) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == ai) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -230,19 +640,141 @@ public class Sarsa {
             return;
         }
 
+        initializeWeights(state);
+        if (!done) {
+            lookahead(nextState, player);
+        }
+        float[] stateFeatures = featureCache.get(state, player);
+        float[] nextStateFeatures = done ? null : featureCache.get(nextState, player);
+
+        // only the non-zero features take part in the update
+        SparseFeatures stateNonZero = featureCache.getSparse(stateFeatures);
+        SparseFeatures nextStateNonZero = done ? null : featureCache.getSparse(nextStateFeatures);
+
+        update(stateFeatures, stateNonZero, memberIndex(choice), reward, done, nextStateFeatures, nextStateNonZero,
+                done ? -1 : nextState.getTime());
+    }
+
+    /**
+     * Receives an experience tuple (s, a, r, s') whose states were stored with
+     * {@link #snapshot} and updates the action-value function. As a side effect
+     * of Sarsa, the next action a' is chosen here (and returned by
+     * {@link #act}).
+     * 
+     * @param state     s and a (ignored if it has no choice yet)
+     * @param reward    r
+     * @param nextState s' (ignored if done)
+     * @param done      whether this is the end of the episode
+     */
+    public void learn(DecisionSnapshot state, double reward, DecisionSnapshot nextState, boolean done) {
+        if (state == null || !state.isComplete()) {
+            return;
+        }
+
+        update(state.getFeatures(), state.getNonZero(), state.getChoice(), reward, done,
+                done ? null : nextState.getFeatures(), done ? null : nextState.getNonZero(),
+                done ? -1 : nextState.getTime());
+    }
+
+    /**
+     * Stores in a snapshot the features of a state from the point of view of a
+     * player, so that the state itself need not be kept until
+     * {@link #learn(DecisionSnapshot, double, DecisionSnapshot, boolean)}. The
+     * choice of the snapshot is cleared.
+     * 
+     * @param state
+     * @param player
+     * @param out
+     */
+    public void snapshot(GameState state, int player, DecisionSnapshot out) {
+        initializeWeights(state);
+        float[] features = featureCache.get(state, player);
+        out.set(features, featureCache.getSparse(features), state.getTime());
+    }
+
+    /**
+     * Runs the lookahead (if enabled by rl.lookahead.candidates) from a state
+     * where a member is about to be chosen, so that the choice blends the
+     * evaluations of the simulated members with their Q-values. It is run once
+     * per state: MetaBot calls it at each decision, before
+     * {@link #learn(DecisionSnapshot, double, DecisionSnapshot, boolean)}.
+     * 
+     * @param state
+     * @param player
+     */
+    public void lookahead(GameState state, int player) {
+        if (lookahead == null || (evaluatedTime == state.getTime() && evaluatedPlayer == player)) {
+            return;
+        }
+        initializeWeights(state);
+        float[] features = featureCache.get(state, player);
+        qValues(features, featureCache.getSparse(features), qBuffer);
+        lookahead.evaluate(state, player, qBuffer, evaluations);
+        evaluatedTime = state.getTime();
+        evaluatedPlayer = player;
+    }
+
+    /**
+     * Chooses the next action a' and applies the update rule (or sends the
+     * transition to the learner)
+     * 
+     * @param stateFeatures        features of s
+     * @param stateNonZero         non-zero features of s
+     * @param action               a (member ordinal)
+     * @param reward               r
+     * @param done                 whether s' is terminal
+     * @param nextStateFeatures    features of s' (null if done)
+     * @param nextStateNonZero     non-zero features of s' (null if done)
+     * @param nextTime             game time of s' (ignored if done)
+     */
+    private void update(float[] stateFeatures, SparseFeatures stateNonZero, int action, double reward, boolean done,
+            float[] nextStateFeatures, SparseFeatures nextStateNonZero, int nextTime) {
+
+        if (learner != null) {
+            // uses the latest weights pushed by the learner to choose the next action
+            learner.applyUpdates(weights);
+        }
+
+        if (done && weightFile != null && !weights.isCopyOnWrite()) {
+            // the weights were copied upon an update, so the file is no longer needed
+            releaseWeightFile();
+        }
+
+        int next = -1;
         if (!done) {
             // determines the next choice
-            nextChoice = epsilonGreedy(nextState, player);
+            next = selectMember(nextStateFeatures, nextStateNonZero, nextTime);
+            nextChoice = members[next];
+        }
 
-            // applies the update rule with s, a, r, s', a'
-            sarsaLearning(state, choice.getClass().getSimpleName(), reward, done, nextState,
-                    nextChoice.getClass().getSimpleName(), player);
-        } else {
-            sarsaLearning(state, choice.getClass().getSimpleName(), reward, done, null, null, player);
+        if (learner != null) {
+            // the learner applies the update rule and the weights come back later
+            try {
+                learner.send(stateNonZero, action, reward, done, nextStateNonZero, next);
+            } catch (IOException e) {
+                throw new RuntimeException("Lost connection to learner at " + learnerAddress, e);
+            }
+            if (done) {
+                explorationStrategy.concludeEpisode();
+            }
+            return;
+        }
+
+        // applies the update rule with s, a, r, s', a'
+        sarsaLearning(stateNonZero, action, reward, done, nextStateNonZero, next);
+
+        if (replayBuffer != null) {
+            replayBuffer.add(stateFeatures, action, reward, nextStateFeatures, done);
+        }
+
+        if (replayBuffer != null && (done || replayEveryDecision)) {
+            for (int i = 0; i < replayBatches; i++) {
+                replay();
+            }
         }
 
         if (done) {
-            // decays alpha and epsilon
+            // decays alpha and the exploration parameters (e.g. epsilon)
             alpha *= alphaDecayRate;
             explorationStrategy.concludeEpisode();
         }
@@ -250,111 +782,297 @@ public class Sarsa {
     }
 
     /**
-     * Updates the weight vector of the current action (choice) using the Sarsa
-     * rule: delta = r + gamma * Q(s',a') - Q(s,a) w_i <- w_i + alpha*delta*f_i
-     * (where w_i is the i-th weight and f_i the i-th feature)
+     * Updates the weights using the Sarsa(lambda) rule: delta = r + gamma *
+     * Q(s',a') - Q(s,a); the traces of the current action (choice) are updated
+     * with the features of s, then w_i <- w_i + alpha*delta*e_i for every weight
+     * with a non-zero trace e_i, and the traces decay by gamma*lambda. With lambda
+     * = 0, this is w_i <- w_i + alpha*delta*f_i on the weights of the current
+     * action (where f_i is the i-th feature).
      * 
-     * @param state      s in Sarsa equation
-     * @param choice     a in Sarsa equation
-     * @param reward     r in Sarsa equation
-     * @param nextState  s' in Sarsa equation
-     * @param nextChoice a' in Sarsa equation
-     * @param player     required to extract the features for the states
+     * @param stateFeatures     features of s in Sarsa equation
+     * @param choice            a in Sarsa equation (member ordinal)
+     * @param reward            r in Sarsa equation
+     * @param nextStateFeatures features of s' in Sarsa equation
+     * @param nextChoice        a' in Sarsa equation (member ordinal)
      */
-    private void sarsaLearning(GameState state, String choice, double reward, boolean done, GameState nextState,
-            String nextChoice, int player) {
-        // checks if s' and a' are ok (s and a will always be ok, we hope)
-        // if(nextState == null || nextChoice == null) return;
+    private void sarsaLearning(SparseFeatures stateFeatures, int choice, double reward, boolean done,
+            SparseFeatures nextStateFeatures, int nextChoice) {
+        sarsaUpdate(weights, traces, alpha, gamma, lambda, stateFeatures, choice, reward, done, nextStateFeatures,
+                nextChoice);
+    }
 
-        Map<String, Feature> stateFeatures = featureExtractor.getFeatures(state, player);
+    /**
+     * Applies the Sarsa(lambda) rule (see {@link #sarsaLearning}) to the given
+     * weights and traces. It does not depend on the state of a Sarsa agent, so
+     * it is shared with {@link LearnerServer}, which keeps one set of traces per
+     * actor. The feature vectors are sparse, so only the weights of non-zero
+     * features are read and (with their traces) updated.
+     * 
+     * @param weights
+     * @param traces
+     * @param alpha
+     * @param gamma
+     * @param lambda
+     * @param stateFeatures     features of s
+     * @param choice            a (member ordinal)
+     * @param reward            r
+     * @param done              whether s' is terminal
+     * @param nextStateFeatures features of s' (ignored if done)
+     * @param nextChoice        a' (member ordinal, ignored if done)
+     * @return the temporal-difference error
+     */
+    static double sarsaUpdate(WeightMatrix weights, EligibilityTraces traces, double alpha, double gamma,
+            double lambda, SparseFeatures stateFeatures, int choice, double reward, boolean done,
+            SparseFeatures nextStateFeatures, int nextChoice) {
 
         double futureQ;
         if (done) {
             futureQ = 0;
         } else {
-            Map<String, Feature> nextStateFeatures = featureExtractor.getFeatures(nextState, player);
-            futureQ = Math.max(-1, Math.min(1, qValue(nextStateFeatures, nextChoice)));
+            futureQ = Math.max(-1, Math.min(1, weights.dot(nextChoice, nextStateFeatures)));
         }
 
-        double q = qValue(stateFeatures, choice);
+        double q = Math.max(-1, Math.min(1, weights.dot(choice, stateFeatures)));
 
         // the temporal-difference error (delta in Sarsa equation)
         double delta = reward + gamma * futureQ - q;
 
-        for (String featureName : stateFeatures.keySet()) {
-            // retrieves the weight value, updates it and stores the updated value
-            double oldWeightValue = weights.get(choice).get(featureName);
-            double newWeightValue = oldWeightValue + alpha * delta * stateFeatures.get(featureName).getValue();
-            weights.get(choice).put(featureName, (float) newWeightValue);
+        traces.visit(choice, stateFeatures);
+        traces.apply(weights, alpha * delta);
+
+        if (done) {
+            traces.clear();
+        } else {
+            traces.decay(gamma * lambda);
+        }
+        return delta;
+    }
+
+    /**
+     * Samples a mini-batch from the replay buffer and updates the weights with
+     * it. Since the stored transitions were generated by older policies, this is
+     * an off-policy (Q-learning) update: delta = r + gamma * max_a' Q(s',a') -
+     * Q(s,a). All TD errors are computed before any weight changes, then w_i <-
+     * w_i + alpha * (importance weight) * delta * f_i for each transition.
+     */
+    private void replay() {
+        if (replayBuffer.size() == 0) {
+            return;
+        }
+
+        replayBuffer.sample(random, replaySample);
+        replayBuffer.importanceWeights(replaySample, replayImportanceExponent, replayWeights);
+
+        float[] states = replayBuffer.getStates();
+        float[] nextStates = replayBuffer.getNextStates();
+
+        for (int k = 0; k < replaySample.length; k++) {
+            int position = replaySample[k];
+            int offset = replayBuffer.offset(position);
+
+            double futureQ = 0;
+            if (!replayBuffer.isTerminal(position)) {
+                weights.dotAll(qEvaluator, nextStates, offset, rawQBuffer);
+                futureQ = -1;
+                for (int a = 0; a < members.length; a++) {
+                    futureQ = Math.max(futureQ, Math.max(-1, Math.min(1, rawQBuffer[a])));
+                }
+            }
+
+            double q = qValue(states, offset, replayBuffer.getAction(position));
+            replayErrors[k] = replayBuffer.getReward(position) + gamma * futureQ - q;
+        }
+
+        for (int k = 0; k < replaySample.length; k++) {
+            int position = replaySample[k];
+            weights.addScaled(replayBuffer.getAction(position), states, replayBuffer.offset(position),
+                    alpha * replayWeights[k] * replayErrors[k]);
+            replayBuffer.updatePriority(position, replayErrors[k]);
         }
     }
 
     /**
-     * Returns the dot product of features and their respective weights
+     * Returns the Q-value of a choice (action), for a given feature vector
      * 
      * @param features
-     * @param weights
+     * @param choice   member ordinal
      * @return
      */
-    private double dotProduct(Map<String, Feature> features, Map<String, Float> weights) {
-        float product = 0.0f;
-        for (String featureName : features.keySet()) {
-            product += features.get(featureName).getValue() * weights.get(featureName);
-        }
-        return product;
+    private double qValue(float[] features, int choice) {
+        return qValue(features, 0, choice);
     }
 
     /**
-     * Returns the Q-value of a choice (action), for a given set of features
+     * Returns the Q-value of a choice (action), for the feature vector that
+     * starts at the given position of the array
      * 
      * @param features
-     * @param choice
+     * @param from
+     * @param choice   member ordinal
      * @return
      */
-    private double qValue(Map<String, Feature> features, String choice) {
-        double value = dotProduct(features, weights.get(choice));
+    private double qValue(float[] features, int from, int choice) {
+        double value = weights.dot(choice, features, from);
         return Math.max(-1, Math.min(1, value));
     }
 
+    /**
+     * Fills the given array with the Q-value of each portfolio member (indexed by
+     * member ordinal) for a given feature vector
+     * 
+     * @param features
+     * @param out
+     */
+    private void qValues(float[] features, double[] out) {
+        qValues(features, featureExtractor.isSparse() ? featureCache.getSparse(features) : null, out);
+    }
+
+    /**
+     * Fills the given array with the Q-value of each portfolio member for a
+     * given feature vector, whose non-zero entries are used with sparse
+     * extractors
+     * 
+     * @param features
+     * @param nonZero
+     * @param out
+     */
+    private void qValues(float[] features, SparseFeatures nonZero, double[] out) {
+        if (featureExtractor.isSparse()) {
+            // most features are zero, so the dense evaluation would waste most of its work
+            for (int i = 0; i < members.length; i++) {
+                out[i] = Math.max(-1, Math.min(1, weights.dot(i, nonZero)));
+            }
+            return;
+        }
+
+        weights.dotAll(qEvaluator, features, 0, rawQBuffer);
+        for (int i = 0; i < members.length; i++) {
+            out[i] = Math.max(-1, Math.min(1, rawQBuffer[i]));
+        }
+    }
+
+    /**
+     * Returns the features of a state, by name. Meant for logging: it boxes
+     * every value, so the decisions and updates use the vectors indexed by
+     * feature ordinal instead (see {@link #getFeatures(GameState, int, float[])})
+     * 
+     * @param state
+     * @param player
+     * @return
+     */
     public Map<String, Float> getFeatures(GameState state, int player) {
-        Map<String, Feature> raw = featureExtractor.getFeatures(state, player);
+        initializeWeights(state);
+        float[] stateFeatures = featureCache.getTransient(state, player);
 
         Map<String, Float> features = new HashMap<String, Float>();
-        for (String f : raw.keySet()) {
-            features.put(f, raw.get(f).getValue());
+        for (int j = 0; j < featureNames.length; j++) {
+            features.put(featureNames[j], stateFeatures[j]);
         }
         return features;
     }
 
+    /**
+     * Copies the feature vector of a state into the given array (indexed by
+     * feature ordinal, see {@link #getFeatureNames})
+     * 
+     * @param state
+     * @param player
+     * @param out
+     */
+    public void getFeatures(GameState state, int player, float[] out) {
+        initializeWeights(state);
+        float[] stateFeatures = featureCache.getTransient(state, player);
+        System.arraycopy(stateFeatures, 0, out, 0, stateFeatures.length);
+    }
+
+    /**
+     * Returns the Q-value of each portfolio member for a state, by name. Meant
+     * for logging: it boxes every value, so the decisions use the Q-values
+     * indexed by member ordinal instead (see
+     * {@link #getQValues(GameState, int, double[])})
+     * 
+     * @param state
+     * @param player
+     * @return
+     */
     public Map<String, Double> getQValues(GameState state, int player) {
-        Map<String, Feature> stateFeatures = featureExtractor.getFeatures(state, player);
+        initializeWeights(state);
+        getQValues(state, player, qBuffer);
 
         Map<String, Double> qValues = new HashMap<String, Double>();
-        for (String ai : portfolio.keySet()) {
-            Double q = qValue(stateFeatures, ai);
-            qValues.put(ai, q);
+        for (int i = 0; i < members.length; i++) {
+            qValues.put(memberNames.get(i), qBuffer[i]);
         }
 
         return qValues;
     }
 
     /**
-     * Returns the Q-value of a state (including player information) and choice
-     * (action)
+     * Fills the given array with the Q-value of each portfolio member for the given
+     * state. The array is indexed by member ordinal (see {@link #getMemberNames})
      * 
      * @param state
      * @param player
-     * @param choice
+     * @param out
+     */
+    public void getQValues(GameState state, int player, double[] out) {
+        initializeWeights(state);
+        qValues(featureCache.getTransient(state, player), out);
+    }
+
+    /**
+     * Discards the cached feature vectors (and anything the feature extractor
+     * kept from the previous states). To be called when a new match starts.
+     */
+    public void invalidateFeatureCache() {
+        if (featureCache != null) {
+            featureCache.invalidate();
+        }
+        featureExtractor.reset();
+    }
+
+    /**
+     * Returns the cache of feature vectors (null before the weights are
+     * initialized)
+     * 
+     * @return
+     */
+    public FeatureCache getFeatureCache() {
+        return featureCache;
+    }
+
+    /**
+     * Returns the feature extractor
+     * 
+     * @return
+     */
+    public FeatureExtractor getFeatureExtractor() {
+        return featureExtractor;
+    }
+
+    /**
+     * Returns the names of the portfolio members, indexed by ordinal
+     * 
+     * @return
+     */
+    public List<String> getMemberNames() {
+        return memberNames;
+    }
+
+    /**
+     * Returns the names of the features, indexed by ordinal (null before the
+     * weights are initialized)
+     * 
      * @return
      */
-    private double qValue(GameState state, int player, String choice) {
-        return qValue(featureExtractor.getFeatures(state, player), choice);
+    public List<String> getFeatureNames() {
+        return featureNames != null ? Arrays.asList(featureNames) : null;
     }
 
     /**
      * Saves the weights in human-readable (csv) format. Creates one file for each
      * portfolio member and appends a line with the weights separated by comma. The
-     * order of weights is as given by weights.get(portfolioMember).values()
+     * order of weights is the feature order given in the header
      * 
      * @param prefix
      * @throws IOException
@@ -363,38 +1081,48 @@ public class Sarsa {
         if (weights == null) {
             throw new RuntimeException("Attempted to save non-initialized weights");
         }
+        saveHuman(weights, prefix);
+    }
 
-        // creates a file for each AI in the portfolio (they're the keys of the weights
-        // map)
+    /**
+     * Saves the given weights in human-readable (csv) format, as in
+     * {@link #saveHuman(String)}
+     * 
+     * @param weights
+     * @param prefix
+     * @throws IOException
+     */
+    public static void saveHuman(WeightMatrix weights, String prefix) throws IOException {
+        // creates a file for each AI in the portfolio (they're the rows of the weight
+        // matrix)
         // if the file already exists, the weights will be appended
-        for (String aiName : weights.keySet()) {
-            File f = new File(prefix + "_" + aiName + ".csv");
+        for (int i = 0; i < weights.getMemberCount(); i++) {
+            File f = new File(prefix + "_" + weights.getMemberName(i) + ".csv");
             FileWriter writer;
 
             if (!f.exists()) { // creates a new file and writes the header
                 writer = new FileWriter(f, false); // must be after the test, because it creates the file upon
                                                    // instantiation
-                writer.write("#" + String.join(",", weights.get(aiName).keySet()) + "\n");
+                writer.write("#" + String.join(",", weights.getFeatureNames()) + "\n");
                 writer.close();
             }
 
             // appends one line with each weight value separated by a comma
             writer = new FileWriter(f, true);
-            String line = "";
-            for (double value : weights.get(aiName).values()) {
-                line += "" + value + ", ";
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < weights.getFeatureCount(); j++) {
+                line.append((double) weights.get(i, j)).append(", ");
             }
-            line = line.replaceAll(",$", ""); // removes the trailing comma
 
-            writer.write(line + "\n");
+            writer.write(line.append("\n").toString());
 
             writer.close();
         }
     }
 
     /**
-     * Saves the weight 'vector' to a file in the specified path by serializing the
-     * weights HashMap. The file is overridden if already exists.
+     * Saves the weight 'vector' to a file in the specified path, in the format of
+     * {@link WeightFile}. The file is atomically replaced if already exists.
      * 
      * @param path
      * @throws IOException
@@ -404,32 +1132,44 @@ public class Sarsa {
             throw new RuntimeException("Attempted to save non-initialized weights");
         }
 
-        FileOutputStream fos = new FileOutputStream(path);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(weights);
-        oos.close();
-        fos.close();
+        WeightFile.write(weights, path);
     }
 
     /**
-     * Loads the weight 'vector' from a file in the specified path by de-serializing
-     * the weights HashMap
+     * Loads the weight 'vector' from a file in the specified path, through the
+     * process-wide {@link WeightCache}: agents that load the same file share its
+     * weights until they update them. Files in the {@link WeightFile} format are
+     * memory-mapped; files written by older versions (a serialized weights
+     * HashMap) are de-serialized. The weights are used (or copied by member and
+     * feature name, if the layout differs) when the weight matrix is
+     * initialized, or copied right away if it is already initialized.
      * 
      * @param path
      * @throws IOException
      */
-    @SuppressWarnings("unchecked")
     public void loadBin(String path) throws IOException {
-        FileInputStream fis = new FileInputStream(path);
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        try {
-            weights = (Map<String, Map<String, Float>>) ois.readObject();
-        } catch (ClassNotFoundException e) {
-            System.err.println("Error while attempting to load weights.");
-            e.printStackTrace();
-        }
-        ois.close();
-        fis.close();
+        WeightCache.Reference file = WeightCache.getInstance().acquire(path);
+        releaseWeightFile();
+
+        if (weights != null) {
+            weights.importFrom(file.getWeights());
+            file.release();
+            return;
+        }
+        weightFile = file;
+        importedWeights = file.getWeights();
+    }
+
+    /**
+     * Releases the cached weight file loaded by {@link #loadBin}, if any (e.g.,
+     * when the agent is discarded). It is released automatically once the
+     * weights no longer share it.
+     */
+    public void releaseWeightFile() {
+        if (weightFile != null) {
+            weightFile.release();
+            weightFile = null;
+        }
     }
 
 }
@@ -0,0 +1,56 @@
+package rl;
+
+/**
+ * Evaluates the Q-values of all members in one pass over the features: each
+ * feature value is loaded once and, if non-zero, multiplied into the running
+ * sums of four members at a time. Skipping zero features pays off because most
+ * per-quadrant features are zero (e.g., empty quadrants). Each sum is
+ * accumulated in feature order, so results are identical to
+ * {@link WeightMatrix#dot}.
+ *
+ */
+public class ScalarQEvaluator extends QEvaluator {
+
+    @Override
+    public void evaluate(float[] weights, int memberCount, int featureCount, float[] features, int from,
+            float[] out) {
+        int i = 0;
+
+        // four members (rows) at a time
+        for (; i + 3 < memberCount; i += 4) {
+            int row0 = i * featureCount;
+            int row1 = row0 + featureCount;
+            int row2 = row1 + featureCount;
+            int row3 = row2 + featureCount;
+
+            float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+            for (int j = 0; j < featureCount; j++) {
+                float x = features[from + j];
+                if (x == 0) {
+                    continue;
+                }
+                sum0 += x * weights[row0 + j];
+                sum1 += x * weights[row1 + j];
+                sum2 += x * weights[row2 + j];
+                sum3 += x * weights[row3 + j];
+            }
+            out[i] = sum0;
+            out[i + 1] = sum1;
+            out[i + 2] = sum2;
+            out[i + 3] = sum3;
+        }
+
+        // remaining members
+        for (; i < memberCount; i++) {
+            int row = i * featureCount;
+            float sum = 0;
+            for (int j = 0; j < featureCount; j++) {
+                float x = features[from + j];
+                if (x != 0) {
+                    sum += x * weights[row + j];
+                }
+            }
+            out[i] = sum;
+        }
+    }
+}
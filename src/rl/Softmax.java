@@ -0,0 +1,62 @@
+package rl;
+
+import java.util.Random;
+
+/**
+ * Boltzmann (softmax) exploration: action i is chosen with probability
+ * exp(Q_i / T) / sum_j exp(Q_j / T). A high temperature T makes the choice
+ * nearly uniform, a low one makes it nearly greedy. The temperature is
+ * multiplied by the decay rate after each episode.
+ */
+public class Softmax implements ExplorationStrategy {
+
+    private double temperature;
+    private double decayRate;
+
+    private Random random;
+
+    public Softmax(double temperature, double decayRate, Random random) {
+        if (temperature <= 0) {
+            throw new RuntimeException("Invalid softmax temperature: " + temperature);
+        }
+        this.temperature = temperature;
+        this.decayRate = decayRate;
+        this.random = random;
+    }
+
+    @Override
+    public int selectAction(double[] actionValues) {
+        // subtracts the max value so that exp does not overflow
+        double maxValue = actionValues[0];
+        for (int i = 1; i < actionValues.length; i++) {
+            maxValue = Math.max(maxValue, actionValues[i]);
+        }
+
+        double sum = 0;
+        for (double value : actionValues) {
+            sum += Math.exp((value - maxValue) / temperature);
+        }
+
+        // the exponentials are recomputed instead of stored, to avoid a buffer
+        double target = random.nextDouble() * sum;
+        for (int i = 0; i < actionValues.length; i++) {
+            target -= Math.exp((actionValues[i] - maxValue) / temperature);
+            if (target < 0) {
+                return i;
+            }
+        }
+        // rounding errors may leave target slightly above zero
+        return actionValues.length - 1;
+    }
+
+    @Override
+    public void concludeEpisode() {
+        temperature = Math.max(temperature * decayRate, Double.MIN_NORMAL);
+    }
+
+    @Override
+    public ExplorationStrategy copy(Random random) {
+        return new Softmax(temperature, decayRate, random);
+    }
+
+}
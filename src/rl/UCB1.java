@@ -0,0 +1,69 @@
+package rl;
+
+import java.util.Random;
+
+/**
+ * UCB1 exploration: chooses the action with the highest Q_i + c * sqrt(ln N /
+ * n_i), where n_i is how many times action i was chosen and N is the total
+ * number of choices. Every action is tried once before the bonus applies. The
+ * counts are kept across episodes and do not depend on the state, so the
+ * bonus favors the members that have been used the least overall.
+ */
+public class UCB1 implements ExplorationStrategy {
+
+    private double c;
+
+    /**
+     * Times each action was chosen (allocated upon the first selection)
+     */
+    private long[] counts;
+    private long total;
+
+    public UCB1(double c) {
+        this.c = c;
+    }
+
+    @Override
+    public int selectAction(double[] actionValues) {
+        if (counts == null || counts.length != actionValues.length) {
+            counts = new long[actionValues.length];
+            total = 0;
+        }
+
+        int best = -1;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        double logTotal = Math.log(total);
+        for (int i = 0; i < actionValues.length; i++) {
+            if (counts[i] == 0) {
+                // untried actions come first
+                best = i;
+                break;
+            }
+
+            double value = actionValues[i] + c * Math.sqrt(logTotal / counts[i]);
+            if (value > bestValue) {
+                bestValue = value;
+                best = i;
+            }
+        }
+
+        counts[best]++;
+        total++;
+        return best;
+    }
+
+    @Override
+    public void concludeEpisode() {
+    }
+
+    @Override
+    public ExplorationStrategy copy(Random random) {
+        UCB1 copy = new UCB1(c);
+        if (counts != null) {
+            copy.counts = counts.clone();
+            copy.total = total;
+        }
+        return copy;
+    }
+
+}
@@ -0,0 +1,181 @@
+package rl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the weight files loaded in this process, so that agents loading the
+ * same file (e.g., the MetaBots created by a tournament) share one copy of the
+ * weights instead of reading and deserializing their own. A file is
+ * identified by its canonical path, modification time and size: a file
+ * rewritten since it was loaded (e.g., by a checkpoint) is loaded again.
+ *
+ * Each agent holds a {@link Reference} to the weights it loaded, which gives
+ * it a copy-on-write share of the cached matrix (see
+ * {@link WeightMatrix#share}): agents that only play read the same weights,
+ * and an agent that learns copies them upon its first update. A file is
+ * dropped from the cache when its last reference is released, or when a newer
+ * version of it is loaded (the agents that hold the older version keep it).
+ *
+ */
+public class WeightCache {
+
+    /**
+     * The weights of a cached file, held by an agent until it releases them
+     */
+    public final class Reference {
+
+        private final Entry entry;
+
+        private final WeightMatrix weights;
+
+        private boolean released;
+
+        private Reference(Entry entry) {
+            this.entry = entry;
+            this.weights = entry.weights.share();
+        }
+
+        /**
+         * Returns the weights of the file, shared (copy-on-write) with the other
+         * references
+         *
+         * @return
+         */
+        public WeightMatrix getWeights() {
+            return weights;
+        }
+
+        /**
+         * Gives the reference up, dropping the file from the cache if this was
+         * its last reference. The weights remain usable. Releasing twice has no
+         * effect.
+         */
+        public void release() {
+            synchronized (WeightCache.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                entry.references--;
+                if (entry.references == 0 && entries.get(entry.key) == entry) {
+                    entries.remove(entry.key);
+                    logger.debug("Weight file released: {}", entry.key.path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies a version of a file
+     */
+    private static class Key {
+        final String path;
+        final long lastModified;
+        final long length;
+
+        Key(String path, long lastModified, long length) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return path.equals(other.path) && lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + Long.hashCode(lastModified)) * 31 + Long.hashCode(length);
+        }
+    }
+
+    private static class Entry {
+        final Key key;
+        final WeightMatrix weights;
+        int references;
+
+        Entry(Key key, WeightMatrix weights) {
+            this.key = key;
+            this.weights = weights;
+        }
+    }
+
+    private static WeightCache instance;
+
+    private static final Logger logger = LogManager.getLogger(WeightCache.class);
+
+    /**
+     * The cached files (accessed under the lock of the cache)
+     */
+    private final Map<Key, Entry> entries = new HashMap<>();
+
+    private WeightCache() {
+    }
+
+    /**
+     * Returns the weight cache of this process
+     *
+     * @return
+     */
+    public static synchronized WeightCache getInstance() {
+        if (instance == null) {
+            instance = new WeightCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a reference to the weights of a file, loading it only if it is not
+     * cached (only its modification time and size are read otherwise), in
+     * either format (see {@link WeightFile#load}).
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public synchronized Reference acquire(String path) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new IOException("Weight file not found: " + path);
+        }
+        Key key = new Key(file.getCanonicalPath(), file.lastModified(), file.length());
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            // older versions of the file are not loaded again
+            Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().path.equals(key.path)) {
+                    keys.remove();
+                }
+            }
+
+            entry = new Entry(key, WeightFile.load(path));
+            entries.put(key, entry);
+            logger.debug("Weight file loaded: {}", key.path);
+        }
+        entry.references++;
+        return new Reference(entry);
+    }
+
+    /**
+     * Returns the number of files in the cache
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
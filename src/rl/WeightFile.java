@@ -0,0 +1,228 @@
+package rl;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes {@link WeightMatrix} files in a compact binary format. All
+ * numbers are little-endian:
+ *
+ * <pre>
+ * int    magic ('MBWF')
+ * int    format version
+ * long   feature schema hash (see {@link #schemaHash})
+ * int    member count (m)
+ * int    feature count (n)
+ * int    payload offset (from the beginning of the file)
+ * m x    member name: int length + UTF-8 bytes
+ * n x    feature name: int length + UTF-8 bytes
+ * ...    zero padding up to the payload offset (a multiple of 64)
+ * m*n    float weights, row-major (one row per member)
+ * </pre>
+ *
+ * The payload is memory-mapped read-only when loading, so every process that
+ * loads the same file shares the page-cached weights instead of deserializing
+ * its own copy. Files are written to a temporary file which is then atomically
+ * renamed, so a process never maps a partially written file, and overwriting
+ * a file does not affect processes that have the previous version mapped.
+ *
+ */
+public class WeightFile {
+
+    public static final int MAGIC = 0x4657424D; // 'MBWF' in little-endian
+
+    public static final int VERSION = 1;
+
+    /**
+     * Alignment of the payload
+     */
+    private static final int ALIGNMENT = 64;
+
+    /**
+     * First two bytes of a Java serialization stream (format of the files
+     * written by older versions of {@link Sarsa#saveBin})
+     */
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+
+    /**
+     * Writes the weights to the given path, replacing the file atomically
+     *
+     * @param weights
+     * @param path
+     * @throws IOException
+     */
+    public static void write(WeightMatrix weights, String path) throws IOException {
+        int memberCount = weights.getMemberCount();
+        int featureCount = weights.getFeatureCount();
+
+        List<byte[]> names = new ArrayList<>();
+        int headerSize = 4 + 4 + 8 + 4 + 4 + 4;
+        for (String name : weights.getMemberNames()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            headerSize += 4 + bytes.length;
+        }
+        for (String name : weights.getFeatureNames()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            headerSize += 4 + bytes.length;
+        }
+        int payloadOffset = (headerSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+
+        ByteBuffer buffer = ByteBuffer.allocate(payloadOffset + 4 * memberCount * featureCount);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(schemaHash(weights.getFeatureNames()));
+        buffer.putInt(memberCount);
+        buffer.putInt(featureCount);
+        buffer.putInt(payloadOffset);
+        for (byte[] name : names) {
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+
+        buffer.position(payloadOffset);
+        weights.copyTo(buffer.asFloatBuffer());
+        buffer.rewind();
+
+        Path target = Paths.get(path);
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        // the temporary file is created next to the target, so that the rename is atomic
+        Path temp = target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a weight file, memory-mapping its payload read-only. The returned
+     * matrix copies the weights into memory upon its first update.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static WeightMatrix read(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            file.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (file.getInt() != MAGIC) {
+                throw new IOException("Not a weight file: " + path);
+            }
+            int version = file.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported weight file version " + version + " in " + path);
+            }
+            long hash = file.getLong();
+            int memberCount = file.getInt();
+            int featureCount = file.getInt();
+            int payloadOffset = file.getInt();
+
+            List<String> memberNames = readNames(file, memberCount);
+            List<String> featureNames = readNames(file, featureCount);
+
+            if (hash != schemaHash(featureNames)) {
+                throw new IOException("Corrupted weight file (schema hash mismatch): " + path);
+            }
+
+            file.position(payloadOffset);
+            ByteBuffer payload = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer weights = payload.asFloatBuffer();
+            if (weights.remaining() < memberCount * featureCount) {
+                throw new IOException("Truncated weight file: " + path);
+            }
+            return new WeightMatrix(memberNames, featureNames, weights);
+        }
+    }
+
+    /**
+     * Reads weights in either format: files written by {@link #write} are
+     * memory-mapped (see {@link #read}); files written by older versions (a
+     * serialized weights HashMap) are deserialized.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static WeightMatrix load(String path) throws IOException {
+        if (!isSerialized(path)) {
+            return read(path);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(path))) {
+            return WeightMatrix.fromMap((Map<String, Map<String, Float>>) in.readObject());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Error while attempting to load weights from " + path, e);
+        }
+    }
+
+    /**
+     * Returns whether the file at the given path was written by Java
+     * serialization (the format used before this one), rather than by
+     * {@link #write}
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static boolean isSerialized(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return in.readUnsignedShort() == SERIALIZATION_MAGIC;
+        }
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the feature names (in order), which
+     * identifies the feature schema the weights were trained with
+     *
+     * @param featureNames
+     * @return
+     */
+    public static long schemaHash(List<String> featureNames) {
+        long hash = 0xcbf29ce484222325L;
+        for (String name : featureNames) {
+            for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            // separator, so that ["ab", "c"] and ["a", "bc"] differ
+            hash ^= 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static List<String> readNames(ByteBuffer buffer, int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+}
@@ -0,0 +1,246 @@
+package rl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Append-only log of weight snapshots (e.g. one per training match), a compact
+ * replacement for appending one line per match to a csv file per portfolio
+ * member. All numbers are little-endian:
+ *
+ * <pre>
+ * int    magic ('MBWH')
+ * int    format version
+ * long   feature schema hash (see {@link WeightFile#schemaHash})
+ * int    member count (m)
+ * int    feature count (n)
+ * m x    member name: int length + UTF-8 bytes
+ * n x    feature name: int length + UTF-8 bytes
+ * ...    records
+ * </pre>
+ *
+ * Each record holds one snapshot:
+ *
+ * <pre>
+ * byte   type (KEYFRAME or DELTA)
+ * int    sequence number of the snapshot (0, 1, 2, ...)
+ * int    length of the compressed data
+ * int    CRC32 of the compressed data
+ * ...    deflated m*n ints, row-major
+ * </pre>
+ *
+ * A keyframe stores the bits of each weight (Float.floatToRawIntBits); a delta
+ * stores them XORed with the bits of the previous snapshot, which are mostly
+ * zero (weights that did not change) or share their sign and exponent with
+ * the previous value, so deltas compress well. Every keyframeInterval-th
+ * record is a keyframe, so a reader can recover from a damaged record. The
+ * encoding is lossless.
+ *
+ * When a log is reopened, records left incomplete by a crash are truncated
+ * and appending resumes with a keyframe. See {@link WeightHistoryReader} to
+ * read a log.
+ *
+ */
+public class WeightHistory implements AutoCloseable {
+
+    public static final int MAGIC = 0x4857424D; // 'MBWH' in little-endian
+
+    public static final int VERSION = 1;
+
+    public static final byte KEYFRAME = 0;
+
+    public static final byte DELTA = 1;
+
+    /**
+     * Size of a record header
+     */
+    static final int RECORD_HEADER = 1 + 4 + 4 + 4;
+
+    private final FileChannel channel;
+
+    private final int keyframeInterval;
+
+    /**
+     * Bits of the last appended snapshot (null if the next record must be a
+     * keyframe)
+     */
+    private int[] previous;
+
+    private final int[] current;
+
+    private int sequence;
+
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private byte[] compressed;
+    private final ByteBuffer raw;
+
+    /**
+     * Opens a log for appending, creating it if it does not exist. An existing
+     * log must have the given members and features.
+     *
+     * @param path
+     * @param memberNames
+     * @param featureNames
+     * @param keyframeInterval a keyframe is written every keyframeInterval
+     *                         snapshots
+     * @throws IOException
+     */
+    public WeightHistory(String path, List<String> memberNames, List<String> featureNames, int keyframeInterval)
+            throws IOException {
+        if (keyframeInterval <= 0) {
+            throw new RuntimeException("Invalid keyframe interval: " + keyframeInterval);
+        }
+        this.keyframeInterval = keyframeInterval;
+
+        Path file = Paths.get(path);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        if (channel.size() == 0) {
+            ByteBuffer header = header(memberNames, featureNames);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            sequence = 0;
+        } else {
+            // validates the header and resumes after the last complete record
+            try (WeightHistoryReader reader = new WeightHistoryReader(path)) {
+                if (!reader.getMemberNames().equals(memberNames)
+                        || !reader.getFeatureNames().equals(featureNames)) {
+                    throw new IOException("Weight history " + path + " has different members or features");
+                }
+                long end = reader.skipToEnd();
+                channel.truncate(end);
+                channel.position(end);
+                sequence = reader.getSequence() + 1;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        int size = memberNames.size() * featureNames.size();
+        previous = null;
+        current = new int[size];
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        crc = new CRC32();
+        compressed = new byte[4 * size + 64];
+        raw = ByteBuffer.allocate(4 * size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Appends a snapshot of the given weights, which must have the layout of
+     * this log
+     *
+     * @param weights
+     * @throws IOException
+     */
+    public void append(WeightMatrix weights) throws IOException {
+        int featureCount = weights.getFeatureCount();
+        if (weights.getMemberCount() * featureCount != current.length) {
+            throw new RuntimeException("Weights do not match the layout of the weight history");
+        }
+
+        for (int i = 0; i < weights.getMemberCount(); i++) {
+            for (int j = 0; j < featureCount; j++) {
+                current[i * featureCount + j] = Float.floatToRawIntBits(weights.get(i, j));
+            }
+        }
+
+        boolean keyframe = previous == null || sequence % keyframeInterval == 0;
+        raw.clear();
+        for (int k = 0; k < current.length; k++) {
+            raw.putInt(keyframe ? current[k] : current[k] ^ previous[k]);
+        }
+
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.position());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] larger = new byte[2 * compressed.length];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        crc.reset();
+        crc.update(compressed, 0, length);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length).order(ByteOrder.LITTLE_ENDIAN);
+        record.put(keyframe ? KEYFRAME : DELTA);
+        record.putInt(sequence);
+        record.putInt(length);
+        record.putInt((int) crc.getValue());
+        record.put(compressed, 0, length);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+
+        if (previous == null) {
+            previous = new int[current.length];
+        }
+        System.arraycopy(current, 0, previous, 0, current.length);
+        sequence++;
+    }
+
+    /**
+     * Returns the number of snapshots in the log
+     *
+     * @return
+     */
+    public int size() {
+        return sequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        channel.close();
+    }
+
+    private static ByteBuffer header(List<String> memberNames, List<String> featureNames) {
+        List<byte[]> names = new ArrayList<>();
+        int size = 4 + 4 + 8 + 4 + 4;
+        for (String name : memberNames) {
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        for (String name : featureNames) {
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        for (byte[] name : names) {
+            size += 4 + name.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(WeightFile.schemaHash(featureNames));
+        buffer.putInt(memberNames.size());
+        buffer.putInt(featureNames.size());
+        for (byte[] name : names) {
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
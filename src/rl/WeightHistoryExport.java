@@ -0,0 +1,118 @@
+package rl;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+
+/**
+ * Exports a {@link WeightHistory} log to csv. By default, writes one file per
+ * portfolio member (prefix_member.csv) in the format of
+ * {@link Sarsa#saveHuman}: a header with the feature names followed by one
+ * line of weights per snapshot. With --long, writes a single file with one
+ * line per weight: snapshot,member,feature,weight.
+ *
+ * Usage: WeightHistoryExport -i weights_0.history -o weights_0 [--long]
+ *
+ */
+public class WeightHistoryExport {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("i", "input", true, "weight history file");
+        options.addOption("o", "output", true, "output prefix");
+        options.addOption("l", "long", false, "write a single file in long format");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+        if (!cmd.hasOption("i") || !cmd.hasOption("o")) {
+            new HelpFormatter().printHelp("WeightHistoryExport", options);
+            System.exit(1);
+        }
+
+        if (cmd.hasOption("l")) {
+            exportLong(cmd.getOptionValue("i"), cmd.getOptionValue("o") + ".csv");
+        } else {
+            exportPerMember(cmd.getOptionValue("i"), cmd.getOptionValue("o"));
+        }
+    }
+
+    /**
+     * Writes one csv file per portfolio member, with one line per snapshot
+     *
+     * @param historyPath
+     * @param prefix
+     * @return the number of snapshots exported
+     * @throws IOException
+     */
+    public static int exportPerMember(String historyPath, String prefix) throws IOException {
+        try (WeightHistoryReader reader = new WeightHistoryReader(historyPath)) {
+            int memberCount = reader.getMemberNames().size();
+            int featureCount = reader.getFeatureNames().size();
+
+            Writer[] writers = new Writer[memberCount];
+            try {
+                for (int i = 0; i < memberCount; i++) {
+                    writers[i] = new BufferedWriter(
+                            new FileWriter(prefix + "_" + reader.getMemberNames().get(i) + ".csv"));
+                    writers[i].write("#" + String.join(",", reader.getFeatureNames()) + "\n");
+                }
+
+                int snapshots = 0;
+                StringBuilder line = new StringBuilder();
+                while (reader.next()) {
+                    for (int i = 0; i < memberCount; i++) {
+                        line.setLength(0);
+                        for (int j = 0; j < featureCount; j++) {
+                            line.append((double) reader.get(i, j)).append(", ");
+                        }
+                        writers[i].write(line.append("\n").toString());
+                    }
+                    snapshots++;
+                }
+                return snapshots;
+            } finally {
+                for (Writer writer : writers) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a single csv file with one line per weight of each snapshot
+     *
+     * @param historyPath
+     * @param path
+     * @return the number of snapshots exported
+     * @throws IOException
+     */
+    public static int exportLong(String historyPath, String path) throws IOException {
+        try (WeightHistoryReader reader = new WeightHistoryReader(historyPath);
+                Writer writer = new BufferedWriter(new FileWriter(path))) {
+            writer.write("snapshot,member,feature,weight\n");
+
+            int snapshots = 0;
+            while (reader.next()) {
+                for (int i = 0; i < reader.getMemberNames().size(); i++) {
+                    String member = reader.getMemberNames().get(i);
+                    for (int j = 0; j < reader.getFeatureNames().size(); j++) {
+                        writer.write(reader.getSequence() + "," + member + "," + reader.getFeatureNames().get(j)
+                                + "," + reader.get(i, j) + "\n");
+                    }
+                }
+                snapshots++;
+            }
+            return snapshots;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package rl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the snapshots of a {@link WeightHistory} log in order:
+ *
+ * <pre>
+ * try (WeightHistoryReader reader = new WeightHistoryReader(path)) {
+ *     while (reader.next()) {
+ *         float w = reader.get(member, feature);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * A record whose checksum does not match is skipped, along with the deltas
+ * that follow it, until the next keyframe. Reading stops at the first
+ * incomplete record (e.g. the tail of a log being written).
+ *
+ */
+public class WeightHistoryReader implements AutoCloseable {
+
+    private final String path;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer file;
+
+    private final List<String> memberNames;
+
+    private final List<String> featureNames;
+
+    /**
+     * Bits of the weights of the current snapshot
+     */
+    private final int[] bits;
+
+    /**
+     * Sequence number of the current snapshot (-1 before the first one)
+     */
+    private int sequence;
+
+    /**
+     * Whether the current bits are valid, i.e., every record since the last
+     * keyframe was read correctly
+     */
+    private boolean valid;
+
+    private final Inflater inflater;
+    private final CRC32 crc;
+    private byte[] compressed;
+    private final byte[] raw;
+
+    /**
+     * Opens a log and reads its header
+     *
+     * @param path
+     * @throws IOException
+     */
+    public WeightHistoryReader(String path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        file.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (file.getInt() != WeightHistory.MAGIC) {
+                throw new IOException("Not a weight history: " + path);
+            }
+            int version = file.getInt();
+            if (version != WeightHistory.VERSION) {
+                throw new IOException("Unsupported weight history version " + version + " in " + path);
+            }
+            long hash = file.getLong();
+            int memberCount = file.getInt();
+            int featureCount = file.getInt();
+            memberNames = Collections.unmodifiableList(WeightFile.readNames(file, memberCount));
+            featureNames = Collections.unmodifiableList(WeightFile.readNames(file, featureCount));
+
+            if (hash != WeightFile.schemaHash(featureNames)) {
+                throw new IOException("Corrupted weight history (schema hash mismatch): " + path);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Corrupted weight history header: " + path, e);
+        }
+
+        bits = new int[memberNames.size() * featureNames.size()];
+        sequence = -1;
+        valid = false;
+
+        inflater = new Inflater();
+        crc = new CRC32();
+        compressed = new byte[0];
+        raw = new byte[4 * bits.length];
+    }
+
+    public List<String> getMemberNames() {
+        return memberNames;
+    }
+
+    public List<String> getFeatureNames() {
+        return featureNames;
+    }
+
+    /**
+     * Advances to the next snapshot
+     *
+     * @return false if there are no more (complete) snapshots
+     * @throws IOException if a record cannot be decompressed
+     */
+    public boolean next() throws IOException {
+        while (file.remaining() >= WeightHistory.RECORD_HEADER) {
+            int start = file.position();
+            byte type = file.get();
+            int recordSequence = file.getInt();
+            int length = file.getInt();
+            int checksum = file.getInt();
+            if (length < 0 || length > file.remaining()) {
+                file.position(start);
+                return false;
+            }
+
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+            file.get(compressed, 0, length);
+            crc.reset();
+            crc.update(compressed, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                valid = false;
+                continue;
+            }
+            if (type == WeightHistory.DELTA && !valid) {
+                continue;
+            }
+
+            inflate(length);
+            ByteBuffer values = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+            for (int k = 0; k < bits.length; k++) {
+                bits[k] = type == WeightHistory.KEYFRAME ? values.getInt() : bits[k] ^ values.getInt();
+            }
+            valid = true;
+            sequence = recordSequence;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the sequence number of the current snapshot (i.e., its position in
+     * the log)
+     *
+     * @return
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns a weight of the current snapshot
+     *
+     * @param member
+     * @param feature
+     * @return
+     */
+    public float get(int member, int feature) {
+        return Float.intBitsToFloat(bits[member * featureNames.size() + feature]);
+    }
+
+    /**
+     * Returns the current snapshot as a weight matrix
+     *
+     * @return
+     */
+    public WeightMatrix getWeights() {
+        WeightMatrix weights = new WeightMatrix(memberNames, featureNames);
+        for (int i = 0; i < memberNames.size(); i++) {
+            for (int j = 0; j < featureNames.size(); j++) {
+                weights.set(i, j, get(i, j));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Skips the remaining records without decoding them, setting the sequence
+     * number to the one of the last complete record
+     *
+     * @return the offset right after the last complete record
+     */
+    long skipToEnd() {
+        while (file.remaining() >= WeightHistory.RECORD_HEADER) {
+            int start = file.position();
+            file.get();
+            int recordSequence = file.getInt();
+            int length = file.getInt();
+            file.getInt();
+            if (length < 0 || length > file.remaining()) {
+                file.position(start);
+                break;
+            }
+            file.position(file.position() + length);
+            sequence = recordSequence;
+        }
+        return file.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    private void inflate(int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        int size = 0;
+        try {
+            while (size < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, size, raw.length - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted record in weight history " + path, e);
+        }
+        if (size != raw.length) {
+            throw new IOException("Truncated record in weight history " + path);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package rl;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import features.SparseFeatures;
+
+/**
+ * Dense weight table for linear function approximation. There is one row per
+ * portfolio member and one column per feature, stored contiguously in a single
+ * float array (row-major), so that a row can be traversed without boxing or
+ * hash lookups.
+ *
+ * Members and features are addressed by their ordinal, which is the position of
+ * their name in the lists received on construction.
+ *
+ * A matrix read by {@link WeightFile} is backed by a read-only memory-mapped
+ * buffer, so that processes loading the same file share its pages. Such a
+ * matrix is copied into a private array upon the first update (copy-on-write).
+ * Likewise, a matrix returned by {@link #share} reads the same array as the
+ * original until either of them is updated.
+ *
+ */
+public class WeightMatrix {
+
+    /**
+     * Names of the portfolio members, in row order
+     */
+    private final String[] memberNames;
+
+    /**
+     * Names of the features, in column order
+     */
+    private final String[] featureNames;
+
+    /**
+     * The weights: the weight of feature j for member i is at
+     * data[i * featureCount + j]. It is null while the weights are read from
+     * {@link #mapped}.
+     */
+    private volatile float[] data;
+
+    /**
+     * Read-only weights (same layout as data), used until the first update
+     */
+    private final FloatBuffer mapped;
+
+    /**
+     * Whether data may be read by other matrices (see {@link #share}), in which
+     * case it is copied before the first update
+     */
+    private volatile boolean shared;
+
+    private final int featureCount;
+
+    /**
+     * Creates a weight matrix with all weights set to zero
+     *
+     * @param memberNames
+     * @param featureNames
+     */
+    public WeightMatrix(List<String> memberNames, List<String> featureNames) {
+        this.memberNames = memberNames.toArray(new String[0]);
+        this.featureNames = featureNames.toArray(new String[0]);
+        this.featureCount = this.featureNames.length;
+        this.data = new float[this.memberNames.length * featureCount];
+        this.mapped = null;
+    }
+
+    /**
+     * Creates a weight matrix that reads its weights from the given buffer
+     * (memberCount x featureCount floats, row-major) until the first update
+     *
+     * @param memberNames
+     * @param featureNames
+     * @param mapped
+     */
+    WeightMatrix(List<String> memberNames, List<String> featureNames, FloatBuffer mapped) {
+        this.memberNames = memberNames.toArray(new String[0]);
+        this.featureNames = featureNames.toArray(new String[0]);
+        this.featureCount = this.featureNames.length;
+        this.data = null;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Creates a matrix that reads the weights of another (see {@link #share})
+     *
+     * @param other
+     */
+    private WeightMatrix(WeightMatrix other) {
+        this.memberNames = other.memberNames;
+        this.featureNames = other.featureNames;
+        this.featureCount = other.featureCount;
+        this.data = other.data;
+        this.mapped = other.data == null ? other.mapped.duplicate() : null;
+        this.shared = other.data != null;
+    }
+
+    public int getMemberCount() {
+        return memberNames.length;
+    }
+
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    public String getMemberName(int member) {
+        return memberNames[member];
+    }
+
+    public String getFeatureName(int feature) {
+        return featureNames[feature];
+    }
+
+    public List<String> getMemberNames() {
+        return Arrays.asList(memberNames);
+    }
+
+    public List<String> getFeatureNames() {
+        return Arrays.asList(featureNames);
+    }
+
+    /**
+     * Returns whether this matrix has exactly the given members and features, in
+     * the same order
+     *
+     * @param memberNames
+     * @param featureNames
+     * @return
+     */
+    public boolean hasLayout(List<String> memberNames, List<String> featureNames) {
+        return getMemberNames().equals(memberNames) && getFeatureNames().equals(featureNames);
+    }
+
+    /**
+     * Returns whether the weights are still read from a memory-mapped file (i.e.,
+     * they have not been updated since loaded)
+     *
+     * @return
+     */
+    public boolean isMapped() {
+        return data == null;
+    }
+
+    /**
+     * Returns whether the weights are still read from a memory-mapped file or
+     * shared with another matrix (see {@link #share}), i.e., whether the next
+     * update copies them
+     *
+     * @return
+     */
+    public boolean isCopyOnWrite() {
+        return shared || data == null;
+    }
+
+    /**
+     * Returns the ordinal of a portfolio member, or -1 if it is not in this matrix
+     *
+     * @param name
+     * @return
+     */
+    public int memberIndex(String name) {
+        for (int i = 0; i < memberNames.length; i++) {
+            if (memberNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public float get(int member, int feature) {
+        float[] weights = data;
+        int position = member * featureCount + feature;
+        return weights != null ? weights[position] : mapped.get(position);
+    }
+
+    public void set(int member, int feature, float value) {
+        writableData()[member * featureCount + feature] = value;
+    }
+
+    /**
+     * Returns the dot product of the given feature vector and the weights of a
+     * member. The feature vector must be indexed by feature ordinal.
+     *
+     * @param member
+     * @param features
+     * @return
+     */
+    public float dot(int member, float[] features) {
+        return dot(member, features, 0);
+    }
+
+    /**
+     * Returns the dot product of the weights of a member and the feature vector
+     * that starts at the given position of the array (useful when several
+     * vectors are stored in a single array)
+     *
+     * @param member
+     * @param features
+     * @param from
+     * @return
+     */
+    public float dot(int member, float[] features, int from) {
+        float[] weights = data;
+        int offset = member * featureCount;
+        float product = 0.0f;
+        if (weights != null) {
+            for (int j = 0; j < featureCount; j++) {
+                product += features[from + j] * weights[offset + j];
+            }
+        } else {
+            for (int j = 0; j < featureCount; j++) {
+                product += features[from + j] * mapped.get(offset + j);
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Returns the dot product of the weights of a member and a sparse feature
+     * vector, touching only the weights of its non-zero features
+     *
+     * @param member
+     * @param features
+     * @return
+     */
+    public float dot(int member, SparseFeatures features) {
+        float[] weights = data;
+        int offset = member * featureCount;
+        float product = 0.0f;
+        for (int k = 0; k < features.size(); k++) {
+            int position = offset + features.index(k);
+            product += features.value(k) * (weights != null ? weights[position] : mapped.get(position));
+        }
+        return product;
+    }
+
+    /**
+     * Fills out[i] with the dot product of the weights of the i-th member and the
+     * feature vector that starts at the given position of the array, computing
+     * all members in a single pass with the given evaluator
+     *
+     * @param evaluator
+     * @param features
+     * @param from
+     * @param out
+     */
+    public void dotAll(QEvaluator evaluator, float[] features, int from, float[] out) {
+        float[] weights = data;
+        if (weights != null) {
+            evaluator.evaluate(weights, memberNames.length, featureCount, features, from, out);
+        } else {
+            for (int i = 0; i < memberNames.length; i++) {
+                out[i] = dot(i, features, from);
+            }
+        }
+    }
+
+    /**
+     * Adds scale * features to the weights of a member, i.e., w_i <- w_i + scale *
+     * f_i for every feature i
+     *
+     * @param member
+     * @param features
+     * @param scale
+     */
+    public void addScaled(int member, float[] features, double scale) {
+        addScaled(member, features, 0, scale);
+    }
+
+    /**
+     * Adds scale * features to the weights of a member, where the feature vector
+     * starts at the given position of the array. Nothing is written if scale is
+     * zero (e.g., when the learning rate is zero), so a memory-mapped matrix
+     * stays shared.
+     *
+     * @param member
+     * @param features
+     * @param from
+     * @param scale
+     */
+    public void addScaled(int member, float[] features, int from, double scale) {
+        if (scale == 0) {
+            return;
+        }
+        float[] weights = writableData();
+        int offset = member * featureCount;
+        for (int j = 0; j < featureCount; j++) {
+            weights[offset + j] = (float) (weights[offset + j] + scale * features[from + j]);
+        }
+    }
+
+    /**
+     * Adds delta to the weight at the given position of the underlying array
+     * (i.e., member * featureCount + feature)
+     *
+     * @param position
+     * @param delta
+     */
+    void addAt(int position, double delta) {
+        float[] weights = writableData();
+        weights[position] = (float) (weights[position] + delta);
+    }
+
+    /**
+     * Copies into this matrix every weight of the given map whose member and
+     * feature names are present here. Weights not found in the map are left
+     * untouched.
+     *
+     * @param weights map from member name to (map from feature name to weight)
+     */
+    public void importFrom(Map<String, Map<String, Float>> weights) {
+        for (int i = 0; i < memberNames.length; i++) {
+            Map<String, Float> memberWeights = weights.get(memberNames[i]);
+            if (memberWeights == null) {
+                continue;
+            }
+
+            for (int j = 0; j < featureCount; j++) {
+                Float value = memberWeights.get(featureNames[j]);
+                if (value != null) {
+                    set(i, j, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies into this matrix every weight of another matrix whose member and
+     * feature names are present here. Weights not found in the other matrix are
+     * left untouched.
+     *
+     * @param other
+     */
+    public void importFrom(WeightMatrix other) {
+        Map<String, Integer> otherFeatures = new HashMap<>();
+        for (int j = 0; j < other.featureCount; j++) {
+            otherFeatures.put(other.featureNames[j], j);
+        }
+
+        for (int i = 0; i < memberNames.length; i++) {
+            int otherMember = other.memberIndex(memberNames[i]);
+            if (otherMember == -1) {
+                continue;
+            }
+
+            for (int j = 0; j < featureCount; j++) {
+                Integer otherFeature = otherFeatures.get(featureNames[j]);
+                if (otherFeature != null) {
+                    set(i, j, other.get(otherMember, otherFeature));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies all weights, row-major, into the given buffer
+     *
+     * @param out
+     */
+    void copyTo(FloatBuffer out) {
+        float[] weights = data;
+        if (weights != null) {
+            out.put(weights);
+        } else {
+            out.put(mapped.duplicate());
+        }
+    }
+
+    /**
+     * Replaces all weights by the ones read (row-major) from the given buffer
+     *
+     * @param in
+     */
+    void copyFrom(FloatBuffer in) {
+        in.get(writableData());
+    }
+
+    /**
+     * Returns an independent copy of this matrix, e.g. to save the weights while
+     * they keep being updated. A memory-mapped matrix is not copied: the copy
+     * shares its read-only buffer.
+     *
+     * @return
+     */
+    public WeightMatrix copy() {
+        float[] weights = data;
+        if (weights == null) {
+            return new WeightMatrix(getMemberNames(), getFeatureNames(), mapped.duplicate());
+        }
+
+        WeightMatrix copy = new WeightMatrix(getMemberNames(), getFeatureNames());
+        System.arraycopy(weights, 0, copy.data, 0, weights.length);
+        return copy;
+    }
+
+    /**
+     * Returns a matrix with the same weights that costs no copy: both matrices
+     * read the same array until one of them is updated, which then copies the
+     * weights into a private array (copy-on-write). Updates made afterwards by
+     * either matrix are not seen by the other.
+     *
+     * @return
+     */
+    public WeightMatrix share() {
+        if (data != null) {
+            shared = true;
+        }
+        return new WeightMatrix(this);
+    }
+
+    /**
+     * Returns the weights in the nested map representation (member name ->
+     * feature name -> weight)
+     *
+     * @return
+     */
+    public Map<String, Map<String, Float>> toMap() {
+        Map<String, Map<String, Float>> weights = new HashMap<>();
+        for (int i = 0; i < memberNames.length; i++) {
+            Map<String, Float> memberWeights = new HashMap<>();
+            for (int j = 0; j < featureCount; j++) {
+                memberWeights.put(featureNames[j], get(i, j));
+            }
+            weights.put(memberNames[i], memberWeights);
+        }
+        return weights;
+    }
+
+    /**
+     * Returns a matrix with the members and features of the given map (in the
+     * map's iteration order)
+     *
+     * @param weights map from member name to (map from feature name to weight)
+     * @return
+     */
+    public static WeightMatrix fromMap(Map<String, Map<String, Float>> weights) {
+        List<String> members = new ArrayList<>(weights.keySet());
+        List<String> features = new ArrayList<>();
+        if (!members.isEmpty()) {
+            features.addAll(weights.get(members.get(0)).keySet());
+        }
+
+        WeightMatrix matrix = new WeightMatrix(members, features);
+        matrix.importFrom(weights);
+        return matrix;
+    }
+
+    /**
+     * Returns the array of weights, copying the memory-mapped or shared weights
+     * into a private array first if needed
+     *
+     * @return
+     */
+    private float[] writableData() {
+        // shared is read first: it is cleared only after data points to the private copy
+        if (!shared) {
+            float[] weights = data;
+            if (weights != null) {
+                return weights;
+            }
+        }
+
+        synchronized (this) {
+            if (data == null) {
+                float[] copy = new float[memberNames.length * featureCount];
+                mapped.duplicate().get(copy);
+                data = copy;
+            } else if (shared) {
+                data = data.clone();
+                shared = false;
+            }
+            return data;
+        }
+    }
+}
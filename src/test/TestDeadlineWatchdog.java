@@ -0,0 +1,187 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ai.core.AI;
+import ai.core.ParameterSpecification;
+import metabot.DeadlineWatchdog;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.PlayerAction;
+import rts.units.UnitTypeTable;
+
+public class TestDeadlineWatchdog {
+
+	private static final long DEADLINE = 50;
+
+	/**
+	 * A member that returns its action only once its gate is opened, and
+	 * takes a while to wind down when interrupted
+	 */
+	public static class GatedAI extends AI {
+		final PlayerAction action = new PlayerAction();
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		volatile boolean finished;
+
+		public GatedAI(boolean open) {
+			if (open) {
+				gate.countDown();
+			}
+		}
+
+		@Override
+		public void reset() {
+		}
+
+		@Override
+		public PlayerAction getAction(int player, GameState state) throws Exception {
+			calls.incrementAndGet();
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				gate.await();
+				return action;
+			} catch (InterruptedException e) {
+				Thread.sleep(200);
+				throw e;
+			} finally {
+				running.decrementAndGet();
+				finished = true;
+			}
+		}
+
+		@Override
+		public AI clone() {
+			return new GatedAI(gate.getCount() == 0);
+		}
+
+		@Override
+		public List<ParameterSpecification> getParameters() {
+			return new ArrayList<>();
+		}
+	}
+
+	private GameState state() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24.xml", types), types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+		return state;
+	}
+
+	@Test(timeout = 10000)
+	/**
+	 * Tests that a member that misses the deadline is replaced by the fallback
+	 * and counts an overrun, while a member in time plays its own action
+	 */
+	public void testMissedDeadlineFallsBack() throws Exception {
+		GameState state = state();
+		GatedAI fallback = new GatedAI(true);
+		DeadlineWatchdog watchdog = new DeadlineWatchdog(DEADLINE, fallback);
+
+		GatedAI fast = new GatedAI(true);
+		assertSame(fast.action, watchdog.getAction(fast, 0, state));
+		assertEquals(0, watchdog.getOverruns());
+
+		GatedAI slow = new GatedAI(false);
+		assertSame(fallback.action, watchdog.getAction(slow, 0, state));
+		assertEquals(1, watchdog.getOverruns());
+
+		slow.gate.countDown();
+		watchdog.reset();
+	}
+
+	@Test(timeout = 10000)
+	/**
+	 * Tests that the frames after an overrun keep falling back (and counting
+	 * overruns) while the late call is pending, so the member never runs twice
+	 * at once, and that it plays again once the late call finished
+	 */
+	public void testPendingMemberIsNotRunTwice() throws Exception {
+		GameState state = state();
+		GatedAI fallback = new GatedAI(true);
+		DeadlineWatchdog watchdog = new DeadlineWatchdog(DEADLINE, fallback);
+
+		GatedAI member = new GatedAI(false);
+		for (int frame = 0; frame < 4; frame++) {
+			assertSame(fallback.action, watchdog.getAction(member, 0, state));
+		}
+		assertEquals(1, member.calls.get());
+		assertEquals(4, watchdog.getOverruns());
+
+		// the late action is discarded: the member plays again once its call is done
+		member.gate.countDown();
+		PlayerAction action;
+		do {
+			Thread.sleep(10);
+			action = watchdog.getAction(member, 0, state);
+		} while (action == fallback.action);
+		assertSame(member.action, action);
+		assertEquals(2, member.calls.get());
+		assertEquals(1, member.maxRunning.get());
+	}
+
+	@Test(timeout = 10000)
+	/**
+	 * Tests that takeRecentOverruns returns the overruns since the previous
+	 * call and clears them, while getOverruns keeps counting
+	 */
+	public void testTakeRecentOverruns() throws Exception {
+		GameState state = state();
+		DeadlineWatchdog watchdog = new DeadlineWatchdog(DEADLINE, new GatedAI(true));
+
+		GatedAI member = new GatedAI(false);
+		watchdog.getAction(member, 0, state);
+		watchdog.getAction(member, 0, state);
+		assertEquals(2, watchdog.takeRecentOverruns());
+		assertEquals(0, watchdog.takeRecentOverruns());
+
+		watchdog.getAction(member, 0, state);
+		assertEquals(1, watchdog.takeRecentOverruns());
+		assertEquals(3, watchdog.getOverruns());
+
+		member.gate.countDown();
+		watchdog.reset();
+	}
+
+	@Test(timeout = 10000)
+	/**
+	 * Tests that reset interrupts a member still running from a previous frame
+	 * and returns only once it finished, with the counters cleared
+	 */
+	public void testResetWaitsForInterruptedMember() throws Exception {
+		GameState state = state();
+		DeadlineWatchdog watchdog = new DeadlineWatchdog(DEADLINE, new GatedAI(true));
+
+		GatedAI member = new GatedAI(false);
+		watchdog.getAction(member, 0, state);
+		assertFalse(member.finished);
+
+		watchdog.reset();
+		assertTrue(member.finished);
+		assertEquals(0, member.running.get());
+		assertEquals(0, watchdog.getOverruns());
+		assertEquals(0, watchdog.takeRecentOverruns());
+
+		// the member is free to play in the next match
+		member.gate.countDown();
+		assertSame(member.action, watchdog.getAction(member, 0, state));
+	}
+}
@@ -0,0 +1,126 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import features.SparseFeatures;
+import rl.EligibilityTraces;
+import rl.WeightMatrix;
+
+public class TestEligibilityTraces {
+
+	@Test
+	/**
+	 * Tests whether visiting the same features twice adds up the traces when
+	 * accumulating and keeps the last features when replacing, with dense and
+	 * sparse features alike, and whether zero features get no trace
+	 */
+	public void testAccumulatingAndReplacing() {
+		float[] features = {1, 0, 0.5f};
+		SparseFeatures sparse = new SparseFeatures(features.length);
+		sparse.gather(features);
+
+		for (boolean replacing : new boolean[] {false, true}) {
+			EligibilityTraces dense = new EligibilityTraces(2, features.length, replacing);
+			dense.visit(1, features);
+			dense.visit(1, features);
+
+			EligibilityTraces fromSparse = new EligibilityTraces(2, features.length, replacing);
+			fromSparse.visit(1, sparse);
+			fromSparse.visit(1, sparse);
+
+			for (EligibilityTraces traces : Arrays.asList(dense, fromSparse)) {
+				assertEquals(2, traces.getActiveCount());
+
+				WeightMatrix weights = weights(features.length);
+				traces.apply(weights, 1);
+				float times = replacing ? 1 : 2;
+				assertEquals(times * 1, weights.get(1, 0), 0);
+				assertEquals(0, weights.get(1, 1), 0);
+				assertEquals(times * 0.5f, weights.get(1, 2), 0);
+				for (int j = 0; j < features.length; j++) {
+					assertEquals(0, weights.get(0, j), 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Tests whether decayed traces are scaled, and whether the ones that fall
+	 * below the threshold are dropped (and can be visited again afterwards)
+	 */
+	public void testDecayDropsNegligibleTraces() {
+		EligibilityTraces traces = new EligibilityTraces(1, 3, false);
+		traces.visit(0, new float[] {1, 0.001f, 0.5f});
+		assertEquals(3, traces.getActiveCount());
+
+		// 0.001 * 0.05 is below the threshold, the others are not
+		traces.decay(0.05);
+		assertEquals(2, traces.getActiveCount());
+		WeightMatrix weights = weights(3);
+		traces.apply(weights, 1);
+		assertEquals(0.05f, weights.get(0, 0), 1e-7);
+		assertEquals(0, weights.get(0, 1), 0);
+		assertEquals(0.025f, weights.get(0, 2), 1e-7);
+
+		traces.decay(0.001);
+		assertEquals(0, traces.getActiveCount());
+
+		// a dropped trace starts again from the features
+		traces.visit(0, new float[] {0, 0.001f, 0});
+		assertEquals(1, traces.getActiveCount());
+		weights = weights(3);
+		traces.apply(weights, 2);
+		assertEquals(0, weights.get(0, 0), 0);
+		assertEquals(0.002f, weights.get(0, 1), 1e-9);
+	}
+
+	@Test
+	/**
+	 * Tests whether clearing (at the end of an episode) zeroes every trace, and
+	 * whether applying zeroed traces or a zero scale leaves the weights alone
+	 */
+	public void testClear() {
+		EligibilityTraces traces = new EligibilityTraces(3, 4, true);
+		for (int member = 0; member < 3; member++) {
+			traces.visit(member, new float[] {1, 1, 0, 1});
+		}
+		assertEquals(9, traces.getActiveCount());
+
+		WeightMatrix weights = weights(4);
+		traces.apply(weights, 0);
+		assertEquals(0, weights.get(2, 3), 0);
+
+		traces.clear();
+		assertEquals(0, traces.getActiveCount());
+		traces.apply(weights, 1);
+		for (int member = 0; member < 3; member++) {
+			for (int j = 0; j < 4; j++) {
+				assertEquals(0, weights.get(member, j), 0);
+			}
+		}
+
+		traces.visit(2, new float[] {0, 0, 0, 1});
+		assertEquals(1, traces.getActiveCount());
+		traces.apply(weights, 1);
+		assertEquals(1, weights.get(2, 3), 0);
+	}
+
+	/**
+	 * Returns a zero weight matrix of 3 members and the given number of features
+	 *
+	 * @param featureCount
+	 * @return
+	 */
+	private static WeightMatrix weights(int featureCount) {
+		String[] features = new String[featureCount];
+		for (int j = 0; j < featureCount; j++) {
+			features[j] = "f" + j;
+		}
+		return new WeightMatrix(Arrays.asList("WorkerRush", "LightRush", "RangedRush"), Arrays.asList(features));
+	}
+}
@@ -0,0 +1,94 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import rl.EpsilonGreedy;
+import rl.Softmax;
+import rl.UCB1;
+
+public class TestExplorationStrategy {
+
+	@Test
+	/**
+	 * Tests whether greedy selection picks only the best actions and breaks ties
+	 * among them at random
+	 */
+	public void testEpsilonGreedyTies() {
+		EpsilonGreedy greedy = new EpsilonGreedy(0, 1, new Random(0));
+		double[] values = {0.2, 0.5, -0.1, 0.5};
+
+		int[] counts = new int[values.length];
+		for (int k = 0; k < 1000; k++) {
+			counts[greedy.selectAction(values)]++;
+		}
+
+		assertEquals(0, counts[0]);
+		assertEquals(0, counts[2]);
+		assertTrue(counts[1] > 400);
+		assertTrue(counts[3] > 400);
+	}
+
+	@Test
+	/**
+	 * Tests whether softmax prefers actions with higher values
+	 */
+	public void testSoftmax() {
+		Softmax softmax = new Softmax(0.1, 1, new Random(0));
+		double[] values = {0.0, 0.2, -0.5};
+
+		int[] counts = new int[values.length];
+		for (int k = 0; k < 1000; k++) {
+			counts[softmax.selectAction(values)]++;
+		}
+
+		// the probabilities are approximately 0.12, 0.88 and 0.0001
+		assertTrue(counts[1] > counts[0]);
+		assertTrue(counts[0] > counts[2]);
+		assertTrue(counts[0] > 50);
+	}
+
+	@Test
+	/**
+	 * Tests whether UCB1 tries every action before exploiting
+	 */
+	public void testUCB1TriesAllActions() {
+		UCB1 ucb = new UCB1(1);
+		double[] values = {0.0, 0.9, -0.5};
+
+		boolean[] tried = new boolean[values.length];
+		for (int k = 0; k < values.length; k++) {
+			tried[ucb.selectAction(values)] = true;
+		}
+		for (boolean t : tried) {
+			assertTrue(t);
+		}
+
+		// with equal counts, the bonus is the same for all, so the best value wins
+		assertEquals(1, ucb.selectAction(values));
+	}
+
+	@Test
+	/**
+	 * Tests whether a copy of UCB1 (e.g., of a MetaBot clone) carries the
+	 * counts over, and whether choices made afterwards stay private to it
+	 */
+	public void testUCB1CopyKeepsCounts() {
+		UCB1 ucb = new UCB1(1);
+		double[] values = {0.0, 0.9, -0.5};
+		assertEquals(0, ucb.selectAction(values));
+		assertEquals(1, ucb.selectAction(values));
+
+		// a fresh strategy would try action 0 first
+		UCB1 copy = (UCB1) ucb.copy(new Random(0));
+		assertEquals(2, copy.selectAction(values));
+		assertEquals(1, copy.selectAction(values));
+
+		// the original has not tried action 2 yet
+		assertEquals(2, ucb.selectAction(values));
+	}
+}
@@ -0,0 +1,74 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import features.FeatureCache;
+import features.QuadrantModelFeatureExtractor;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+public class TestFeatureCache {
+
+	@Test
+	/**
+	 * Tests the hits and misses of the sequence of requests of a MetaBot with
+	 * sticky actions: the vector of each decision frame is computed once, and
+	 * found again as s in the next decision even after the transient vectors
+	 * of the frames in between
+	 */
+	public void testStickyFrames() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24_intermediate2.xml", types),types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+
+		QuadrantModelFeatureExtractor extractor = new QuadrantModelFeatureExtractor(3);
+		List<String> featureNames = extractor.getFeatureNames(state);
+		FeatureCache cache = new FeatureCache(extractor, featureNames, 2);
+
+		int decisions = 3, interval = 100;
+		GameState previous = null;
+		for (int d = 0; d < decisions; d++) {
+			// the decision: chooses in s', then learns from (s, s')
+			float[] chosen = cache.get(state, 0);
+			if (previous != null) {
+				cache.get(previous, 0);
+				assertEquals(chosen, cache.get(state, 0));
+			}
+			previous = state.clone();
+
+			// the frames in between, logged but not retained
+			for (int f = 0; f < interval; f++) {
+				state.cycle();
+				if (f < interval - 1) {
+					cache.getTransient(state, 0);
+				}
+			}
+		}
+		assertEquals(2 * (decisions - 1), cache.getHits());
+		assertEquals(decisions * interval, cache.getMisses());
+
+		// a new match starts below every retained frame
+		GameState restart = null;
+		try {
+			restart = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24_intermediate2.xml", types),types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+		cache.get(restart, 0);
+		cache.get(previous, 0);
+		assertEquals(2 * (decisions - 1), cache.getHits());
+		assertEquals(decisions * interval + 2, cache.getMisses());
+	}
+}
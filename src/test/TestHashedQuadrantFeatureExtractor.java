@@ -0,0 +1,135 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import features.Feature;
+import features.FeatureExtractor;
+import features.FeatureNames;
+import features.HashedQuadrantFeatureExtractor;
+import features.QuadrantModelFeatureExtractor;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+public class TestHashedQuadrantFeatureExtractor {
+
+	/**
+	 * Enough hash bits for the 126 quadrant features of the finetuned unit
+	 * types in 3 x 3 quadrants not to collide
+	 */
+	private static final int BITS = 16;
+
+	@Test
+	/**
+	 * Tests whether the global features are the ones of the quadrant model
+	 */
+	public void testGlobalFeatures() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = load("maps/test/basesWorkers24x24_intermediate2.xml", types);
+
+		Map<String, Feature> hashed = new HashedQuadrantFeatureExtractor(3, BITS).getFeatures(state, 0);
+		Map<String, Feature> quadrant = new QuadrantModelFeatureExtractor(3).getFeatures(state, 0);
+		for (String name : new String[] { FeatureNames.RESOURCES_OWN, FeatureNames.RESOURCES_OPP,
+				FeatureNames.GAME_TIME, FeatureNames.BIAS }) {
+			assertEquals(name, quadrant.get(name).getValue(), hashed.get(name).getValue(), 1E-6);
+		}
+	}
+
+	@Test
+	/**
+	 * Tests whether, without collisions, the hashed features are the
+	 * per-quadrant features of the quadrant model up to their signs: the same
+	 * non-zero magnitudes, and so the same sum
+	 */
+	public void testHashedFeaturesWithoutCollisions() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = load("maps/test/basesWorkers24x24_intermediate2.xml", types);
+
+		float[] hashed = quadrantMagnitudes(new HashedQuadrantFeatureExtractor(3, BITS), state);
+		float[] quadrant = quadrantMagnitudes(new QuadrantModelFeatureExtractor(3), state);
+		assertEquals(sum(quadrant), sum(hashed), 1E-4);
+		assertArrayEquals(quadrant, hashed, 1E-6f);
+	}
+
+	@Test
+	/**
+	 * Tests whether the accumulators are cleared after each call: an extractor
+	 * that has extracted the features of other states gives the same vector
+	 * as a new one
+	 */
+	public void testAccumulatorsAreCleared() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = load("maps/test/basesWorkers24x24_intermediate2.xml", types);
+		GameState other = load("maps/test/basesWorkers24x24_intermediate3.xml", types);
+
+		HashedQuadrantFeatureExtractor used = new HashedQuadrantFeatureExtractor(3, BITS);
+		String[] names = used.getFeatureNames(state).toArray(new String[0]);
+		float[] first = new float[names.length];
+		float[] second = new float[names.length];
+		float[] fresh = new float[names.length];
+
+		used.getFeatureVector(state, 0, names, first);
+		used.getFeatureVector(state, 0, names, second);
+		assertArrayEquals(first, second, 0);
+
+		used.getFeatureVector(other, 0, names, second);
+		new HashedQuadrantFeatureExtractor(3, BITS).getFeatureVector(other, 0, names, fresh);
+		assertArrayEquals(fresh, second, 0);
+
+		used.getFeatureVector(other, 1, names, second);
+		new HashedQuadrantFeatureExtractor(3, BITS).getFeatureVector(other, 1, names, fresh);
+		assertArrayEquals(fresh, second, 0);
+	}
+
+	/**
+	 * Returns the non-zero magnitudes of the features that are not global, in
+	 * increasing order
+	 *
+	 * @param extractor
+	 * @param state
+	 * @return
+	 */
+	private static float[] quadrantMagnitudes(FeatureExtractor extractor, GameState state) {
+		List<String> globals = Arrays.asList(FeatureNames.RESOURCES_OWN, FeatureNames.RESOURCES_OPP,
+				FeatureNames.GAME_TIME, FeatureNames.BIAS);
+		Map<String, Feature> features = extractor.getFeatures(state, 0);
+		float[] magnitudes = new float[features.size()];
+		int count = 0;
+		for (Map.Entry<String, Feature> entry : features.entrySet()) {
+			float value = entry.getValue().getValue();
+			if (!globals.contains(entry.getKey()) && value != 0) {
+				magnitudes[count++] = Math.abs(value);
+			}
+		}
+		magnitudes = Arrays.copyOf(magnitudes, count);
+		Arrays.sort(magnitudes);
+		return magnitudes;
+	}
+
+	private static double sum(float[] values) {
+		double sum = 0;
+		for (float value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static GameState load(String map, UnitTypeTable types) {
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load(map, types), types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+		return state;
+	}
+}
@@ -0,0 +1,54 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import features.InfluenceMapFeatureExtractor;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+public class TestInfluenceMapFeatureExtractor {
+
+	@Test
+	/**
+	 * Tests whether the influence maintained incrementally over a sequence of
+	 * states is exactly the one computed from scratch for each state
+	 */
+	public void testIncrementalMatchesFromScratch() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		String[] maps = {"basesWorkers24x24.xml", "basesWorkers24x24_intermediate1.xml",
+				"basesWorkers24x24_intermediate2.xml", "basesWorkers24x24_intermediate3.xml",
+				"basesWorkers24x24_p0wins.xml", "basesWorkers24x24.xml"};
+
+		InfluenceMapFeatureExtractor incremental = new InfluenceMapFeatureExtractor(4, 4, 0.7f, 10);
+		InfluenceMapFeatureExtractor fromScratch = new InfluenceMapFeatureExtractor(4, 4, 0.7f, 10);
+		String[] featureNames = null;
+
+		for (String map : maps) {
+			GameState state = null;
+			try {
+				state = new GameState(PhysicalGameState.load("maps/test/" + map, types),types);
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("Failed to load game state");
+			}
+			if (featureNames == null) {
+				featureNames = incremental.getFeatureNames(state).toArray(new String[0]);
+			}
+
+			float[] expected = new float[featureNames.length];
+			float[] vector = new float[featureNames.length];
+			fromScratch.reset();
+			fromScratch.getFeatureVector(state, 0, featureNames, expected);
+			incremental.getFeatureVector(state, 0, featureNames, vector);
+
+			// influences are summed in fixed point, so there is no rounding difference
+			for (int j = 0; j < featureNames.length; j++) {
+				assertEquals(map + " " + featureNames[j], expected[j], vector[j], 0f);
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import metabot.LatencyHistogram;
+
+public class TestLatencyHistogram {
+
+	@Test
+	/**
+	 * Tests whether the percentiles are within the bucket precision (1/16) of
+	 * the exact percentiles of the recorded values, and whether the maximum is
+	 * exact
+	 */
+	public void testPercentiles() {
+		Random random = new Random(0);
+		long[] values = new long[10000];
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < values.length; i++) {
+			// log-uniform from 1 ns to about 1 s
+			values[i] = (long) Math.exp(random.nextDouble() * Math.log(1e9));
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		for (double fraction : new double[] {0.01, 0.5, 0.9, 0.99, 1}) {
+			long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+			long reported = histogram.percentile(fraction);
+			assertTrue(fraction + ": " + reported + " < " + exact, reported >= exact);
+			assertTrue(fraction + ": " + reported + " > " + exact, reported <= exact + exact / 16 + 1);
+		}
+	}
+
+	@Test
+	/**
+	 * Tests the percentiles of small values (counted exactly), merging and
+	 * clearing
+	 */
+	public void testAddAndClear() {
+		LatencyHistogram first = new LatencyHistogram();
+		LatencyHistogram second = new LatencyHistogram();
+		assertEquals(0, first.percentile(0.5));
+
+		for (int i = 1; i <= 10; i++) {
+			first.record(i);
+		}
+		second.record(-5);
+		second.record(Long.MAX_VALUE);
+		first.add(second);
+
+		assertEquals(12, first.getCount());
+		assertEquals(0, first.percentile(0));
+		assertEquals(5, first.percentile(0.5));
+		assertEquals(Long.MAX_VALUE, first.percentile(1));
+		assertEquals(Long.MAX_VALUE, first.getMax());
+
+		first.clear();
+		assertEquals(0, first.getCount());
+		assertEquals(0, first.getMax());
+		assertEquals(0, first.percentile(0.99));
+	}
+}
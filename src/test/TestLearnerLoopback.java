@@ -0,0 +1,101 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import features.SparseFeatures;
+import rl.LearnerClient;
+import rl.LearnerServer;
+import rl.WeightMatrix;
+
+public class TestLearnerLoopback {
+
+	@Test(timeout = 10000)
+	/**
+	 * Tests the actor/learner protocol over the loopback interface: the
+	 * handshake returns the actor's own weights to the first actor, the
+	 * transitions it sends are learned, the weights pushed back have its
+	 * layout and differ from the initial ones, and the learner stops when the
+	 * actor disconnects
+	 */
+	public void testTransitionsAreLearnedAndPushed() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("rl.alpha.initial", "0.5");
+		config.setProperty("rl.learner.push_interval", "1");
+		LearnerServer learner = new LearnerServer(config);
+
+		ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Exception[] failure = new Exception[1];
+		Thread serving = new Thread(() -> {
+			try {
+				learner.serve(socket);
+			} catch (Exception e) {
+				failure[0] = e;
+			}
+		});
+		serving.start();
+
+		WeightMatrix weights = new WeightMatrix(Arrays.asList("WorkerRush", "LightRush"),
+				Arrays.asList("bias", "resources_own", "game_time"));
+		for (int i = 0; i < 2; i++) {
+			for (int j = 0; j < 3; j++) {
+				weights.set(i, j, 0.1f * (i + j));
+			}
+		}
+		float[] initial = values(weights);
+
+		LearnerClient client = new LearnerClient(
+				InetAddress.getLoopbackAddress().getHostAddress() + ":" + socket.getLocalPort(), weights);
+		assertTrue(Arrays.equals(initial, values(weights)));
+
+		SparseFeatures state = new SparseFeatures(3);
+		state.add(0, 1);
+		state.add(1, 0.5f);
+		SparseFeatures nextState = new SparseFeatures(3);
+		nextState.add(0, 1);
+		nextState.add(2, 0.25f);
+		client.send(state, 1, 1, false, nextState, 0);
+		client.send(nextState, 0, -1, true, null, -1);
+
+		// the learner pushes its weights after each update
+		WeightMatrix pushed = new WeightMatrix(weights.getMemberNames(), weights.getFeatureNames());
+		boolean received = false;
+		while (!received || Arrays.equals(initial, values(pushed))) {
+			received |= client.applyUpdates(pushed);
+			Thread.sleep(10);
+		}
+		assertEquals(weights.getMemberCount(), pushed.getMemberCount());
+		assertEquals(weights.getFeatureCount(), pushed.getFeatureCount());
+		assertFalse(Arrays.equals(initial, values(pushed)));
+
+		// (lambda = 0) each update touches only the chosen member and the features of s
+		assertTrue(pushed.get(1, 0) != initial[3]);
+		assertEquals(initial[1], pushed.get(0, 1), 0);
+		assertEquals(initial[5], pushed.get(1, 2), 0);
+
+		client.close();
+		serving.join();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		assertTrue(socket.isClosed());
+	}
+
+	private static float[] values(WeightMatrix weights) {
+		float[] values = new float[weights.getMemberCount() * weights.getFeatureCount()];
+		for (int i = 0; i < weights.getMemberCount(); i++) {
+			for (int j = 0; j < weights.getFeatureCount(); j++) {
+				values[i * weights.getFeatureCount() + j] = weights.get(i, j);
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,148 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ai.PassiveAI;
+import ai.core.AI;
+import ai.core.ParameterSpecification;
+import rl.Lookahead;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.PlayerAction;
+import rts.units.UnitTypeTable;
+
+public class TestLookahead {
+
+	/**
+	 * A member that takes far longer than any lookahead timeout to act (until
+	 * its simulation is cancelled)
+	 */
+	public static class SlowAI extends AI {
+
+		@Override
+		public void reset() {
+		}
+
+		@Override
+		public PlayerAction getAction(int player, GameState state) throws Exception {
+			Thread.sleep(10000);
+			return new PlayerAction();
+		}
+
+		@Override
+		public AI clone() {
+			return new SlowAI();
+		}
+
+		@Override
+		public List<ParameterSpecification> getParameters() {
+			return new ArrayList<>();
+		}
+	}
+
+	@Test
+	/**
+	 * Tests the candidates selected among Q-values with ties: decreasing order
+	 * of Q-value, ties in ordinal order
+	 */
+	public void testSelectCandidatesWithTies() {
+		double[] qValues = { 0.5, 0.8, 0.5, -0.1, 0.8 };
+
+		int[] order = new int[3];
+		Lookahead.selectCandidates(qValues, order);
+		assertEquals(1, order[0]);
+		assertEquals(4, order[1]);
+		assertEquals(0, order[2]);
+	}
+
+	@Test
+	/**
+	 * Tests the candidates selected when all the portfolio is simulated: the
+	 * whole portfolio in decreasing order of Q-value, ties in ordinal order
+	 */
+	public void testSelectWholePortfolio() {
+		double[] qValues = { 0.5, 0.8, 0.5, -0.1, 0.8 };
+
+		int[] order = new int[qValues.length];
+		Lookahead.selectCandidates(qValues, order);
+		int[] expected = { 1, 4, 0, 2, 3 };
+		for (int c = 0; c < expected.length; c++) {
+			assertEquals(expected[c], order[c]);
+		}
+	}
+
+	@Test
+	/**
+	 * Tests the candidate selected when only one is simulated: the first
+	 * member with the highest Q-value
+	 */
+	public void testSelectSingleCandidate() {
+		int[] order = new int[1];
+
+		Lookahead.selectCandidates(new double[] { 0.5, 0.8, 0.5, -0.1, 0.8 }, order);
+		assertEquals(1, order[0]);
+
+		Lookahead.selectCandidates(new double[] { 0.3, 0.2, 0.1 }, order);
+		assertEquals(0, order[0]);
+
+		Lookahead.selectCandidates(new double[] { -0.3, -0.2, -0.1 }, order);
+		assertEquals(2, order[0]);
+	}
+
+	@Test
+	/**
+	 * Tests that the blend replaces the Q-values of the evaluated members only:
+	 * a member whose evaluation is NaN keeps its Q-value
+	 */
+	public void testBlendKeepsQValueOfNaN() {
+		AI[] members = { new PassiveAI(), new PassiveAI(), new PassiveAI() };
+		Lookahead lookahead = new Lookahead(members, new PassiveAI(), 2, 1, 0.25, 1, 20);
+
+		double[] qValues = { 0.4, -0.2, 0.6 };
+		lookahead.blend(qValues, new double[] { Double.NaN, 0.6, Double.NaN });
+		assertArrayEquals(new double[] { 0.4, 0.75 * -0.2 + 0.25 * 0.6, 0.6 }, qValues, 1E-9);
+	}
+
+	@Test(timeout = 20000)
+	/**
+	 * Tests that a simulation that does not finish in timeout_ms is cancelled
+	 * and leaves the evaluation of its member at NaN, while the others are
+	 * evaluated (in [-1, 1]) and the members not simulated are NaN too
+	 */
+	public void testSlowSimulationLeavesNaN() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24.xml", types), types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+
+		AI[] members = { new SlowAI(), new PassiveAI(), new PassiveAI() };
+		// long enough for the passive member, even in a cold JVM
+		long timeoutMillis = 500;
+		Lookahead lookahead = new Lookahead(members, new PassiveAI(), 2, 10, 0.5, 2, timeoutMillis);
+
+		double[] qValues = { 0.8, 0.5, 0.1 };
+		double[] out = new double[members.length];
+		long start = System.currentTimeMillis();
+		lookahead.evaluate(state, 0, qValues, out);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("evaluate waited " + elapsed + " ms for the slow member", elapsed < 5000);
+		assertTrue(Double.isNaN(out[0]));
+		assertFalse(Double.isNaN(out[1]));
+		assertTrue(out[1] >= -1 && out[1] <= 1);
+		assertTrue(Double.isNaN(out[2]));
+	}
+}
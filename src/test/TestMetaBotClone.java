@@ -0,0 +1,167 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import ai.PassiveAI;
+import ai.core.AI;
+import metabot.MetaBot;
+import rl.Sarsa;
+import rl.WeightMatrix;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+public class TestMetaBotClone {
+
+	/**
+	 * A stateless member (as portfolio.shared_members requires) that counts
+	 * its resets
+	 */
+	public static class CountingPassiveAI extends PassiveAI {
+		int resets;
+
+		public CountingPassiveAI(UnitTypeTable utt) {
+			super(utt);
+		}
+
+		@Override
+		public void reset() {
+			resets++;
+			super.reset();
+		}
+	}
+
+	private static final String PASSIVE = CountingPassiveAI.class.getName();
+	private static final String LIGHT_RUSH = "ai.abstraction.LightRush";
+
+	@Test
+	/**
+	 * Tests whether a clone uses the same instance of the members in
+	 * portfolio.shared_members (without resetting it), a clone of the others,
+	 * and the clone of each member as its own
+	 */
+	public void testSharedAndClonedMembers() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		MetaBot original = new MetaBot(types, config());
+		CountingPassiveAI shared = (CountingPassiveAI) original.getPortfolio().get(PASSIVE);
+		int resets = shared.resets;
+		MetaBot clone = (MetaBot) original.clone();
+
+		assertEquals(original.getPortfolio().keySet(), clone.getPortfolio().keySet());
+		assertSame(shared, clone.getPortfolio().get(PASSIVE));
+		assertEquals(resets, shared.resets);
+		assertNotSame(original.getPortfolio().get(LIGHT_RUSH), clone.getPortfolio().get(LIGHT_RUSH));
+
+		Sarsa agent = clone.getLearningAgent();
+		assertEquals(original.getLearningAgent().getMemberNames(), agent.getMemberNames());
+		for (AI member : clone.getPortfolio().values()) {
+			assertTrue(agent.memberIndex(member) >= 0);
+		}
+		assertEquals(-1, agent.memberIndex(original.getPortfolio().get(LIGHT_RUSH)));
+	}
+
+	@Test
+	/**
+	 * Tests whether a clone starts with the weights of the original, and
+	 * whether its updates leave the weights of the original untouched
+	 */
+	public void testCloneLearnsAlone() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24.xml", types),types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+
+		MetaBot original = new MetaBot(types, config());
+		original.getLearningAgent().initializeWeights(state);
+		WeightMatrix weights = original.getLearningAgent().getWeights();
+		float[][] before = values(weights);
+
+		MetaBot clone = (MetaBot) original.clone();
+		Sarsa agent = clone.getLearningAgent();
+		assertNotSame(weights, agent.getWeights());
+		assertEquals(before.length, agent.getWeights().getMemberCount());
+		for (int i = 0; i < before.length; i++) {
+			for (int j = 0; j < before[i].length; j++) {
+				assertEquals(before[i][j], agent.getWeights().get(i, j), 0);
+			}
+		}
+
+		AI choice = clone.getPortfolio().get(LIGHT_RUSH);
+		agent.learn(state, choice, 1, state, true, 0);
+
+		int row = agent.memberIndex(choice);
+		boolean updated = false;
+		for (int j = 0; j < before[row].length; j++) {
+			updated |= agent.getWeights().get(row, j) != before[row][j];
+		}
+		assertTrue(updated);
+		float[][] after = values(weights);
+		for (int i = 0; i < before.length; i++) {
+			for (int j = 0; j < before[i].length; j++) {
+				assertEquals(before[i][j], after[i][j], 0);
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Tests whether cloning leaves the random choices of the original as they
+	 * would be without clones (e.g., for rl.random.seed to reproduce a match
+	 * played by a search that clones the players)
+	 */
+	public void testCloningKeepsExploration() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24.xml", types),types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+
+		// every choice is random
+		Properties config = config();
+		config.setProperty("rl.epsilon.initial", "1");
+		MetaBot cloned = new MetaBot(types, config);
+		MetaBot alone = new MetaBot(types, config);
+
+		for (int k = 0; k < 20; k++) {
+			cloned.clone();
+			cloned.getLearningAgent().resetChoice();
+			alone.getLearningAgent().resetChoice();
+			Sarsa agent = cloned.getLearningAgent();
+			Sarsa twin = alone.getLearningAgent();
+			assertEquals(twin.memberIndex(twin.act(state, 0)), agent.memberIndex(agent.act(state, 0)));
+		}
+	}
+
+	private static Properties config() {
+		Properties config = new Properties();
+		config.setProperty("portfolio.members", PASSIVE + ", " + LIGHT_RUSH);
+		config.setProperty("portfolio.shared_members", PASSIVE);
+		config.setProperty("rl.random.seed", "1");
+		return config;
+	}
+
+	private static float[][] values(WeightMatrix weights) {
+		float[][] values = new float[weights.getMemberCount()][weights.getFeatureCount()];
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < values[i].length; j++) {
+				values[i][j] = weights.get(i, j);
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,52 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import features.Feature;
+import features.PyramidFeatureExtractor;
+import features.QuadrantModelFeatureExtractor;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+public class TestPyramidFeatureExtractor {
+
+	@Test
+	/**
+	 * Tests whether each level of the pyramid has the values of the quadrant
+	 * model with the same division
+	 */
+	public void testLevelsMatchQuadrantModel() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24_intermediate2.xml", types),types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+
+		int[] levels = {1, 2, 3, 6};
+		PyramidFeatureExtractor pyramid = new PyramidFeatureExtractor(levels);
+		Map<String, Feature> features = pyramid.getFeatures(state, 0);
+
+		for (int level : levels) {
+			Map<String, Feature> expected = new QuadrantModelFeatureExtractor(level).getFeatures(state, 0);
+			for (Map.Entry<String, Feature> entry : expected.entrySet()) {
+				String name = entry.getKey();
+				if (name.startsWith("unit_count-") || name.startsWith("avg_health-")) {
+					// e.g. unit_count-1-2-0-Worker is unit_count-3x3-1-2-0-Worker in the pyramid
+					name = name.replaceFirst("-", "-" + level + "x" + level + "-");
+				}
+
+				// the average health may differ by float rounding
+				assertEquals(name, entry.getValue().getValue(), features.get(name).getValue(), 1e-6f);
+			}
+		}
+	}
+}
@@ -4,6 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -11,9 +16,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import features.Feature;
+import features.FeatureNames;
+import features.IncrementalQuadrantFeatureExtractor;
 import features.QuadrantModelFeatureExtractor;
+import features.UnitCensus;
 import rts.GameState;
 import rts.PhysicalGameState;
+import rts.units.Unit;
+import rts.units.UnitType;
 import rts.units.UnitTypeTable;
 
 public class TestQuadrantModelFeatureExtractor {
@@ -94,6 +104,196 @@ public class TestQuadrantModelFeatureExtractor {
 		fail("Not yet implemented"); // TODO
 	}
 
-	
+	@Test
+	/**
+	 * Tests whether the single-pass feature vector and the feature map have
+	 * exactly the values of the original extractor (see
+	 * {@link #referenceFeatures}), also when the feature names are in another
+	 * order
+	 */
+	public void testFeatureVectorMatchesFeatures() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		String[] maps = {"basesWorkers24x24.xml", "basesWorkers24x24_intermediate1.xml",
+				"basesWorkers24x24_intermediate2.xml", "basesWorkers24x24_intermediate3.xml"};
+
+		for (String map : maps) {
+			GameState state = null;
+			try {
+				state = new GameState(PhysicalGameState.load("maps/test/" + map, types),types);
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("Failed to load game state");
+			}
+
+			for (int quadrants = 1; quadrants <= 4; quadrants++) {
+				QuadrantModelFeatureExtractor featureExtractor = new QuadrantModelFeatureExtractor(quadrants);
+				List<String> names = featureExtractor.getFeatureNames(state);
+				List<String> reversed = new ArrayList<>(names);
+				Collections.reverse(reversed);
+
+				for (int player = 0; player < 2; player++) {
+					Map<String, Feature> expected = referenceFeatures(state, player, quadrants);
+					Map<String, Feature> features = featureExtractor.getFeatures(state, player);
+					assertEquals(expected.size(), features.size());
+
+					for (List<String> order : Arrays.asList(names, reversed)) {
+						String[] featureNames = order.toArray(new String[0]);
+						float[] vector = new float[featureNames.length];
+						featureExtractor.getFeatureVector(state, player, featureNames, vector);
+
+						for (int j = 0; j < featureNames.length; j++) {
+							String name = map + " " + quadrants + " " + featureNames[j];
+							float value = expected.get(featureNames[j]).getValue();
+							assertEquals(name, value, features.get(featureNames[j]).getValue(), 0);
+							assertEquals(name, value, vector[j], 0);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the normalized features as the original extractor computed them:
+	 * one map of features per state, with the units of each quadrant found by
+	 * {@link PhysicalGameState#getUnitsInRectangle}, each count truncated as it
+	 * is incremented, and every value min-max scaled at the end
+	 *
+	 * @param state
+	 * @param player
+	 * @param numQuadrants
+	 * @return
+	 */
+	private static Map<String, Feature> referenceFeatures(GameState state, int player, int numQuadrants) {
+		Map<String, Feature> features = new HashMap<>();
+		features.put(FeatureNames.RESOURCES_OWN, new Feature(FeatureNames.RESOURCES_OWN, 0, 0, 20));
+		features.put(FeatureNames.RESOURCES_OPP, new Feature(FeatureNames.RESOURCES_OPP, 0, 0, 20));
+		features.put(FeatureNames.GAME_TIME, new Feature(FeatureNames.GAME_TIME, 0, 0, 3000));
+		features.put(FeatureNames.BIAS, new Feature(FeatureNames.BIAS, 1, 0, 1));
+
+		int horizQuadLength = state.getPhysicalGameState().getWidth() / numQuadrants;
+		int vertQuadLength = state.getPhysicalGameState().getHeight() / numQuadrants;
+		int tilesPerQuadrant = horizQuadLength * vertQuadLength;
+
+		for (int horizQuad = 0; horizQuad < numQuadrants; horizQuad++) {
+			for (int vertQuad = 0; vertQuad < numQuadrants; vertQuad++) {
+				for (int p = 0; p < 2; p++) {
+					String healthFeatName = FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, p);
+					features.put(healthFeatName, new Feature(healthFeatName, 0, 0, 1));
+					for (UnitType type : state.getUnitTypeTable().getUnitTypes()) {
+						if (type.isResource)
+							continue;
+						String countFeatName = FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, p, type);
+						features.put(countFeatName, new Feature(countFeatName, 0, 0, tilesPerQuadrant));
+					}
+				}
+
+				float hpSum[] = new float[2];
+				int unitCount[] = new int[2];
+				Collection<Unit> unitsInQuad = state.getPhysicalGameState().getUnitsInRectangle(
+						horizQuad * horizQuadLength, vertQuad * vertQuadLength, horizQuadLength, vertQuadLength);
+				for (Unit u : unitsInQuad) {
+					if (u.getType().isResource)
+						continue;
+					unitCount[u.getPlayer()]++;
+					hpSum[u.getPlayer()] += u.getHitPoints() / (float)u.getType().hp;
+					Feature typeCountPerQuadrant = features.get(
+							FeatureNames.unitsOfTypePerQuad(horizQuad, vertQuad, u.getPlayer(), u.getType()));
+					typeCountPerQuadrant.setValue(1 + typeCountPerQuadrant.getValue());
+				}
+				for (int p = 0; p < 2; p++) {
+					float avgHP = unitCount[p] != 0 ? hpSum[p] / unitCount[p] : 0;
+					features.get(FeatureNames.avgHealthPerQuad(horizQuad, vertQuad, p)).setValue(avgHP);
+				}
+			}
+		}
+
+		features.get(FeatureNames.RESOURCES_OWN).setValue((float) state.getPlayer(player).getResources());
+		features.get(FeatureNames.RESOURCES_OPP).setValue((float) state.getPlayer(1 - player).getResources());
+		features.get(FeatureNames.GAME_TIME).setValue((float) state.getTime());
+
+		for (Feature f : features.values()) {
+			f.minMaxScaling();
+		}
+		return features;
+	}
+
+	@Test
+	/**
+	 * Tests whether the incremental extractor follows a sequence of states (of
+	 * the same map) with the values of the non-incremental one
+	 */
+	public void testIncrementalMatchesFeatures() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		String[] maps = {"basesWorkers24x24.xml", "basesWorkers24x24_intermediate1.xml",
+				"basesWorkers24x24_intermediate2.xml", "basesWorkers24x24_intermediate3.xml",
+				"basesWorkers24x24_p0wins.xml", "basesWorkers24x24.xml"};
+
+		QuadrantModelFeatureExtractor featureExtractor = new QuadrantModelFeatureExtractor(3);
+		IncrementalQuadrantFeatureExtractor incremental = new IncrementalQuadrantFeatureExtractor(3);
+		String[] featureNames = null;
+
+		for (String map : maps) {
+			GameState state = null;
+			try {
+				state = new GameState(PhysicalGameState.load("maps/test/" + map, types),types);
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("Failed to load game state");
+			}
+			if (featureNames == null) {
+				featureNames = featureExtractor.getFeatureNames(state).toArray(new String[0]);
+			}
+
+			float[] expected = new float[featureNames.length];
+			float[] vector = new float[featureNames.length];
+			featureExtractor.getFeatureVector(state, 0, featureNames, expected);
+			incremental.getFeatureVector(state, 0, featureNames, vector);
+
+			// the average health may differ by float rounding
+			for (int j = 0; j < featureNames.length; j++) {
+				assertEquals(map + " " + featureNames[j], expected[j], vector[j], 1e-6f);
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Tests whether extractors sharing a census give each player the same
+	 * features as extracting them on its own
+	 */
+	public void testSharedCensusMatchesFeatures() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24_intermediate2.xml", types),types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+
+		QuadrantModelFeatureExtractor featureExtractor = new QuadrantModelFeatureExtractor(3);
+		QuadrantModelFeatureExtractor first = new QuadrantModelFeatureExtractor(3);
+		QuadrantModelFeatureExtractor second = new IncrementalQuadrantFeatureExtractor(3);
+		UnitCensus census = UnitCensus.share(first, second);
+
+		String[] featureNames = featureExtractor.getFeatureNames(state).toArray(new String[0]);
+		for (int player = 0; player < 2; player++) {
+			float[] expected = new float[featureNames.length];
+			float[] vector = new float[featureNames.length];
+			featureExtractor.getFeatureVector(state, player, featureNames, expected);
+
+			first.getFeatureVector(state, player, featureNames, vector);
+			for (int j = 0; j < featureNames.length; j++) {
+				assertEquals(featureNames[j], expected[j], vector[j], 0f);
+			}
+
+			second.getFeatureVector(state, player, featureNames, vector);
+			for (int j = 0; j < featureNames.length; j++) {
+				assertEquals(featureNames[j], expected[j], vector[j], 0f);
+			}
+		}
+		census.release(first, second);
+	}
 
 }
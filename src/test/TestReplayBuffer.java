@@ -0,0 +1,140 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import rl.ReplayBuffer;
+
+public class TestReplayBuffer {
+
+	@Test
+	/**
+	 * Tests whether a full buffer overwrites its oldest transitions and keeps the
+	 * features, action, reward and terminal flag of each
+	 */
+	public void testOverwriteWhenFull() {
+		ReplayBuffer buffer = new ReplayBuffer(3, 2);
+		for (int i = 0; i < 5; i++) {
+			buffer.add(new float[] {i, -i}, i, i * 0.5, new float[] {i + 1, -i - 1}, i == 4);
+		}
+		assertEquals(3, buffer.size());
+
+		// the 4th and 5th transitions took the places of the 1st and 2nd
+		int[] expected = {3, 4, 2};
+		for (int position = 0; position < 3; position++) {
+			int i = expected[position];
+			int offset = buffer.offset(position);
+			assertEquals(i, buffer.getAction(position));
+			assertEquals(i * 0.5f, buffer.getReward(position), 0);
+			assertEquals(i == 4, buffer.isTerminal(position));
+			assertArrayEquals(new float[] {i, -i}, Arrays.copyOfRange(buffer.getStates(), offset, offset + 2), 0);
+			if (i != 4) {
+				assertArrayEquals(new float[] {i + 1, -i - 1},
+						Arrays.copyOfRange(buffer.getNextStates(), offset, offset + 2), 0);
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * Tests whether prioritized sampling follows the priorities, whether a new
+	 * transition receives the highest priority seen, and whether uniform
+	 * sampling ignores them
+	 */
+	public void testSamplingFollowsPriorities() {
+		Random random = new Random(0);
+		int[] sample = new int[100000];
+
+		// 3 transitions in a tree of 4 leaves: the empty leaf must never be sampled
+		ReplayBuffer buffer = filled(true, 1);
+		buffer.updatePriority(0, 0.999);
+		buffer.updatePriority(1, -2.999);
+		buffer.updatePriority(2, 5.999);
+		assertFrequencies(buffer, random, sample, new double[] {0.1, 0.3, 0.6});
+
+		// overwrites the transition at position 0, with priority 6
+		buffer.add(new float[] {1, 1}, 0, 0, new float[] {1, 1}, false);
+		assertFrequencies(buffer, random, sample, new double[] {0.4, 0.2, 0.4});
+
+		// the priority exponent flattens the distribution
+		buffer = filled(true, 0.5);
+		buffer.updatePriority(0, 0.999);
+		buffer.updatePriority(2, 3.999);
+		assertFrequencies(buffer, random, sample, new double[] {0.25, 0.25, 0.5});
+
+		buffer = filled(false, 0);
+		buffer.updatePriority(0, 100);
+		assertFrequencies(buffer, random, sample, new double[] {1 / 3.0, 1 / 3.0, 1 / 3.0});
+	}
+
+	@Test
+	/**
+	 * Tests whether the importance weights are (N * P(i))^-beta normalized by
+	 * the largest one, and 1 without priorities
+	 */
+	public void testImportanceWeights() {
+		ReplayBuffer buffer = filled(true, 1);
+		buffer.updatePriority(0, 0.999);
+		buffer.updatePriority(1, 2.999);
+		buffer.updatePriority(2, 5.999);
+
+		// P = 0.1, 0.3 and 0.6
+		int[] positions = {0, 1, 2, 2};
+		double[] weights = new double[positions.length];
+		buffer.importanceWeights(positions, 1, weights);
+		assertArrayEquals(new double[] {1, 1 / 3.0, 1 / 6.0, 1 / 6.0}, weights, 1e-9);
+
+		buffer.importanceWeights(positions, 0.5, weights);
+		assertArrayEquals(new double[] {1, Math.sqrt(1 / 3.0), Math.sqrt(1 / 6.0), Math.sqrt(1 / 6.0)}, weights, 1e-9);
+
+		buffer.importanceWeights(positions, 0, weights);
+		assertArrayEquals(new double[] {1, 1, 1, 1}, weights, 0);
+
+		buffer = filled(false, 0);
+		buffer.importanceWeights(positions, 1, weights);
+		assertArrayEquals(new double[] {1, 1, 1, 1}, weights, 0);
+	}
+
+	/**
+	 * Returns a buffer of capacity 3 holding 3 transitions
+	 *
+	 * @param prioritized
+	 * @param priorityExponent
+	 * @return
+	 */
+	private static ReplayBuffer filled(boolean prioritized, double priorityExponent) {
+		ReplayBuffer buffer = new ReplayBuffer(3, 2, prioritized, priorityExponent);
+		for (int i = 0; i < 3; i++) {
+			buffer.add(new float[] {i, i}, i, 0, new float[] {i, i}, false);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Samples the buffer and checks the frequency of each position
+	 *
+	 * @param buffer
+	 * @param random
+	 * @param sample
+	 * @param expected
+	 */
+	private static void assertFrequencies(ReplayBuffer buffer, Random random, int[] sample, double[] expected) {
+		buffer.sample(random, sample);
+		int[] counts = new int[expected.length];
+		for (int position : sample) {
+			assertTrue(position >= 0);
+			assertFalse(position >= expected.length);
+			counts[position]++;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("position " + i, expected[i], counts[i] / (double) sample.length, 0.01);
+		}
+	}
+}
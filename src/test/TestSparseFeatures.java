@@ -0,0 +1,57 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import features.SparseFeatures;
+
+public class TestSparseFeatures {
+
+	@Test
+	/**
+	 * Tests whether values added to the same index accumulate in a single entry
+	 * and whether clearing allows the vector to be reused
+	 */
+	public void testAddAndClear() {
+		SparseFeatures features = new SparseFeatures(100);
+		for (int k = 0; k < 40; k++) {
+			features.add(k * 2, 1);
+		}
+		features.add(10, -0.5f);
+		assertEquals(40, features.size());
+
+		float[] dense = new float[100];
+		features.scatter(dense);
+		assertEquals(0.5f, dense[10], 0);
+		assertEquals(1f, dense[78], 0);
+		assertEquals(0f, dense[79], 0);
+
+		features.unscatter(dense);
+		assertArrayEquals(new float[100], dense, 0);
+
+		features.clear();
+		assertEquals(0, features.size());
+		features.add(10, 2);
+		assertEquals(1, features.size());
+		assertEquals(10, features.index(0));
+		assertEquals(2f, features.value(0), 0);
+	}
+
+	@Test
+	/**
+	 * Tests whether gathering a dense vector keeps only its non-zero values
+	 */
+	public void testGather() {
+		float[] dense = {0, 0.25f, 0, 0, -1, 0};
+		SparseFeatures features = new SparseFeatures(dense.length);
+		features.add(0, 3);
+		features.gather(dense);
+
+		assertEquals(2, features.size());
+		assertEquals(1, features.index(0));
+		assertEquals(4, features.index(1));
+		assertEquals(-1f, features.value(1), 0);
+	}
+}
@@ -0,0 +1,148 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import ai.PassiveAI;
+import ai.core.AI;
+import metabot.Telemetry;
+import metabot.TelemetryWriter;
+import rl.Sarsa;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.units.UnitTypeTable;
+
+public class TestTelemetry {
+
+	/**
+	 * A second member, told apart from PassiveAI by its name in the choices
+	 */
+	public static class IdleAI extends PassiveAI {
+	}
+
+	@Test
+	/**
+	 * Tests the runs of choices of two matches: a run ends when the member
+	 * changes, when frames are skipped (e.g., not recorded) and at the end of
+	 * the match, even if the next match goes on with the same member
+	 */
+	public void testChoiceRuns() throws IOException {
+		File dir = Files.createTempDirectory("telemetry").toFile();
+		Properties config = new Properties();
+		config.setProperty("rl.workingdir", dir.getPath());
+		config.setProperty("output.choices_prefix", "choices");
+		Telemetry telemetry = new Telemetry(config);
+
+		GameState state = state();
+		AI passive = new PassiveAI(), idle = new IdleAI();
+		// by frame: the member chosen, or null for a frame not recorded
+		AI[] firstMatch = { passive, passive, passive, idle, idle, null, idle, idle };
+		AI[] secondMatch = { idle, idle };
+
+		play(telemetry, 1, state, firstMatch, null, 1);
+		telemetry.endMatch();
+		play(telemetry, 2, state, secondMatch, null, 1);
+		telemetry.endMatch();
+		TelemetryWriter.getInstance().flush();
+
+		assertEquals(Arrays.asList("first_frame,frames,member", "0,3,PassiveAI", "3,2,IdleAI", "6,2,IdleAI"),
+				Files.readAllLines(new File(dir, "choices_1.choices").toPath()));
+		assertEquals(Arrays.asList("first_frame,frames,member", "8,2,IdleAI"),
+				Files.readAllLines(new File(dir, "choices_2.choices").toPath()));
+	}
+
+	@Test
+	/**
+	 * Tests the frames sampled for the Q-values with decisions every 4 frames:
+	 * the decision frames with output.sample=decision, and every third frame
+	 * with output.sample=3
+	 */
+	public void testSampling() throws IOException {
+		assertEquals(Arrays.asList("0", "4", "8"), sampledFrames("decision"));
+		assertEquals(Arrays.asList("0", "3", "6", "9"), sampledFrames("3"));
+	}
+
+	/**
+	 * Records 10 frames with a decision every 4 frames, and returns the frames
+	 * of the lines of the Q-values file
+	 *
+	 * @param sample
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> sampledFrames(String sample) throws IOException {
+		File dir = Files.createTempDirectory("telemetry").toFile();
+		Properties config = new Properties();
+		config.setProperty("rl.workingdir", dir.getPath());
+		config.setProperty("output.qvalues_prefix", "qvalues");
+		config.setProperty("output.sample", sample);
+		config.setProperty("rl.random.seed", "1");
+		Telemetry telemetry = new Telemetry(config);
+
+		AI passive = new PassiveAI(), idle = new IdleAI();
+		Map<String, AI> portfolio = new LinkedHashMap<>();
+		portfolio.put("passive", passive);
+		portfolio.put("idle", idle);
+		Sarsa agent = new Sarsa(portfolio, config);
+
+		AI[] frames = new AI[10];
+		Arrays.fill(frames, passive);
+		play(telemetry, 1, state(), frames, agent, 4);
+		telemetry.endMatch();
+		TelemetryWriter.getInstance().flush();
+
+		List<String> lines = Files.readAllLines(new File(dir, "qvalues_1.csv").toPath());
+		assertEquals("match,frame,passive,idle", lines.get(0));
+		String[] frameNumbers = new String[lines.size() - 1];
+		for (int i = 1; i < lines.size(); i++) {
+			String[] values = lines.get(i).split(",");
+			assertEquals(4, values.length);
+			assertEquals("1", values[0]);
+			frameNumbers[i - 1] = values[1];
+		}
+		return Arrays.asList(frameNumbers);
+	}
+
+	/**
+	 * Records a sequence of frames, moving the state one cycle after each
+	 *
+	 * @param telemetry
+	 * @param match
+	 * @param state
+	 * @param choices   by frame, null to skip the frame
+	 * @param agent
+	 * @param interval  frames between decisions
+	 */
+	private static void play(Telemetry telemetry, int match, GameState state, AI[] choices, Sarsa agent,
+			int interval) {
+		for (int f = 0; f < choices.length; f++) {
+			if (choices[f] != null) {
+				telemetry.frame(match, state, 0, f % interval == 0, choices[f], agent);
+			}
+			state.cycle();
+		}
+	}
+
+	private static GameState state() {
+		UnitTypeTable types = new UnitTypeTable(UnitTypeTable.VERSION_ORIGINAL_FINETUNED);
+		GameState state = null;
+		try {
+			state = new GameState(PhysicalGameState.load("maps/test/basesWorkers24x24.xml", types), types);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Failed to load game state");
+		}
+		return state;
+	}
+}
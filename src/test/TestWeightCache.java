@@ -0,0 +1,88 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import rl.WeightCache;
+import rl.WeightFile;
+import rl.WeightMatrix;
+
+public class TestWeightCache {
+
+	@Test
+	/**
+	 * Tests whether the references to a cached file share one copy of its
+	 * weights, and whether the file leaves the cache with its last reference
+	 */
+	public void testCacheSharesFile() throws Exception {
+		WeightMatrix weights = new WeightMatrix(Arrays.asList("WorkerRush", "LightRush"), Arrays.asList("bias", "time"));
+		weights.set(1, 0, 0.5f);
+
+		File file = File.createTempFile("weights", ".bin");
+		file.deleteOnExit();
+		WeightFile.write(weights, file.getPath());
+
+		WeightCache cache = WeightCache.getInstance();
+		int cached = cache.size();
+		WeightCache.Reference first = cache.acquire(file.getPath());
+		WeightCache.Reference second = cache.acquire(file.getPath());
+		assertEquals(cached + 1, cache.size());
+		assertEquals(0.5f, second.getWeights().get(1, 0), 0);
+
+		// an update stays private to the agent that made it
+		first.getWeights().set(1, 0, 2);
+		assertEquals(0.5f, second.getWeights().get(1, 0), 0);
+
+		first.release();
+		first.release();
+		assertEquals(cached + 1, cache.size());
+		second.release();
+		assertEquals(cached, cache.size());
+	}
+
+	@Test
+	/**
+	 * Tests whether a file rewritten since it was cached (new modification
+	 * time and size) is loaded again, and whether the holders of the older
+	 * version keep its weights
+	 */
+	public void testRewrittenFileIsReloaded() throws Exception {
+		WeightMatrix weights = new WeightMatrix(Arrays.asList("WorkerRush", "LightRush"), Arrays.asList("bias", "time"));
+		weights.set(1, 0, 0.5f);
+
+		File file = File.createTempFile("weights", ".bin");
+		file.deleteOnExit();
+		WeightFile.write(weights, file.getPath());
+
+		WeightCache cache = WeightCache.getInstance();
+		int cached = cache.size();
+		WeightCache.Reference old = cache.acquire(file.getPath());
+
+		// a checkpoint with another feature (the modification time may have a coarse resolution)
+		long lastModified = file.lastModified();
+		WeightMatrix rewritten = new WeightMatrix(Arrays.asList("WorkerRush", "LightRush"), Arrays.asList("bias", "time", "resources_own"));
+		rewritten.set(1, 0, 0.25f);
+		WeightFile.write(rewritten, file.getPath());
+		file.setLastModified(lastModified + 2000);
+
+		WeightCache.Reference current = cache.acquire(file.getPath());
+		assertEquals(3, current.getWeights().getFeatureCount());
+		assertEquals(0.25f, current.getWeights().get(1, 0), 0);
+		assertEquals(2, old.getWeights().getFeatureCount());
+		assertEquals(0.5f, old.getWeights().get(1, 0), 0);
+		assertEquals(cached + 1, cache.size());
+
+		// the older version already left the cache
+		old.release();
+		assertEquals(cached + 1, cache.size());
+		WeightCache.Reference again = cache.acquire(file.getPath());
+		assertEquals(0.25f, again.getWeights().get(1, 0), 0);
+		current.release();
+		again.release();
+		assertEquals(cached, cache.size());
+	}
+}
@@ -0,0 +1,77 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import rl.WeightFile;
+import rl.WeightMatrix;
+
+public class TestWeightFile {
+
+	@Test
+	/**
+	 * Tests whether weights written to a file are read back with the same
+	 * members, features and values, and whether an update on the memory-mapped
+	 * weights leaves the file untouched
+	 */
+	public void testWriteAndRead() throws Exception {
+		WeightMatrix weights = new WeightMatrix(
+			Arrays.asList("WorkerRush", "LightRush"), 
+			Arrays.asList("bias", "resources_own", "game_time")
+		);
+		for (int i = 0; i < 2; i++) {
+			for (int j = 0; j < 3; j++) {
+				weights.set(i, j, i - j * 0.25f);
+			}
+		}
+
+		File file = File.createTempFile("weights", ".bin");
+		file.deleteOnExit();
+		WeightFile.write(weights, file.getPath());
+		assertFalse(WeightFile.isSerialized(file.getPath()));
+
+		WeightMatrix loaded = WeightFile.read(file.getPath());
+		assertTrue(loaded.isMapped());
+		assertTrue(loaded.hasLayout(weights.getMemberNames(), weights.getFeatureNames()));
+		for (int i = 0; i < 2; i++) {
+			for (int j = 0; j < 3; j++) {
+				assertEquals(weights.get(i, j), loaded.get(i, j), 0);
+			}
+		}
+
+		// copy-on-write: the update must not reach the file
+		loaded.addScaled(0, new float[] {1, 1, 1}, 1.0);
+		assertFalse(loaded.isMapped());
+		assertEquals(weights.get(0, 0) + 1, loaded.get(0, 0), 0);
+		assertEquals(weights.get(0, 0), WeightFile.read(file.getPath()).get(0, 0), 0);
+	}
+
+	@Test
+	/**
+	 * Tests whether files written by Java serialization (the previous format) are
+	 * detected and loaded
+	 */
+	public void testDetectsSerializedFiles() throws Exception {
+		WeightMatrix weights = new WeightMatrix(Arrays.asList("WorkerRush"), Arrays.asList("bias"));
+		weights.set(0, 0, 0.75f);
+		
+		File file = File.createTempFile("weights", ".bin");
+		file.deleteOnExit();
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+		out.writeObject(weights.toMap());
+		out.close();
+		
+		assertTrue(WeightFile.isSerialized(file.getPath()));
+		WeightMatrix loaded = WeightFile.load(file.getPath());
+		assertTrue(loaded.hasLayout(weights.getMemberNames(), weights.getFeatureNames()));
+		assertEquals(0.75f, loaded.get(0, 0), 0);
+	}
+}
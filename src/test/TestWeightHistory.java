@@ -0,0 +1,80 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import rl.WeightHistory;
+import rl.WeightHistoryReader;
+import rl.WeightMatrix;
+
+public class TestWeightHistory {
+
+	private static final List<String> MEMBERS = Arrays.asList("WorkerRush", "LightRush");
+	private static final List<String> FEATURES = Arrays.asList("bias", "resources_own", "game_time");
+
+	@Test
+	/**
+	 * Tests whether every appended snapshot (keyframes and deltas) is read back
+	 * exactly, also after the log is reopened with an incomplete record at its end
+	 */
+	public void testAppendAndRead() throws Exception {
+		File file = File.createTempFile("weights", ".history");
+		file.delete();
+		file.deleteOnExit();
+
+		WeightMatrix weights = new WeightMatrix(MEMBERS, FEATURES);
+		try (WeightHistory history = new WeightHistory(file.getPath(), MEMBERS, FEATURES, 3)) {
+			for (int s = 0; s < 5; s++) {
+				fill(weights, s);
+				history.append(weights);
+			}
+		}
+
+		// simulates a crash while writing a record
+		try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+			raw.seek(raw.length());
+			raw.write(new byte[] {1, 5, 0, 0});
+		}
+
+		try (WeightHistory history = new WeightHistory(file.getPath(), MEMBERS, FEATURES, 3)) {
+			assertEquals(5, history.size());
+			for (int s = 5; s < 7; s++) {
+				fill(weights, s);
+				history.append(weights);
+			}
+		}
+
+		try (WeightHistoryReader reader = new WeightHistoryReader(file.getPath())) {
+			assertEquals(MEMBERS, reader.getMemberNames());
+			assertEquals(FEATURES, reader.getFeatureNames());
+			for (int s = 0; s < 7; s++) {
+				assertTrue(reader.next());
+				assertEquals(s, reader.getSequence());
+				fill(weights, s);
+				for (int i = 0; i < MEMBERS.size(); i++) {
+					for (int j = 0; j < FEATURES.size(); j++) {
+						assertEquals(weights.get(i, j), reader.get(i, j), 0);
+					}
+				}
+			}
+			assertFalse(reader.next());
+		}
+	}
+
+	private void fill(WeightMatrix weights, int snapshot) {
+		for (int i = 0; i < weights.getMemberCount(); i++) {
+			for (int j = 0; j < weights.getFeatureCount(); j++) {
+				// only some weights change between snapshots
+				weights.set(i, j, j == 0 ? 0.5f : i - j * 0.1f * snapshot);
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import rl.WeightMatrix;
+
+public class TestWeightMatrix {
+
+	@Test
+	/**
+	 * Tests whether a shared matrix has the same weights and whether updates
+	 * made to either matrix afterwards stay private to it
+	 */
+	public void testShareIsCopyOnWrite() {
+		WeightMatrix weights = new WeightMatrix(Arrays.asList("WorkerRush", "LightRush"), Arrays.asList("bias", "time"));
+		weights.set(0, 1, 2);
+
+		WeightMatrix shared = weights.share();
+		assertTrue(shared.isCopyOnWrite());
+		assertEquals(2, shared.get(0, 1), 0);
+
+		shared.set(0, 1, 5);
+		assertFalse(shared.isCopyOnWrite());
+		assertEquals(2, weights.get(0, 1), 0);
+		assertEquals(5, shared.get(0, 1), 0);
+
+		WeightMatrix again = weights.share();
+		weights.addScaled(1, new float[] {1, 1}, 1.0);
+		assertEquals(1, weights.get(1, 0), 0);
+		assertEquals(0, again.get(1, 0), 0);
+		assertEquals(0, shared.get(1, 0), 0);
+	}
+}